@@ -3,6 +3,10 @@ package alchemy;
 import be.kuleuven.cs.som.annotate.*;
 import temperature.Temperature;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * A class of alchemic ingredients involving a name, temperature, type, quantity and a liquid or powder state.
  * 
@@ -245,6 +249,26 @@ public class AlchemicIngredient {
 		temperature.heat(amount);
 	}
 	
+	/**
+	 * Heat or cool this ingredient until it has the given temperature.
+	 * 
+	 * @param temperature
+	 * 		  The temperature to bring this ingredient to.
+	 * @effect If the given temperature is hotter than the temperature of this ingredient, this
+	 * 		   ingredient is heated with the difference. If it is colder, this ingredient is cooled
+	 * 		   with the difference.
+	 * 		   | let difference = Temperature.temperatureDifference(temperature, getTemperatureObject())
+	 * 		   | if (difference > 0) then heat(difference)
+	 * 		   | else if (difference < 0) then cool(-difference)
+	 */
+	public void changeTemperatureTo(Temperature temperature) {
+		long difference = Temperature.temperatureDifference(temperature, getTemperatureObject());
+		if (difference>0)
+			heat(difference);
+		else if (difference<0)
+			cool(-difference);
+	}
+	
 	/**
 	 * A variable keeping the temperature of this ingredient.
 	 */
@@ -268,5 +292,47 @@ public class AlchemicIngredient {
 		return type.getStandardTemperatureObject();
 	}
 
+
+	/************************************************************************
+	 * Encoding
+	 ************************************************************************/
+
+	/**
+	 * Write this alchemic ingredient to the given output.
+	 *
+	 * @param  out
+	 *         The output to write this alchemic ingredient to.
+	 * @effect The type of this ingredient is written, followed by its quantity and the coldness
+	 *         and hotness of its temperature.
+	 *         | getType().writeTo(out)
+	 * @throws IOException
+	 *         Writing to the given output failed.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		getType().writeTo(out);
+		out.writeInt(getQuantity());
+		out.writeLong(getColdness());
+		out.writeLong(getHotness());
+	}
+
+	/**
+	 * Read an alchemic ingredient from the given input, as written by writeTo.
+	 *
+	 * @param  in
+	 *         The input to read the alchemic ingredient from.
+	 * @return A new alchemic ingredient with the type, quantity and temperature read from the given input.
+	 * @throws IOException
+	 *         Reading from the given input failed.
+	 */
+	public static AlchemicIngredient readFrom(DataInput in) throws IOException {
+		IngredientType type = IngredientType.readFrom(in);
+		int quantity = in.readInt();
+		Temperature temperature = new Temperature(in.readLong(), in.readLong());
+
+		AlchemicIngredient ingredient = new AlchemicIngredient(type, quantity);
+		ingredient.changeTemperatureTo(temperature);
+		return ingredient;
+	}
+
 	
 }
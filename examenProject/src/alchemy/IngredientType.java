@@ -3,6 +3,9 @@ package alchemy;
 import be.kuleuven.cs.som.annotate.*;
 import temperature.Temperature;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Objects;
 
@@ -448,7 +451,7 @@ public class IngredientType {
 	 * @return True if and only if this ingredient type and the given ingredient type have the same simple names, special name,
 	 * 		   state and standard temperature.
 	 * 		   | result == (Arrays.equals(this.getSimpleNames(),type.getSimpleNames())  
-	 *         |           && this.getSpecialName() == type.getSpecialName()
+	 *         |           && Objects.equals(this.getSpecialName(), type.getSpecialName())
 	 *         |           && this.getState() == type.getState() 
 	 *         |           && Temperature.compareTemperature(this.getStandardTemperatureObject(), 
 	 *         |					                         type.getStandardTemperatureObject())==0 )
@@ -461,15 +464,73 @@ public class IngredientType {
             return false;
         IngredientType type = (IngredientType) o;
 		return (Arrays.equals(this.getSimpleNames(),type.getSimpleNames()) 
-				&& this.getSpecialName() == type.getSpecialName()
+				&& Objects.equals(this.getSpecialName(), type.getSpecialName())
 				&& this.getState() == type.getState() 
 				&& Temperature.compareTemperature(this.getStandardTemperatureObject(), 
 						                          type.getStandardTemperatureObject())==0);
 	}
 	
+	/**
+	 * Return the hash code of this ingredient type.
+	 * 
+	 * @return The hash code is computed from the contents of the simple names array, the special name,
+	 *         the state and the comparable value of the standard temperature, so that equal ingredient
+	 *         types have equal hash codes.
+	 */
 	@Override
     public int hashCode() {
-        return Objects.hash(getSimpleNames(), getSpecialName(), getState(),getStandardTemperatureObject());
+        Temperature temperature = getStandardTemperatureObject();
+        return Objects.hash(Arrays.hashCode(getSimpleNames()), getSpecialName(), getState(),
+        		            temperature.getHotness()-temperature.getColdness());
     }
 
+	
+	/************************************************************************
+	 * ENCODING
+	 ************************************************************************/
+	
+	/**
+	 * Write this ingredient type to the given output.
+	 * 
+	 * @param  out
+	 *         The output to write this ingredient type to.
+	 * @effect The number of simple names, each simple name, a flag indicating whether there is a
+	 *         special name, the special name if there is one, the state and the coldness and hotness
+	 *         of the standard temperature are written, in that order.
+	 * @throws IOException
+	 *         Writing to the given output failed.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(getSimpleNames().length);
+		for (String simpleName: getSimpleNames())
+			out.writeUTF(simpleName);
+		out.writeBoolean(getSpecialName()!=null);
+		if (getSpecialName()!=null)
+			out.writeUTF(getSpecialName());
+		out.writeByte(getState().ordinal());
+		out.writeLong(getStandardTemperatureObject().getColdness());
+		out.writeLong(getStandardTemperatureObject().getHotness());
+	}
+	
+	/**
+	 * Read an ingredient type from the given input, as written by writeTo.
+	 * 
+	 * @param  in
+	 *         The input to read the ingredient type from.
+	 * @return A new ingredient type with the simple names, special name, state and standard
+	 *         temperature read from the given input.
+	 * @throws IOException
+	 *         Reading from the given input failed.
+	 */
+	public static IngredientType readFrom(DataInput in) throws IOException {
+		String[] simpleNames = new String[in.readInt()];
+		for (int i = 0; i<simpleNames.length; i++)
+			simpleNames[i] = in.readUTF();
+		String specialName = in.readBoolean() ? in.readUTF() : null;
+		State state = State.values()[in.readByte()];
+		long coldness = in.readLong();
+		long hotness = in.readLong();
+		return new IngredientType(simpleNames, specialName, state, new Temperature(coldness, hotness));
+	}
+
 }
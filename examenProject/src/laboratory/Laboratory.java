@@ -2,14 +2,18 @@ package laboratory;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.ArrayList;
+import java.util.Collections;
 
 import alchemy.*;
 import be.kuleuven.cs.som.annotate.*;
 import laboratory.device.*;
+import recipe.Process;
 import recipe.Recipe;
+import temperature.Temperature;
 
 /**
  * A class describing a laboratory for storing and handling alchemic ingredients and devices.
@@ -335,7 +339,7 @@ public class Laboratory {
 			throw new CapacityException(this, "Type not found.");
 		if (!canHaveAsQuantity(type,newQuantity))
 			throw new CapacityException(this, "This type cannot have the given quantity.");
-		this.storage.put(type, newQuantity);
+		putQuantity(type, newQuantity);
 		
 	}
 	
@@ -366,7 +370,7 @@ public class Laboratory {
 		else {
 			if (!canHaveAsQuantity(type, quantity))
 				throw new CapacityException(this, "Invalid quantity");
-			this.storage.put(type, quantity);
+			putQuantity(type, quantity);
 		}
 
 	}
@@ -393,10 +397,10 @@ public class Laboratory {
 	 */
 	private void removeIngredientType(IngredientType type, int quantity) throws CapacityException {
 		if (getQuantityOf(type)==quantity) {
-			this.storage.remove(type);
+			removeQuantity(type);
 		}
 		else if (getQuantityOf(type)>quantity) {
-			this.storage.put(type, getQuantityOf(type)-quantity);
+			putQuantity(type, getQuantityOf(type)-quantity);
 		}
 		else
 			throw new CapacityException(this, "Tried to remove too much of an ingredient");
@@ -431,6 +435,91 @@ public class Laboratory {
 	 */
 	private Map<IngredientType,Integer> storage = new HashMap<IngredientType,Integer>();
 	
+	/**
+	 * Register the given quantity as the quantity of the given ingredient type in the storage
+	 * of this laboratory.
+	 * 
+	 * @param	type
+	 * 			The ingredient type to register the quantity of.
+	 * @param	quantity
+	 * 			The quantity to register.
+	 * @post	The storage of this laboratory maps the given type to the given quantity.
+	 * 			| this.storage.get(type) == quantity
+	 * @effect	If this laboratory has a journal, the new quantity is logged in it.
+	 * 			| if (getJournal() != null)
+	 * 			|   then getJournal().logQuantity(type, quantity)
+	 * @note	All changes to the storage go through this method or removeQuantity, so that 
+	 * 			a journal of this laboratory sees every one of them. The change is logged before
+	 * 			it is made, so the storage is left unchanged if logging it fails.
+	 */
+	private void putQuantity(IngredientType type, int quantity) {
+		if (getJournal() != null)
+			getJournal().logQuantity(type, quantity);
+		this.storage.put(type, quantity);
+		this.inventoryVersion++;
+	}
+	
+	/**
+	 * Remove the given ingredient type from the storage of this laboratory.
+	 * 
+	 * @param	type
+	 * 			The ingredient type to remove.
+	 * @post	The storage of this laboratory no longer contains the given type.
+	 * 			| !this.storage.containsKey(type)
+	 * @effect	If this laboratory has a journal, the removal is logged in it as a zero quantity.
+	 * 			| if (getJournal() != null)
+	 * 			|   then getJournal().logQuantity(type, 0)
+	 */
+	private void removeQuantity(IngredientType type) {
+		if (getJournal() != null)
+			getJournal().logQuantity(type, 0);
+		this.storage.remove(type);
+		this.inventoryVersion++;
+	}
+	
+	/**
+	 * Restore the quantity of the given ingredient type in the storage of this laboratory,
+	 * without any checks and without logging it.
+	 * 
+	 * @param	type
+	 * 			The ingredient type to restore the quantity of.
+	 * @param	quantity
+	 * 			The quantity to restore, zero if the type is not stored.
+	 * @post	If the given quantity is positive, the storage maps the given type to it.
+	 * 			Otherwise the storage no longer contains the given type.
+	 * @note	This method is meant for a journal recovering this laboratory.
+	 */
+	void restoreQuantity(IngredientType type, int quantity) {
+		if (quantity > 0)
+			this.storage.put(type, quantity);
+		else
+			this.storage.remove(type);
+		this.inventoryVersion++;
+	}
+	
+	/**
+	 * Return a read-only view on the storage of this laboratory.
+	 */
+	Map<IngredientType,Integer> getStorage() {
+		return Collections.unmodifiableMap(this.storage);
+	}
+	
+	/**
+	 * Return the version of the inventory of this laboratory.
+	 * 
+	 * @note	The version changes each time the storage or the devices of this laboratory change,
+	 * 			so anything derived from the inventory stays valid as long as the version is the same.
+	 */
+	@Basic @Raw
+	long getInventoryVersion() {
+		return this.inventoryVersion;
+	}
+	
+	/**
+	 * Variable registering the version of the inventory of this laboratory.
+	 */
+	private long inventoryVersion = 0;
+	
 	
 	/**
 	 * Store the ingredient contained by the given container in this laboratory.
@@ -452,10 +541,34 @@ public class Laboratory {
 	 *			| (hasAsIngredientType(ingredient.getType()) && !hasAsDevice(Kettle.class))
 	 */
 	public void store(IngredientContainer container) throws CapacityException {
-		AlchemicIngredient ingredient = container.getContents();
-		if ( !ingredient.getTemperatureObject().equals(ingredient.getStandardTemperatureObject()))
-			if (! ((hasAsDevice(Oven.class))
-					&& hasAsDevice(CoolingBox.class)))
+		storeIngredient(container.getContents());
+		container = null;
+	}
+	
+	/**
+	 * Store the given ingredient in this laboratory.
+	 * 
+	 * @param	ingredient
+	 * 			The ingredient to store.
+	 * @effect  The ingredient type of the given ingredient gets added as an ingredient type to the storage
+	 * 		    of this laboratory.
+	 * 			| addIngredientType(ingredient.getType(), ingredient.getQuantity())
+	 * @throws  CapacityException
+	 * 			The temperature of the given ingredient is not equal to the standard temperature
+	 * 			of this ingredient and this laboratory does not contain an oven and coolingbox.
+	 * 			| (Temperature.compareTemperature(ingredient.getTemperatureObject(),
+	 * 			|                                 ingredient.getStandardTemperatureObject()) != 0)
+	 * 			|  && (! (hasAsDevice(Oven.class) && hasAsDevice(CoolingBox.class)))
+	 * @throws	CapacityException
+	 *			This laboratory already contains an ingredient of the same type and there is no kettle present.
+	 *			| (hasAsIngredientType(ingredient.getType()) && !hasAsDevice(Kettle.class))
+	 * @note	Unlike store, this method accepts ingredients that do not fit in any container, such as
+	 * 			the output of a recipe executed in one batch.
+	 */
+	private void storeIngredient(AlchemicIngredient ingredient) throws CapacityException {
+		if (Temperature.compareTemperature(ingredient.getTemperatureObject(),
+				ingredient.getStandardTemperatureObject()) != 0)
+			if (! canBringToStandardTemperature())
 				throw new CapacityException(this,"This laboratory doesn't have the necessary devices "
 						+ "to bring this ingredient to its standard temperature for storage.");
 		if (hasAsIngredientType(ingredient.getType()))
@@ -463,7 +576,19 @@ public class Laboratory {
 				throw new CapacityException(this,"This laboratory doesn't have the necessary devices "
 						+ "to mix this ingredient with the stored ingredient.");
 		addIngredientType(ingredient.getType(),ingredient.getQuantity());
-		container = null;
+	}
+	
+	/**
+	 * Check whether this laboratory can bring ingredients to their standard temperature for storage.
+	 * 
+	 * @return	True if and only if this laboratory has an oven and a cooling box.
+	 * 			| result == (hasAsDevice(Oven.class) && hasAsDevice(CoolingBox.class))
+	 * @note	Storing an ingredient and planning a recipe whose output may not be at its standard
+	 * 			temperature both use this check, so a recipe that is planned as feasible can always
+	 * 			store its output.
+	 */
+	boolean canBringToStandardTemperature() {
+		return hasAsDevice(Oven.class) && hasAsDevice(CoolingBox.class);
 	}
 	
 	/**
@@ -684,8 +809,11 @@ public class Laboratory {
 			throw new IllegalArgumentException("Device is already in another laboratory");
 		if (hasAsDevice(device.getClass()))
 			throw new IllegalArgumentException("This laboratory already has a device of this type.");
+		if (getJournal() != null)
+			getJournal().logDevice(device, true);
 		this.devices.add(device);
 		device.setLaboratory(this);
+		this.inventoryVersion++;
 	}
 	
 	/**
@@ -703,8 +831,12 @@ public class Laboratory {
 	 * 			|	then ((new device).getLaboratory() == null)
 	 */
 	public void removeAsDevice(Device device) {
-		if (hasAsDevice(device))
+		if (hasAsDevice(device)) {
+			if (getJournal() != null)
+				getJournal().logDevice(device, false);
 			this.devices.remove(device);
+			this.inventoryVersion++;
+		}
 	}
 	
 	/**
@@ -724,6 +856,13 @@ public class Laboratory {
 		throw new CapacityException(this,"Device not found.");
 	}
 	
+	/**
+	 * Return a read-only view on the set of devices of this laboratory.
+	 */
+	Set<Device> getDevices() {
+		return Collections.unmodifiableSet(this.devices);
+	}
+	
 	/**
 	 * A set containing the devices of this laboratory.
 	 * 
@@ -753,11 +892,264 @@ public class Laboratory {
 	 * 		  The given recipe to execute.
 	 * @param amount
 	 * 		  The given amount of times.
+	 * @effect The recipe is executed once for the whole batch: each added ingredient is taken from
+	 * 		   the storage with its quantity multiplied by the given amount, each heat or cool process
+	 * 		   drives the oven or cooling box once with the scaled last added ingredient, and each mix
+	 * 		   process drives the kettle once with all ingredients added so far. The output of the final
+	 * 		   mix is stored in this laboratory.
+	 * 		   | storeIngredient(output)
+	 * @throws IllegalArgumentException
+	 * 		   The given recipe is not effective, the given amount is negative or the recipe heats or
+	 * 		   cools before any ingredient is added.
+	 * @throws CapacityException
+	 * 		   This laboratory cannot execute the given recipe the given amount of times.
+	 * 		   | !plan(recipe, amount).isFeasible()
+	 * @effect If this laboratory has a result cache that remembers the output of this execution,
+	 * 		   the scaled ingredients are taken from the storage and the remembered output is stored,
+	 * 		   without driving any device. Otherwise the output is remembered in the result cache, if any.
+	 * @note   A scaled ingredient is only split over several containers when it does not fit in
+	 * 		   the biggest container for its state. Devices that take one container at a time are
+	 * 		   driven once per container.
+	 * @note   The execution is all or nothing: if any step fails, the storage of this laboratory
+	 * 		   is restored to what it was before and the exception is passed on.
+	 */
+	public void execute(Recipe recipe, int amount) throws IllegalArgumentException, CapacityException {
+		RecipePlan plan = plan(recipe, amount);
+		if (!plan.isFeasible())
+			throw new CapacityException(this, "This laboratory cannot execute this recipe: " + plan);
+		if (amount == 0)
+			return;
+		
+		Map<IngredientType,Integer> before = new HashMap<IngredientType,Integer>(this.storage);
+		try {
+			executeBatch(recipe, plan, amount);
+		} catch (RuntimeException exc) {
+			restoreStorage(before);
+			throw exc;
+		}
+	}
+	
+	/**
+	 * Execute the given recipe the given amount of times in one batch, according to the given plan.
+	 * 
+	 * @param	recipe
+	 * 			The recipe to execute.
+	 * @param	plan
+	 * 			A feasible plan for executing the recipe.
+	 * @param	amount
+	 * 			The positive amount of times the recipe is executed.
+	 * @effect	See execute.
+	 * @note	If this method throws, the storage may have been changed partly. The caller is
+	 * 			responsible for restoring it.
 	 */
-	public void execute(Recipe recipe, int amount) {
+	@Model
+	private void executeBatch(Recipe recipe, RecipePlan plan, int amount) throws IllegalArgumentException, CapacityException {
+		List<Object> key = null;
+		if (getResultCache() != null) {
+			key = getResultCache().getKey(recipe, plan, this);
+			AlchemicIngredient cached = getResultCache().get(key);
+			if (cached != null) {
+				for (int index = 1; index<=recipe.getNbIngredients(); index++)
+					takeIngredient(recipe, plan, index, amount);
+				storeIngredient(cached);
+				return;
+			}
+		}
 		
+		List<List<IngredientContainer>> added = new ArrayList<List<IngredientContainer>>();
+		AlchemicIngredient output = null;
+		int nbAdded = 0;
+		for (int index = 1; index<=recipe.getNbProcesses(); index++) {
+			switch (recipe.getProcessAt(index)) {
+			case add:
+				nbAdded++;
+				added.add(inContainers(takeIngredient(recipe, plan, nbAdded, amount)));
+				output = null;
+				break;
+			case heat:
+			case cool:
+				if (added.isEmpty())
+					throw new IllegalArgumentException("This recipe changes a temperature before adding an ingredient.");
+				Device device = getDevice(recipe.getProcessAt(index) == Process.heat ? Oven.class : CoolingBox.class);
+				List<IngredientContainer> last = added.get(added.size()-1);
+				for (int i = 0; i<last.size(); i++) {
+					device.loadIngredient(last.get(i));
+					device.process();
+					last.set(i, device.emptyDevice());
+				}
+				break;
+			case mix:
+				Kettle kettle = (Kettle) getDevice(Kettle.class);
+				for (List<IngredientContainer> containers: added)
+					for (IngredientContainer container: containers)
+						kettle.loadIngredient(container);
+				kettle.process();
+				output = kettle.takeProcessedIngredient();
+				added.clear();
+				added.add(inContainers(output));
+				break;
+			}
+		}
+		if (key != null)
+			getResultCache().put(key, output);
+		storeIngredient(output);
+	}
+	
+	/**
+	 * Restore the storage of this laboratory to the given quantities.
+	 * 
+	 * @param	before
+	 * 			The quantity of each ingredient type in the storage to restore.
+	 * @post	The storage of this laboratory maps each type to its quantity in the given map,
+	 * 			and holds no other types.
+	 * 			| new.getStorage().equals(before)
+	 * @note	Only the types whose quantity differs are changed, through putQuantity and
+	 * 			removeQuantity, so a journal of this laboratory logs the restore as well.
+	 */
+	@Model
+	private void restoreStorage(Map<IngredientType,Integer> before) {
+		for (IngredientType type: new ArrayList<IngredientType>(this.storage.keySet()))
+			if (!before.containsKey(type))
+				removeQuantity(type);
+		for (Map.Entry<IngredientType,Integer> entry: before.entrySet())
+			if (!entry.getValue().equals(this.storage.get(entry.getKey())))
+				putQuantity(entry.getKey(), entry.getValue());
+	}
+	
+	/**
+	 * Take the scaled quantity of the ingredient at the given index of the given recipe from the
+	 * storage of this laboratory.
+	 * 
+	 * @param	recipe
+	 * 			The recipe that is executed.
+	 * @param	plan
+	 * 			A feasible plan for executing the recipe.
+	 * @param	index
+	 * 			The index of the ingredient in the recipe.
+	 * @param	amount
+	 * 			The amount of times the recipe is executed.
+	 * @return	A new ingredient of the stored type the ingredient is matched with, holding its
+	 * 			quantity times the given amount.
+	 * @effect	That quantity is removed from the storage.
+	 * 			| removeIngredientType(plan.getStoredTypeOf(index), result.getQuantity())
+	 */
+	@Model
+	private AlchemicIngredient takeIngredient(Recipe recipe, RecipePlan plan, int index, int amount) {
+		IngredientType type = plan.getStoredTypeOf(index);
+		int quantity = (int) (RecipePlanner.getQuantityIn(recipe.getIngredientAt(index), type)*amount);
+		removeIngredientType(type, quantity);
+		return new AlchemicIngredient(type, quantity);
 	}
 	
+	/**
+	 * Return the given ingredient in as few containers as possible.
+	 * 
+	 * @param	ingredient
+	 * 			The ingredient to put in containers.
+	 * @return	A list of containers that together hold the quantity of the given ingredient at its
+	 * 			temperature. Each container but the last is the biggest container for the state of the
+	 * 			ingredient, the last one is the smallest container that fits the rest.
+	 */
+	@Model
+	static List<IngredientContainer> inContainers(AlchemicIngredient ingredient) {
+		List<IngredientContainer> containers = new ArrayList<IngredientContainer>();
+		int biggest = Unit.getBiggestContainer(ingredient.getState()).getAbsoluteCapacity();
+		int remaining = ingredient.getQuantity();
+		do {
+			int quantity = Math.min(remaining, biggest);
+			AlchemicIngredient portion = ingredient;
+			if (quantity != ingredient.getQuantity()) {
+				portion = new AlchemicIngredient(ingredient.getType(), quantity);
+				portion.changeTemperatureTo(ingredient.getTemperatureObject());
+			}
+			containers.add(new IngredientContainer(portion, Unit.getContainer(ingredient.getState(), quantity)));
+			remaining -= quantity;
+		} while (remaining>0);
+		return containers;
+	}
+
+	/**
+	 * Return a plan for executing the given recipe the given amount of times in this laboratory.
+	 *
+	 * @param	recipe
+	 * 			The recipe to plan.
+	 * @param	amount
+	 * 			The amount of times the recipe is to be executed.
+	 * @return	A plan reporting the demand of the given recipe on the storage of this laboratory,
+	 * 			the ingredients that are short, the devices that are missing and the highest
+	 * 			amount of times this laboratory can execute the given recipe.
+	 * @throws	IllegalArgumentException
+	 * 			The given recipe is not effective or the given amount is negative.
+	 * 			| recipe == null || amount < 0
+	 * @note	The demand of a recipe is memoized until the recipe or the inventory of this
+	 * 			laboratory changes, so planning the same recipe again is cheap.
+	 */
+	public RecipePlan plan(Recipe recipe, int amount) throws IllegalArgumentException {
+		return this.planner.plan(recipe, amount);
+	}
+
+	/**
+	 * Variable referencing the planner of this laboratory.
+	 */
+	private final RecipePlanner planner = new RecipePlanner(this);
+	
+	/**
+	 * Return the cache remembering the outputs of recipes executed in this laboratory, null if
+	 * there is none.
+	 */
+	@Basic
+	public RecipeResultCache getResultCache() {
+		return this.resultCache;
+	}
+	
+	/**
+	 * Set the cache remembering the outputs of recipes executed in this laboratory.
+	 * 
+	 * @param	resultCache
+	 * 			The new result cache, null to execute every recipe on the devices.
+	 * @post	The result cache of this laboratory is the given cache.
+	 * 			| new.getResultCache() == resultCache
+	 */
+	public void setResultCache(RecipeResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+	
+	/**
+	 * Variable referencing the result cache of this laboratory.
+	 */
+	private RecipeResultCache resultCache = null;
+	
+	
+	/**************************************************
+	 * Journal
+	 **************************************************/
+	
+	/**
+	 * Return the journal that logs the changes to this laboratory, null if there is none.
+	 */
+	@Basic @Raw
+	public LaboratoryJournal getJournal() {
+		return this.journal;
+	}
+	
+	/**
+	 * Set the journal that logs the changes to this laboratory to the given journal.
+	 * 
+	 * @param  journal
+	 * 		   The new journal for this laboratory, possibly null.
+	 * @post   The journal of this laboratory is the given journal.
+	 * 		   | new.getJournal() == journal
+	 */
+	@Raw
+	void setJournal(LaboratoryJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * Variable referencing the journal of this laboratory.
+	 */
+	private LaboratoryJournal journal = null;
+	
 	
 	/**************************************************
 	 * Termination
@@ -781,8 +1173,11 @@ public class Laboratory {
 		for (Device device: this.devices) {
 			device.setLaboratory(null);
 			toRemove.add(device);
+			if (getJournal() != null)
+				getJournal().logDevice(device, false);
 		}
 		this.devices.removeAll(toRemove);
+		this.inventoryVersion++;
 		this.isTerminated = true;
 	}
 	
@@ -0,0 +1,711 @@
+package laboratory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import alchemy.IngredientType;
+import be.kuleuven.cs.som.annotate.*;
+import laboratory.device.*;
+import temperature.Temperature;
+
+/**
+ * A class of journals making the inventory of a laboratory durable.
+ *   Every change to the storage and the devices of the laboratory is appended to a write-ahead
+ *   log before it is made. Appended records are buffered and written to disk by group commit:
+ *   the first thread waiting for its record writes and forces all records buffered so far,
+ *   and the threads appending records while it does so wait for it and have their records
+ *   forced together by one of them next. Appending a record only returns once the commit
+ *   holding it is forced. Every so many records, a compact snapshot of the laboratory is
+ *   written and the log is started over.
+ *   A laboratory is recovered by loading the latest snapshot and replaying the log after it.
+ *
+ * @invar   The directory of each journal is effective.
+ *          | getDirectory() != null
+ * @invar   The laboratory of each journal has this journal as its journal.
+ *          | getLaboratory().getJournal() == this
+ *
+ * @note    A change that is logged but not yet made when the process stops is recovered as made.
+ * @note    Only the storage, the capacity and the devices of a laboratory are journaled, the
+ *          ingredients that are loaded in devices are not.
+ *
+ * @version 1.0
+ * @author  Tim Lauwers, Tim Robensyn, Robbe Van Biervliet
+ */
+public class LaboratoryJournal implements Closeable {
+
+	/**************************************************
+	 * CONSTRUCTORS
+	 **************************************************/
+
+	/**
+	 * Initialize a new journal for the given laboratory in the given directory.
+	 *
+	 * @param  laboratory
+	 * 		   The laboratory of the new journal.
+	 * @param  directory
+	 * 		   The directory of the new journal.
+	 * @param  nextSequenceNumber
+	 * 		   The sequence number of the first record of the new journal.
+	 * @param  snapshotInterval
+	 * 		   The number of records between two snapshots of the new journal.
+	 * @post   The new journal is the journal of the given laboratory.
+	 * 		   | laboratory.getJournal() == this
+	 */
+	@Raw
+	private LaboratoryJournal(Laboratory laboratory, Path directory, long nextSequenceNumber,
+			int snapshotInterval) {
+		this.laboratory = laboratory;
+		this.directory = directory;
+		this.nextSequenceNumber = nextSequenceNumber;
+		this.snapshotInterval = snapshotInterval;
+		laboratory.setJournal(this);
+	}
+
+	/**
+	 * Open the journal in the given directory and return its recovered laboratory.
+	 *
+	 * @param  directory
+	 * 		   The directory of the journal.
+	 * @param  capacity
+	 * 		   The capacity for a new laboratory, if the directory holds no snapshot yet.
+	 * @effect The laboratory is recovered with the default snapshot interval.
+	 * 		   | result == open(directory, capacity, getDefaultSnapshotInterval())
+	 * @throws IOException
+	 * 		   The journal could not be read or written.
+	 */
+	public static Laboratory open(Path directory, int capacity) throws IOException {
+		return open(directory, capacity, getDefaultSnapshotInterval());
+	}
+
+	/**
+	 * Open the journal in the given directory and return its recovered laboratory.
+	 *
+	 * @param  directory
+	 * 		   The directory of the journal.
+	 * @param  capacity
+	 * 		   The capacity for a new laboratory, if the directory holds no snapshot yet.
+	 * @param  snapshotInterval
+	 * 		   The number of records between two snapshots.
+	 * @return If the directory holds a snapshot, the laboratory of the latest snapshot after replaying
+	 * 		   all records logged after it. Otherwise a new empty laboratory with the given capacity.
+	 * 		   The returned laboratory has a new journal in the given directory as its journal.
+	 * @effect A snapshot of the recovered laboratory is taken, so the replayed records are compacted.
+	 * 		   | result.getJournal().snapshot()
+	 * @throws IOException
+	 * 		   The journal could not be read or written.
+	 * @throws IllegalArgumentException
+	 * 		   The given snapshot interval is not positive.
+	 * 		   | snapshotInterval <= 0
+	 */
+	public static Laboratory open(Path directory, int capacity, int snapshotInterval)
+			throws IOException, IllegalArgumentException {
+		if (snapshotInterval <= 0)
+			throw new IllegalArgumentException("The snapshot interval of a journal must be positive.");
+		Files.createDirectories(directory);
+
+		Laboratory laboratory;
+		long lastSequenceNumber;
+		Path snapshot = getLatestFile(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		if (snapshot == null) {
+			laboratory = new Laboratory(capacity);
+			lastSequenceNumber = 0;
+		}
+		else {
+			try (DataInputStream in = new DataInputStream(Files.newInputStream(snapshot))) {
+				if (in.readInt() != SNAPSHOT_MAGIC)
+					throw new IOException("Not a laboratory snapshot: " + snapshot);
+				lastSequenceNumber = in.readLong();
+				laboratory = new Laboratory(in.readInt());
+				int nbDevices = in.readInt();
+				for (int i = 0; i<nbDevices; i++)
+					laboratory.addAsDevice(readDevice(in));
+				int nbTypes = in.readInt();
+				for (int i = 0; i<nbTypes; i++)
+					laboratory.restoreQuantity(IngredientType.readFrom(in), in.readInt());
+			}
+		}
+
+		for (Path segment: getFiles(directory, LOG_PREFIX, LOG_SUFFIX))
+			lastSequenceNumber = replay(segment, laboratory, lastSequenceNumber);
+
+		LaboratoryJournal journal = new LaboratoryJournal(laboratory, directory, lastSequenceNumber+1,
+				snapshotInterval);
+		journal.snapshot();
+		return laboratory;
+	}
+
+	/**
+	 * Replay the records in the given log segment on the given laboratory.
+	 *
+	 * @param  segment
+	 * 		   The log segment to replay.
+	 * @param  laboratory
+	 * 		   The laboratory to replay the records on.
+	 * @param  lastSequenceNumber
+	 * 		   The sequence number of the last record that is already reflected in the laboratory.
+	 * @return The sequence number of the last record reflected in the laboratory after the replay.
+	 * @note   Replaying stops at the first incomplete or corrupt record, which is the tail of a
+	 * 		   commit that did not make it to disk.
+	 */
+	private static long replay(Path segment, Laboratory laboratory, long lastSequenceNumber) throws IOException {
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(segment))) {
+			while (true) {
+				byte[] record;
+				long checksum;
+				try {
+					int length = in.readInt();
+					checksum = in.readInt() & 0xFFFFFFFFL;
+					if (length <= 0 || length > MAXIMUM_RECORD_SIZE)
+						return lastSequenceNumber;
+					record = new byte[length];
+					in.readFully(record);
+				} catch (EOFException exc) {
+					return lastSequenceNumber;
+				}
+				CRC32 crc = new CRC32();
+				crc.update(record, 0, record.length);
+				if (crc.getValue() != checksum)
+					return lastSequenceNumber;
+
+				DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+				long sequenceNumber = recordIn.readLong();
+				if (sequenceNumber <= lastSequenceNumber)
+					continue;
+				switch (recordIn.readByte()) {
+				case QUANTITY_RECORD:
+					laboratory.restoreQuantity(IngredientType.readFrom(recordIn), recordIn.readInt());
+					break;
+				case DEVICE_ADDED_RECORD:
+					Device device = readDevice(recordIn);
+					if (!laboratory.hasAsDevice(device.getClass()))
+						laboratory.addAsDevice(device);
+					break;
+				case DEVICE_REMOVED_RECORD:
+					Class<?> deviceClass = readDevice(recordIn).getClass();
+					if (laboratory.hasAsDevice(deviceClass))
+						laboratory.removeAsDevice(laboratory.getDevice(deviceClass));
+					break;
+				default:
+					throw new IOException("Unknown record in laboratory journal: " + segment);
+				}
+				lastSequenceNumber = sequenceNumber;
+			}
+		}
+	}
+
+
+	/**************************************************
+	 * LABORATORY AND DIRECTORY
+	 **************************************************/
+
+	/**
+	 * Return the laboratory whose changes are logged by this journal.
+	 */
+	@Basic @Immutable
+	public Laboratory getLaboratory() {
+		return this.laboratory;
+	}
+
+	/**
+	 * Variable referencing the laboratory of this journal.
+	 */
+	private final Laboratory laboratory;
+
+	/**
+	 * Return the directory this journal keeps its snapshots and log segments in.
+	 */
+	@Basic @Immutable
+	public Path getDirectory() {
+		return this.directory;
+	}
+
+	/**
+	 * Variable referencing the directory of this journal.
+	 */
+	private final Path directory;
+
+
+	/**************************************************
+	 * LOGGING
+	 **************************************************/
+
+	/**
+	 * Log the given quantity as the new quantity of the given ingredient type.
+	 *
+	 * @param  type
+	 * 		   The ingredient type whose quantity changed.
+	 * @param  quantity
+	 * 		   The new quantity of the given type, zero if it was removed.
+	 * @effect A quantity record with the given type and quantity is appended.
+	 */
+	void logQuantity(IngredientType type, int quantity) {
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(record);
+		try {
+			out.writeByte(QUANTITY_RECORD);
+			type.writeTo(out);
+			out.writeInt(quantity);
+		} catch (IOException exc) {
+			throw new IllegalStateException(exc);
+		}
+		awaitCommit(append(record.toByteArray()));
+	}
+
+	/**
+	 * Log that the given device has been added to or removed from the laboratory.
+	 *
+	 * @param  device
+	 * 		   The device that was added or removed.
+	 * @param  added
+	 * 		   True if the device was added, false if it was removed.
+	 * @effect A device record for the given device is appended.
+	 */
+	void logDevice(Device device, boolean added) {
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(record);
+		try {
+			out.writeByte(added ? DEVICE_ADDED_RECORD : DEVICE_REMOVED_RECORD);
+			writeDevice(device, out);
+		} catch (IOException exc) {
+			throw new IllegalStateException(exc);
+		}
+		awaitCommit(append(record.toByteArray()));
+	}
+
+	/**
+	 * Append a record with the given contents to the commit buffer.
+	 *
+	 * @param  contents
+	 * 		   The kind and the contents of the record, as written by the calling thread.
+	 * @return The sequence number given to the record.
+	 * @effect If this journal has appended as many records as its snapshot interval since its last
+	 * 		   snapshot, a new snapshot is taken before the record is appended.
+	 * @throws IllegalStateException
+	 * 		   This journal is closed or a previous commit failed.
+	 * @note   The snapshot is taken before the record, and not after it, because the change of the
+	 * 		   record is only made in the laboratory once it is logged.
+	 */
+	private synchronized long append(byte[] contents) throws IllegalStateException {
+		checkUsable();
+		if (this.recordsSinceSnapshot >= this.snapshotInterval) {
+			try {
+				snapshot();
+			} catch (IOException exc) {
+				throw new IllegalStateException("The snapshot of this journal failed.", exc);
+			}
+		}
+		long sequenceNumber = this.nextSequenceNumber++;
+		ByteBuffer record = ByteBuffer.allocate(16+contents.length);
+		record.putInt(8+contents.length).putInt(0).putLong(sequenceNumber).put(contents);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 8, 8+contents.length);
+		record.putInt(4, (int) crc.getValue());
+		this.buffer.write(record.array(), 0, record.capacity());
+		this.bufferedSequenceNumber = sequenceNumber;
+		this.recordsSinceSnapshot++;
+		return sequenceNumber;
+	}
+
+	/**
+	 * Wait until the record with the given sequence number is committed.
+	 *
+	 * @throws IllegalStateException
+	 * 		   A commit failed, or this journal was closed, before the record was committed.
+	 * @note   If no other thread is committing, the calling thread commits all records buffered so
+	 * 		   far itself, without holding the monitor of this journal while it writes and forces them.
+	 * 		   Threads appending records meanwhile wait for it, and the first of them to wake up
+	 * 		   commits all of their records at once.
+	 */
+	private void awaitCommit(long sequenceNumber) throws IllegalStateException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				FileChannel segment;
+				byte[] records;
+				long lastSequenceNumber;
+				synchronized (this) {
+					while (this.committedSequenceNumber < sequenceNumber && this.isCommitting) {
+						checkUsable();
+						try {
+							wait();
+						} catch (InterruptedException exc) {
+							interrupted = true;
+						}
+					}
+					if (this.committedSequenceNumber >= sequenceNumber)
+						return;
+					checkUsable();
+					this.isCommitting = true;
+					segment = this.segment;
+					records = this.buffer.toByteArray();
+					this.buffer.reset();
+					lastSequenceNumber = this.bufferedSequenceNumber;
+				}
+				IOException failure = null;
+				try {
+					write(segment, records);
+				} catch (IOException exc) {
+					failure = exc;
+				}
+				synchronized (this) {
+					this.isCommitting = false;
+					if (failure != null)
+						this.failure = failure;
+					else
+						this.committedSequenceNumber = lastSequenceNumber;
+					notifyAll();
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Check whether records can still be appended to and committed in this journal.
+	 *
+	 * @throws IllegalStateException
+	 * 		   This journal is closed or a previous commit failed.
+	 */
+	private void checkUsable() throws IllegalStateException {
+		if (this.failure != null)
+			throw new IllegalStateException("A commit of this journal failed.", this.failure);
+		if (isClosed())
+			throw new IllegalStateException("This journal is closed.");
+	}
+
+	/**
+	 * Return the sequence number of the last record appended to this journal.
+	 */
+	public synchronized long getLastSequenceNumber() {
+		return this.nextSequenceNumber-1;
+	}
+
+	/**
+	 * Variable registering the sequence number of the next record.
+	 */
+	private long nextSequenceNumber;
+
+	/**
+	 * Variable registering the number of records appended since the last snapshot.
+	 */
+	private int recordsSinceSnapshot = 0;
+
+	/**
+	 * Variable registering the sequence number of the last record written to the commit buffer.
+	 */
+	private long bufferedSequenceNumber = 0;
+
+	/**
+	 * Variable registering the sequence number of the last record that is forced to disk.
+	 */
+	private long committedSequenceNumber = 0;
+
+	/**
+	 * The buffer collecting the records that are appended but not yet committed.
+	 */
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+	/**
+	 * The largest record size that is accepted while replaying.
+	 */
+	private static final int MAXIMUM_RECORD_SIZE = 1 << 20;
+
+
+	/**************************************************
+	 * GROUP COMMIT
+	 **************************************************/
+
+	/**
+	 * Commit all records appended so far: write them to the current log segment and force
+	 * them to disk.
+	 *
+	 * @post   All threads waiting for the records appended so far are woken up.
+	 * @throws IOException
+	 * 		   The records could not be written. No more records can be appended to this journal.
+	 * @note   A commit started by a waiting thread is completed first.
+	 */
+	public synchronized void commit() throws IOException {
+		boolean interrupted = false;
+		while (this.isCommitting) {
+			try {
+				wait();
+			} catch (InterruptedException exc) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (this.segment == null)
+			return;
+		try {
+			write(this.segment, this.buffer.toByteArray());
+		} catch (IOException exc) {
+			this.failure = exc;
+			throw exc;
+		} finally {
+			this.buffer.reset();
+			notifyAll();
+		}
+		this.committedSequenceNumber = this.bufferedSequenceNumber;
+	}
+
+	/**
+	 * Write the given records to the given log segment and force them to disk.
+	 */
+	private static void write(FileChannel segment, byte[] records) throws IOException {
+		ByteBuffer contents = ByteBuffer.wrap(records);
+		while (contents.hasRemaining())
+			segment.write(contents);
+		segment.force(false);
+	}
+
+	/**
+	 * Variable registering whether a thread is committing records without holding the monitor
+	 * of this journal.
+	 */
+	private boolean isCommitting = false;
+
+	/**
+	 * Variable referencing the failure of the last commit, if it failed.
+	 */
+	private volatile IOException failure = null;
+
+	/**
+	 * Variable referencing the channel of the current log segment.
+	 */
+	private FileChannel segment = null;
+
+
+	/**************************************************
+	 * SNAPSHOTS
+	 **************************************************/
+
+	/**
+	 * Take a snapshot of the laboratory of this journal and start a new log segment.
+	 *
+	 * @effect All records appended so far are committed.
+	 * 		   | commit()
+	 * @post   The directory of this journal holds a snapshot of the capacity, devices and storage of
+	 * 		   the laboratory as of the last appended record, and a new empty log segment. Older snapshots
+	 * 		   and all other log segments are deleted.
+	 * @note   The new log segment is truncated if it exists, so records appended after recovering
+	 * 		   from a torn log never follow the unreadable tail of that log.
+	 * @throws IOException
+	 * 		   The snapshot could not be written.
+	 */
+	public synchronized void snapshot() throws IOException {
+		commit();
+		long sequenceNumber = getLastSequenceNumber();
+		Path snapshot = getDirectory().resolve(fileName(SNAPSHOT_PREFIX, sequenceNumber, SNAPSHOT_SUFFIX));
+		Path temporary = getDirectory().resolve(snapshot.getFileName() + ".tmp");
+
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeLong(sequenceNumber);
+			out.writeInt(getLaboratory().getCapacity());
+			out.writeInt(getLaboratory().getDevices().size());
+			for (Device device: getLaboratory().getDevices())
+				writeDevice(device, out);
+			Map<IngredientType,Integer> storage = getLaboratory().getStorage();
+			out.writeInt(storage.size());
+			for (Map.Entry<IngredientType,Integer> entry: storage.entrySet()) {
+				entry.getKey().writeTo(out);
+				out.writeInt(entry.getValue());
+			}
+			ByteBuffer contents = ByteBuffer.wrap(bytes.toByteArray());
+			while (contents.hasRemaining())
+				channel.write(contents);
+			channel.force(true);
+		}
+		Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		if (this.segment != null)
+			this.segment.close();
+		Path segment = getDirectory().resolve(fileName(LOG_PREFIX, sequenceNumber+1, LOG_SUFFIX));
+		this.segment = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		this.segment.force(true);
+		this.recordsSinceSnapshot = 0;
+
+		for (Path file: getFiles(getDirectory(), SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX))
+			if (!file.equals(snapshot))
+				Files.delete(file);
+		for (Path file: getFiles(getDirectory(), LOG_PREFIX, LOG_SUFFIX))
+			if (!file.equals(segment))
+				Files.delete(file);
+	}
+
+	/**
+	 * Return the default number of records between two snapshots.
+	 */
+	@Immutable
+	public static int getDefaultSnapshotInterval() {
+		return 10000;
+	}
+
+	/**
+	 * Variable registering the number of records between two snapshots.
+	 */
+	private final int snapshotInterval;
+
+
+	/**************************************************
+	 * FILES
+	 **************************************************/
+
+	/**
+	 * Return the name of the file with the given prefix, sequence number and suffix.
+	 *
+	 * @note   Sequence numbers are zero padded, so file names sort in the order of their sequence numbers.
+	 */
+	private static String fileName(String prefix, long sequenceNumber, String suffix) {
+		return String.format("%s%020d%s", prefix, sequenceNumber, suffix);
+	}
+
+	/**
+	 * Return the sequence number in the name of the given file.
+	 */
+	private static long sequenceNumberOf(Path file, String prefix, String suffix) {
+		String name = file.getFileName().toString();
+		return Long.parseLong(name.substring(prefix.length(), name.length()-suffix.length()));
+	}
+
+	/**
+	 * Return the files in the given directory with the given prefix and suffix, in the order of
+	 * their sequence numbers.
+	 */
+	private static List<Path> getFiles(Path directory, String prefix, String suffix) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+			for (Path file: stream)
+				files.add(file);
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * Return the file in the given directory with the given prefix and suffix and the highest
+	 * sequence number, null if there is none.
+	 */
+	private static Path getLatestFile(Path directory, String prefix, String suffix) throws IOException {
+		List<Path> files = getFiles(directory, prefix, suffix);
+		return files.isEmpty() ? null : files.get(files.size()-1);
+	}
+
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".dat";
+	private static final String LOG_PREFIX = "journal-";
+	private static final String LOG_SUFFIX = ".wal";
+	private static final int SNAPSHOT_MAGIC = 0x4C414231;
+
+	private static final byte QUANTITY_RECORD = 1;
+	private static final byte DEVICE_ADDED_RECORD = 2;
+	private static final byte DEVICE_REMOVED_RECORD = 3;
+
+
+	/**************************************************
+	 * DEVICES
+	 **************************************************/
+
+	/**
+	 * Write the kind of the given device and its temperature, if it has one, to the given output.
+	 */
+	private static void writeDevice(Device device, DataOutputStream out) throws IOException {
+		Integer kind = deviceKinds.get(device.getClass());
+		if (kind == null)
+			throw new IOException("Devices of this class cannot be journaled: " + device.getClass());
+		out.writeByte(kind);
+		if (device instanceof TemperatureDevice) {
+			Temperature temperature = ((TemperatureDevice) device).getTemperatureObject();
+			out.writeLong(temperature.getColdness());
+			out.writeLong(temperature.getHotness());
+		}
+	}
+
+	/**
+	 * Read a new empty device as written by writeDevice from the given input.
+	 */
+	private static Device readDevice(DataInput in) throws IOException {
+		switch (in.readByte()) {
+		case 1: return new Kettle();
+		case 2: return new Transmogrifier();
+		case 3: return new Oven(new Temperature(in.readLong(), in.readLong()));
+		case 4: return new CoolingBox(new Temperature(in.readLong(), in.readLong()));
+		default: throw new IOException("Unknown device in laboratory journal.");
+		}
+	}
+
+	/**
+	 * Map from the device classes that can be journaled to the kind they are written as.
+	 */
+	private static final Map<Class<?>,Integer> deviceKinds = new HashMap<Class<?>,Integer>();
+	static {
+		deviceKinds.put(Kettle.class, 1);
+		deviceKinds.put(Transmogrifier.class, 2);
+		deviceKinds.put(Oven.class, 3);
+		deviceKinds.put(CoolingBox.class, 4);
+	}
+
+
+	/**************************************************
+	 * CLOSING
+	 **************************************************/
+
+	/**
+	 * Close this journal.
+	 *
+	 * @effect All records appended so far are committed.
+	 * 		   | commit()
+	 * @post   This journal is closed and no longer the journal of its laboratory.
+	 * 		   | new.isClosed() && getLaboratory().getJournal() == null
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (isClosed())
+			return;
+		commit();
+		this.segment.close();
+		this.isClosed = true;
+		notifyAll();
+		getLaboratory().setJournal(null);
+	}
+
+	/**
+	 * Check whether this journal is closed.
+	 */
+	@Basic
+	public boolean isClosed() {
+		return this.isClosed;
+	}
+
+	/**
+	 * Variable registering whether this journal is closed.
+	 */
+	private boolean isClosed = false;
+
+}
@@ -1,10 +1,18 @@
 package laboratory;
 import alchemy.*;
 import laboratory.device.*;
+import recipe.Process;
+import recipe.Recipe;
 import temperature.Temperature;
 
 import static org.junit.Assert.*;
 import org.junit.*;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -303,6 +311,213 @@ public class LaboratoryTest {
 		assertFalse(laboratory.hasAsDevice(transmogrifier));
 	}
 	
+	@Test
+	public void testJournal_Recovery() throws IOException {
+		Path directory = Files.createTempDirectory("laboratory");
+		Laboratory journaled = LaboratoryJournal.open(directory, 5);
+		journaled.addAsDevice(new Oven(new Temperature(0,200)));
+		journaled.addAsDevice(new CoolingBox(new Temperature(10,0)));
+		journaled.store(new IngredientContainer(water, Unit.getContainer(
+				water.getState(), water.getQuantity())));
+		journaled.store(new IngredientContainer(crumbs, Unit.getContainer(
+				crumbs.getState(), crumbs.getQuantity())));
+		journaled.getJournal().close();
+		
+		Laboratory recovered = LaboratoryJournal.open(directory, 1);
+		assertEquals(5, recovered.getCapacity());
+		assertEquals(24, recovered.getQuantityOf(water.getType()));
+		assertEquals(30, recovered.getQuantityOf(crumbs.getType()));
+		assertTrue(recovered.hasAsDevice(Oven.class));
+		assertTrue(recovered.hasAsDevice(CoolingBox.class));
+		recovered.getJournal().close();
+		deleteDirectory(directory);
+	}
+	
+	@Test
+	public void testJournal_TornTail() throws IOException {
+		Path directory = Files.createTempDirectory("laboratory");
+		Laboratory journaled = LaboratoryJournal.open(directory, 5);
+		journaled.store(new IngredientContainer(crumbs, Unit.getContainer(
+				crumbs.getState(), crumbs.getQuantity())));
+		journaled.getJournal().close();
+		LaboratoryJournal.open(directory, 5).getJournal().close();
+		try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, "*.wal")) {
+			for (Path segment: segments)
+				Files.write(segment, new byte[] {1, 2, 3, 4, 5}, StandardOpenOption.APPEND);
+		}
+		
+		Laboratory recovered = LaboratoryJournal.open(directory, 5);
+		assertEquals(30, recovered.getQuantityOf(crumbs.getType()));
+		recovered.store(new IngredientContainer(water, Unit.getContainer(
+				water.getState(), water.getQuantity())));
+		recovered.getJournal().close();
+		
+		Laboratory reopened = LaboratoryJournal.open(directory, 5);
+		assertTrue(reopened.hasAsIngredientType(water.getType()));
+		assertEquals(30, reopened.getQuantityOf(crumbs.getType()));
+		reopened.getJournal().close();
+		deleteDirectory(directory);
+	}
+	
+	private static void deleteDirectory(Path directory) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file: files)
+				Files.delete(file);
+		}
+		Files.delete(directory);
+	}
+	
+	@Test
+	public void testPlan() {
+		Recipe recipe = new Recipe();
+		recipe.addIngredientAt(new AlchemicIngredient(6), 1);
+		recipe.addIngredientAt(new AlchemicIngredient(crumbs.getType(), 10), 2);
+		
+		assertEquals(3, laboratory.plan(recipe, 1).getMaximumBatchSize());
+		assertTrue(laboratory.plan(recipe, 3).isFeasible());
+		RecipePlan plan = laboratory.plan(recipe, 4);
+		assertFalse(plan.isFeasible());
+		assertEquals(24L, plan.getDemand().get(water.getType()).longValue());
+		assertEquals(10L, plan.getShortages().get("Crumbs").longValue());
+		
+		laboratory.store(new IngredientContainer(crumbs, Unit.getContainer(
+				crumbs.getState(), crumbs.getQuantity())));
+		assertEquals(4, laboratory.plan(recipe, 4).getMaximumBatchSize());
+		
+		RecipePlan empty = laboratory_empty.plan(recipe, 1);
+		assertFalse(empty.isFeasible());
+		assertTrue(empty.getMissingDevices().contains(Kettle.class));
+	}
+	
+	@Test
+	public void testExecute() {
+		Recipe recipe = new Recipe();
+		recipe.addIngredientAt(new AlchemicIngredient(6), 1);
+		recipe.addIngredientAt(new AlchemicIngredient(crumbs.getType(), 10), 2);
+		laboratory.execute(recipe, 3);
+		assertEquals(6, laboratory.getQuantityOf(water.getType()));
+		assertFalse(laboratory.hasAsIngredientType(crumbs.getType()));
+		assertEquals(2, laboratory.getNbIngredients());
+	}
+	
+	@Test
+	public void testExecute_SplitOverContainers() {
+		Map<IngredientType,Integer> waterStorage = new HashMap<IngredientType,Integer>();
+		waterStorage.put(water.getType(), 20000);
+		Set<Device> batchDevices = new HashSet<Device>();
+		batchDevices.add(new Oven(new Temperature(0,200)));
+		batchDevices.add(new CoolingBox(new Temperature(0,0)));
+		batchDevices.add(new Kettle());
+		Laboratory batchLaboratory = new Laboratory(5, waterStorage, batchDevices);
+		
+		ArrayList<Process> processes = new ArrayList<Process>();
+		processes.add(Process.add);
+		processes.add(Process.heat);
+		processes.add(Process.mix);
+		ArrayList<AlchemicIngredient> ingredients = new ArrayList<AlchemicIngredient>();
+		ingredients.add(new AlchemicIngredient(100));
+		batchLaboratory.execute(new Recipe(processes, ingredients), 150);
+		
+		assertEquals(1, batchLaboratory.getNbIngredients());
+		assertEquals(20000, batchLaboratory.getQuantityOf(water.getType()));
+	}
+	
+	@Test
+	public void testExecute_ResultCache() {
+		laboratory.setResultCache(new RecipeResultCache(2));
+		Recipe recipe = new Recipe();
+		recipe.addIngredientAt(new AlchemicIngredient(6), 1);
+		recipe.addIngredientAt(new AlchemicIngredient(crumbs.getType(), 10), 2);
+		laboratory.execute(recipe, 1);
+		int output = laboratory.getNbIngredients();
+		laboratory.execute(recipe, 1);
+		
+		assertEquals(1, laboratory.getResultCache().getNbMisses());
+		assertEquals(1, laboratory.getResultCache().getNbHits());
+		assertEquals(12, laboratory.getQuantityOf(water.getType()));
+		assertEquals(10, laboratory.getQuantityOf(crumbs.getType()));
+		assertEquals(output, laboratory.getNbIngredients());
+	}
+	
+	@Test
+	public void testExecute_IllegalCase_RestoresStorage() {
+		Kettle usedKettle = new Kettle();
+		usedKettle.loadIngredient(new IngredientContainer(new AlchemicIngredient(6), Unit.getContainer(
+				State.LIQUID, 6)));
+		usedKettle.process();
+		Set<Device> usedDevices = new HashSet<Device>();
+		usedDevices.add(new Oven(new Temperature(0,200)));
+		usedDevices.add(new CoolingBox(new Temperature(0,0)));
+		usedDevices.add(usedKettle);
+		Laboratory usedLaboratory = new Laboratory(5, storage, usedDevices);
+		Recipe recipe = new Recipe();
+		recipe.addIngredientAt(new AlchemicIngredient(6), 1);
+		recipe.addIngredientAt(new AlchemicIngredient(crumbs.getType(), 10), 2);
+		
+		assertTrue(usedLaboratory.plan(recipe, 1).isFeasible());
+		try {
+			usedLaboratory.execute(recipe, 1);
+			fail();
+		} catch (CapacityException exc) {}
+		assertEquals(24, usedLaboratory.getQuantityOf(water.getType()));
+		assertEquals(30, usedLaboratory.getQuantityOf(crumbs.getType()));
+		assertEquals(2, usedLaboratory.getNbIngredients());
+		
+		usedKettle.takeProcessedIngredient();
+		assertTrue(usedLaboratory.plan(recipe, 1).isFeasible());
+		usedLaboratory.execute(recipe, 1);
+		assertEquals(18, usedLaboratory.getQuantityOf(water.getType()));
+		assertEquals(20, usedLaboratory.getQuantityOf(crumbs.getType()));
+	}
+	
+	@Test
+	public void testPlan_OutputTemperature() {
+		Set<Device> kettleOnly = new HashSet<Device>();
+		kettleOnly.add(new Kettle());
+		Laboratory kettleLaboratory = new Laboratory(5, storage, kettleOnly);
+		Recipe recipe = new Recipe();
+		recipe.addIngredientAt(new AlchemicIngredient(6), 1);
+		recipe.addIngredientAt(new AlchemicIngredient(crumbs.getType(), 10), 2);
+		RecipePlan plan = kettleLaboratory.plan(recipe, 1);
+		assertFalse(plan.isFeasible());
+		assertTrue(plan.getMissingDevices().contains(Oven.class));
+		assertTrue(plan.getMissingDevices().contains(CoolingBox.class));
+		try {
+			kettleLaboratory.execute(recipe, 1);
+			fail();
+		} catch (CapacityException exc) {}
+		assertEquals(24, kettleLaboratory.getQuantityOf(water.getType()));
+		assertEquals(30, kettleLaboratory.getQuantityOf(crumbs.getType()));
+		
+		assertTrue(laboratory.plan(recipe, 1).isFeasible());
+		laboratory.execute(recipe, 1);
+		assertEquals(18, laboratory.getQuantityOf(water.getType()));
+	}
+	
+	@Test
+	public void testPlan_TemperatureDevices() {
+		Set<Device> ovenOnly = new HashSet<Device>();
+		ovenOnly.add(new Oven(new Temperature(0,0)));
+		ovenOnly.add(new Kettle());
+		Laboratory ovenLaboratory = new Laboratory(5, storage, ovenOnly);
+		ArrayList<Process> processes = new ArrayList<Process>();
+		processes.add(Process.add);
+		processes.add(Process.heat);
+		processes.add(Process.mix);
+		ArrayList<AlchemicIngredient> ingredients = new ArrayList<AlchemicIngredient>();
+		ingredients.add(new AlchemicIngredient(6));
+		RecipePlan plan = ovenLaboratory.plan(new Recipe(processes, ingredients), 1);
+		assertFalse(plan.isFeasible());
+		assertTrue(plan.getMissingDevices().contains(CoolingBox.class));
+	}
+	
+	@Test (expected = CapacityException.class)
+	public void testExecute_IllegalCase_Infeasible() {
+		Recipe recipe = new Recipe();
+		recipe.addIngredientAt(new AlchemicIngredient(6), 1);
+		laboratory.execute(recipe, 5);
+	}
+	
 	@Test
 	public void testTerminate() {
 		assertFalse(laboratory_terminated.isTerminated());
@@ -0,0 +1,156 @@
+package laboratory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import alchemy.IngredientType;
+import be.kuleuven.cs.som.annotate.*;
+import laboratory.device.Device;
+import recipe.Recipe;
+
+/**
+ * A class of plans reporting whether a laboratory can execute a recipe a given number of times.
+ *
+ * @invar   The demand of each plan is effective.
+ *          | getDemand() != null
+ * @invar   The maximum batch size of each plan is not negative.
+ *          | getMaximumBatchSize() >= 0
+ *
+ * @version 1.0
+ * @author  Tim Lauwers, Tim Robensyn, Robbe Van Biervliet
+ */
+@Value
+public class RecipePlan {
+
+	/**
+	 * Initialize a new plan with the given recipe, amount, demand, shortages, missing devices and
+	 * maximum batch size.
+	 *
+	 * @param  recipe
+	 * 		   The recipe of the new plan.
+	 * @param  amount
+	 * 		   The number of times the recipe is planned to be executed.
+	 * @param  demand
+	 * 		   The total quantity needed of each stored ingredient type.
+	 * @param  shortages
+	 * 		   The quantity that is missing of each ingredient that is short.
+	 * @param  missingDevices
+	 * 		   The classes of the devices the recipe needs but the laboratory does not have.
+	 * @param  maximumBatchSize
+	 * 		   The highest number of times the laboratory can execute the recipe.
+	 * @param  storedTypes
+	 * 		   The stored type each ingredient of the recipe is matched with.
+	 */
+	@Raw
+	RecipePlan(Recipe recipe, int amount, Map<IngredientType,Long> demand, Map<String,Long> shortages,
+			Set<Class<? extends Device>> missingDevices, int maximumBatchSize, List<IngredientType> storedTypes) {
+		this.recipe = recipe;
+		this.amount = amount;
+		this.demand = Collections.unmodifiableMap(demand);
+		this.shortages = Collections.unmodifiableMap(shortages);
+		this.missingDevices = Collections.unmodifiableSet(missingDevices);
+		this.maximumBatchSize = maximumBatchSize;
+		this.storedTypes = Collections.unmodifiableList(storedTypes);
+	}
+
+	/**
+	 * Return the recipe of this plan.
+	 */
+	@Basic @Immutable
+	public Recipe getRecipe() {
+		return this.recipe;
+	}
+
+	private final Recipe recipe;
+
+	/**
+	 * Return the number of times the recipe of this plan is planned to be executed.
+	 */
+	@Basic @Immutable
+	public int getAmount() {
+		return this.amount;
+	}
+
+	private final int amount;
+
+	/**
+	 * Return the total quantity needed of each stored ingredient type, in the drops or pinches
+	 * of that type.
+	 *
+	 * @note Ingredients of the recipe that are not stored in the laboratory are not in this map,
+	 *       they are reported as shortages.
+	 */
+	@Basic @Immutable
+	public Map<IngredientType,Long> getDemand() {
+		return this.demand;
+	}
+
+	private final Map<IngredientType,Long> demand;
+
+	/**
+	 * Return the quantity that is missing of each ingredient that is short, by the simple name of
+	 * the ingredient in the recipe.
+	 */
+	@Basic @Immutable
+	public Map<String,Long> getShortages() {
+		return this.shortages;
+	}
+
+	private final Map<String,Long> shortages;
+
+	/**
+	 * Return the classes of the devices the recipe of this plan needs, but the laboratory does not have.
+	 */
+	@Basic @Immutable
+	public Set<Class<? extends Device>> getMissingDevices() {
+		return this.missingDevices;
+	}
+
+	private final Set<Class<? extends Device>> missingDevices;
+
+	/**
+	 * Return the highest number of times the laboratory can execute the recipe of this plan.
+	 */
+	@Basic @Immutable
+	public int getMaximumBatchSize() {
+		return this.maximumBatchSize;
+	}
+
+	private final int maximumBatchSize;
+
+	/**
+	 * Return the stored type the ingredient at the given index in the recipe of this plan is
+	 * matched with, null if it is not stored.
+	 */
+	@Basic @Immutable
+	IngredientType getStoredTypeOf(int index) {
+		return this.storedTypes.get(index-1);
+	}
+
+	private final List<IngredientType> storedTypes;
+
+	/**
+	 * Check whether the laboratory can execute the recipe of this plan the planned number of times.
+	 *
+	 * @return True if and only if no devices are missing and the planned amount does not exceed
+	 * 		   the maximum batch size.
+	 * 		   | result == (getMissingDevices().isEmpty() && getAmount() <= getMaximumBatchSize())
+	 */
+	public boolean isFeasible() {
+		return getMissingDevices().isEmpty() && getAmount() <= getMaximumBatchSize();
+	}
+
+	/**
+	 * Return a textual representation of this plan.
+	 */
+	@Override
+	public String toString() {
+		if (isFeasible())
+			return "Feasible plan for " + getAmount() + " execution(s), at most " + getMaximumBatchSize();
+		return "Infeasible plan for " + getAmount() + " execution(s), at most " + getMaximumBatchSize()
+				+ ", missing devices " + getMissingDevices() + ", shortages " + getShortages();
+	}
+
+}
@@ -0,0 +1,332 @@
+package laboratory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import alchemy.*;
+import be.kuleuven.cs.som.annotate.*;
+import laboratory.device.*;
+import recipe.Process;
+import recipe.Recipe;
+import temperature.Temperature;
+
+/**
+ * A class of planners checking whether a laboratory can execute recipes.
+ *   The demand of a recipe on the inventory of the laboratory is computed in one pass over its
+ *   ingredients and memoized per recipe. A memoized demand is reused as long as neither the recipe
+ *   nor the inventory of the laboratory has changed since.
+ *
+ * @invar   The laboratory of each planner is effective.
+ *          | getLaboratory() != null
+ *
+ * @version 1.0
+ * @author  Tim Lauwers, Tim Robensyn, Robbe Van Biervliet
+ */
+class RecipePlanner {
+
+	/**
+	 * Initialize a new planner for the given laboratory.
+	 *
+	 * @param  laboratory
+	 * 		   The laboratory of the new planner.
+	 * @post   The laboratory of the new planner is the given laboratory.
+	 * 		   | new.getLaboratory() == laboratory
+	 */
+	@Raw
+	RecipePlanner(Laboratory laboratory) {
+		this.laboratory = laboratory;
+	}
+
+	/**
+	 * Return the laboratory of this planner.
+	 */
+	@Basic @Immutable
+	Laboratory getLaboratory() {
+		return this.laboratory;
+	}
+
+	private final Laboratory laboratory;
+
+
+	/**************************************************
+	 * PLANNING
+	 **************************************************/
+
+	/**
+	 * Return a plan for executing the given recipe the given number of times in the laboratory
+	 * of this planner.
+	 *
+	 * @param  recipe
+	 * 		   The recipe to plan.
+	 * @param  amount
+	 * 		   The number of times the recipe is to be executed.
+	 * @return A plan whose demand is the quantity of each stored ingredient type the recipe needs
+	 * 		   per execution times the given amount, whose shortages are the quantities by which that
+	 * 		   demand exceeds the storage of the laboratory, whose missing devices are the devices
+	 * 		   the processes of the recipe need but the laboratory does not have, and whose maximum
+	 * 		   batch size is the highest number of executions the storage allows, or zero if a device
+	 * 		   is missing.
+	 * @note   The oven and the cooling box are missing devices as well if the laboratory does not
+	 * 		   have both, and the recipe either heats or cools, or produces an output whose temperature
+	 * 		   differs from its standard temperature. That output is found by mixing the scaled stored
+	 * 		   ingredients in a scratch kettle the way execute does, so a plan is feasible if and only
+	 * 		   if the laboratory can store the output of executing it.
+	 * @throws IllegalArgumentException
+	 * 		   The given recipe is not effective or the given amount is negative.
+	 * 		   | recipe == null || amount < 0
+	 */
+	RecipePlan plan(Recipe recipe, int amount) throws IllegalArgumentException {
+		if (recipe == null)
+			throw new IllegalArgumentException("Cannot plan a non-effective recipe.");
+		if (amount < 0)
+			throw new IllegalArgumentException("Cannot plan a negative amount of executions.");
+		Demand demand = getDemand(recipe);
+
+		Map<IngredientType,Long> total = new HashMap<IngredientType,Long>();
+		Map<String,Long> shortages = new LinkedHashMap<String,Long>();
+		for (Map.Entry<IngredientType,Long> entry: demand.perExecution.entrySet()) {
+			long needed = entry.getValue()*amount;
+			total.put(entry.getKey(), needed);
+			long stock = demand.stock.get(entry.getKey());
+			if (needed > stock)
+				shortages.put(entry.getKey().getSimpleName(), needed-stock);
+		}
+		for (Map.Entry<String,Long> entry: demand.unmatched.entrySet())
+			if (amount > 0)
+				shortages.put(entry.getKey(), entry.getValue()*amount);
+
+		Set<Class<? extends Device>> missingDevices = demand.missingDevices;
+		int maximumBatchSize = demand.maximumBatchSize;
+		if (amount > 0 && shortages.isEmpty() && missingDevices.isEmpty()
+				&& !getLaboratory().canBringToStandardTemperature() && !hasStandardOutput(recipe, demand, amount)) {
+			missingDevices = new HashSet<Class<? extends Device>>();
+			addTemperatureDevices(missingDevices);
+			maximumBatchSize = 0;
+		}
+		return new RecipePlan(recipe, amount, total, shortages, missingDevices,
+				maximumBatchSize, demand.storedTypes);
+	}
+
+	/**
+	 * Check whether executing the given recipe the given number of times produces an output at its
+	 * standard temperature.
+	 *
+	 * @param  recipe
+	 * 		   The recipe to check, which neither heats nor cools and whose ingredients are all stored.
+	 * @param  demand
+	 * 		   The demand of the given recipe.
+	 * @param  amount
+	 * 		   The positive number of times the recipe is executed.
+	 * @return True if and only if the output of mixing the scaled stored ingredients in the order of
+	 * 		   the processes of the recipe, each in the containers execute puts it in, is at its
+	 * 		   standard temperature.
+	 * @note   The result is memoized in the given demand for the last number of executions it was
+	 * 		   computed for.
+	 */
+	@Model
+	private boolean hasStandardOutput(Recipe recipe, Demand demand, int amount) {
+		if (demand.simulatedAmount == amount)
+			return demand.hasStandardOutput;
+		Kettle kettle = new Kettle();
+		List<IngredientContainer> added = new ArrayList<IngredientContainer>();
+		AlchemicIngredient output = null;
+		int nbAdded = 0;
+		for (int index = 1; index<=recipe.getNbProcesses(); index++) {
+			if (recipe.getProcessAt(index) == Process.add) {
+				nbAdded++;
+				IngredientType type = demand.storedTypes.get(nbAdded-1);
+				int quantity = (int) (getQuantityIn(recipe.getIngredientAt(nbAdded), type)*amount);
+				added.addAll(Laboratory.inContainers(new AlchemicIngredient(type, quantity)));
+			}
+			else if (recipe.getProcessAt(index) == Process.mix) {
+				for (IngredientContainer container: added)
+					kettle.loadIngredient(container);
+				kettle.process();
+				output = kettle.takeProcessedIngredient();
+				added.clear();
+				added.addAll(Laboratory.inContainers(output));
+			}
+		}
+		demand.simulatedAmount = amount;
+		demand.hasStandardOutput = output == null || Temperature.compareTemperature(
+				output.getTemperatureObject(), output.getStandardTemperatureObject()) == 0;
+		return demand.hasStandardOutput;
+	}
+
+	/**
+	 * Add the oven and the cooling box to the given missing devices, if the laboratory of this
+	 * planner does not have them.
+	 */
+	private void addTemperatureDevices(Set<Class<? extends Device>> missingDevices) {
+		if (!getLaboratory().hasAsDevice(Oven.class))
+			missingDevices.add(Oven.class);
+		if (!getLaboratory().hasAsDevice(CoolingBox.class))
+			missingDevices.add(CoolingBox.class);
+	}
+
+	/**
+	 * Return the demand of the given recipe on the inventory of the laboratory of this planner.
+	 *
+	 * @return The memoized demand of the given recipe, if neither the recipe nor the inventory
+	 * 		   of the laboratory changed since it was computed. Otherwise a newly computed demand,
+	 * 		   which is memoized.
+	 */
+	@Model
+	private Demand getDemand(Recipe recipe) {
+		Demand demand = this.demands.get(recipe);
+		if (demand == null
+				|| demand.modificationCount != recipe.getModificationCount()
+				|| demand.inventoryVersion != getLaboratory().getInventoryVersion()) {
+			demand = computeDemand(recipe);
+			this.demands.put(recipe, demand);
+		}
+		return demand;
+	}
+
+	/**
+	 * Compute the demand of the given recipe on the inventory of the laboratory of this planner.
+	 *
+	 * @note   Each ingredient of the recipe is matched with the stored type that is equal to its
+	 * 		   type or, failing that, with the stored type that has the same simple or special name,
+	 * 		   the way the laboratory looks up requested ingredients. The quantity of an ingredient
+	 * 		   is converted to the state of the stored type it is matched with, rounded up.
+	 * @note   A recipe that heats or cools needs both an oven and a cooling box, because its output
+	 * 		   can only be stored once the laboratory brings it back to its standard temperature.
+	 */
+	@Model
+	private Demand computeDemand(Recipe recipe) {
+		Map<IngredientType,Integer> storage = getLaboratory().getStorage();
+		Map<String,IngredientType> byName = new HashMap<String,IngredientType>();
+		for (IngredientType type: storage.keySet()) {
+			byName.put(type.getSimpleName(), type);
+			if (type.getSpecialName() != null)
+				byName.put(type.getSpecialName(), type);
+		}
+
+		Demand demand = new Demand(recipe.getModificationCount(), getLaboratory().getInventoryVersion());
+		for (AlchemicIngredient ingredient: recipe.getIngredients()) {
+			IngredientType type = ingredient.getType();
+			IngredientType stored = storage.containsKey(type) ? type : byName.get(type.getSimpleName());
+			if (stored == null && type.getSpecialName() != null)
+				stored = byName.get(type.getSpecialName());
+			demand.storedTypes.add(stored);
+			if (stored == null) {
+				Long unmatched = demand.unmatched.get(type.getSimpleName());
+				demand.unmatched.put(type.getSimpleName(),
+						(unmatched == null ? 0 : unmatched) + ingredient.getQuantity());
+			}
+			else {
+				long quantity = getQuantityIn(ingredient, stored);
+				Long previous = demand.perExecution.get(stored);
+				demand.perExecution.put(stored, (previous == null ? 0 : previous) + quantity);
+				demand.stock.put(stored, storage.get(stored));
+			}
+		}
+
+		boolean changesTemperature = recipe.hasHeatProcess() || recipe.hasCoolProcess();
+		if (changesTemperature && !getLaboratory().canBringToStandardTemperature())
+			addTemperatureDevices(demand.missingDevices);
+		if (!getLaboratory().hasAsDevice(Kettle.class))
+			demand.missingDevices.add(Kettle.class);
+
+		long maximum = Integer.MAX_VALUE;
+		if (!demand.missingDevices.isEmpty() || !demand.unmatched.isEmpty())
+			maximum = 0;
+		for (Map.Entry<IngredientType,Long> entry: demand.perExecution.entrySet())
+			if (entry.getValue() > 0)
+				maximum = Math.min(maximum, demand.stock.get(entry.getKey())/entry.getValue());
+		demand.maximumBatchSize = (int) maximum;
+		return demand;
+	}
+
+	/**
+	 * Return the quantity of the given ingredient, converted to the state of the given stored type.
+	 *
+	 * @param  ingredient
+	 * 		   The ingredient to convert the quantity of.
+	 * @param  stored
+	 * 		   The stored type the ingredient is matched with.
+	 * @return The quantity of the given ingredient in the drops or pinches of the given type, rounded up.
+	 * 		   | result == ceil(ingredient.getQuantity() * Unit.getRatio(stored.getState(), ingredient.getState()))
+	 */
+	static long getQuantityIn(AlchemicIngredient ingredient, IngredientType stored) {
+		return (long) Math.ceil(ingredient.getQuantity()
+				* Unit.getRatio(stored.getState(), ingredient.getState()));
+	}
+
+	/**
+	 * Map from recipes to their memoized demand on the inventory of the laboratory of this planner.
+	 *
+	 * @note  Recipes are weakly referenced, so memoizing a demand never keeps a recipe alive.
+	 */
+	private final Map<Recipe,Demand> demands = new WeakHashMap<Recipe,Demand>();
+
+
+	/**
+	 * A class of demands of a single execution of a recipe on the inventory of a laboratory.
+	 */
+	private static class Demand {
+
+		private Demand(int modificationCount, long inventoryVersion) {
+			this.modificationCount = modificationCount;
+			this.inventoryVersion = inventoryVersion;
+		}
+
+		/**
+		 * The modification count of the recipe this demand was computed for.
+		 */
+		private final int modificationCount;
+
+		/**
+		 * The version of the inventory this demand was computed against.
+		 */
+		private final long inventoryVersion;
+
+		/**
+		 * The quantity needed of each stored type for a single execution.
+		 */
+		private final Map<IngredientType,Long> perExecution = new HashMap<IngredientType,Long>();
+
+		/**
+		 * The stored type each ingredient of the recipe is matched with, null if it is not stored.
+		 */
+		private final List<IngredientType> storedTypes = new ArrayList<IngredientType>();
+
+		/**
+		 * The stored quantity of each type in the demand.
+		 */
+		private final Map<IngredientType,Integer> stock = new HashMap<IngredientType,Integer>();
+
+		/**
+		 * The quantity needed for a single execution of each ingredient that is not stored, by name.
+		 */
+		private final Map<String,Long> unmatched = new LinkedHashMap<String,Long>();
+
+		/**
+		 * The classes of the devices that are needed but missing.
+		 */
+		private final Set<Class<? extends Device>> missingDevices = new HashSet<Class<? extends Device>>();
+
+		/**
+		 * The highest number of executions the inventory allows.
+		 */
+		private int maximumBatchSize;
+
+		/**
+		 * The number of executions the output of the recipe was last simulated for, -1 if none.
+		 */
+		private int simulatedAmount = -1;
+
+		/**
+		 * Whether the last simulated output of the recipe is at its standard temperature.
+		 */
+		private boolean hasStandardOutput;
+	}
+
+}
@@ -0,0 +1,237 @@
+package laboratory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import alchemy.*;
+import be.kuleuven.cs.som.annotate.*;
+import laboratory.device.*;
+import recipe.Recipe;
+import temperature.Temperature;
+
+/**
+ * A class of caches remembering the outputs of executed recipes.
+ *   Apart from the small jitter of ovens and cooling boxes, executing the same recipe on the same
+ *   stored ingredients with the same device temperatures always gives the same output. A laboratory
+ *   with a result cache therefore only simulates its devices the first time and afterwards stores
+ *   the remembered output straight away.
+ *   When the cache is full, the least recently used output is forgotten.
+ *
+ * @invar   The maximum number of entries of each cache is positive.
+ *          | getMaximumSize() > 0
+ * @invar   A cache never holds more entries than its maximum.
+ *          | getSize() <= getMaximumSize()
+ *
+ * @version 1.0
+ * @author  Tim Lauwers, Tim Robensyn, Robbe Van Biervliet
+ */
+public class RecipeResultCache {
+
+	/**
+	 * Initialize a new empty cache with the given maximum number of entries.
+	 *
+	 * @param  maximumSize
+	 * 		   The maximum number of outputs the new cache remembers.
+	 * @post   The maximum size of the new cache is the given size.
+	 * 		   | new.getMaximumSize() == maximumSize
+	 * @throws IllegalArgumentException
+	 * 		   The given maximum size is not positive.
+	 * 		   | maximumSize <= 0
+	 */
+	public RecipeResultCache(int maximumSize) throws IllegalArgumentException {
+		if (maximumSize <= 0)
+			throw new IllegalArgumentException("The maximum size of a cache must be positive.");
+		this.maximumSize = maximumSize;
+		this.results = new LinkedHashMap<List<Object>,Result>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<List<Object>,Result> eldest) {
+				return size() > getMaximumSize();
+			}
+		};
+	}
+
+
+	/**************************************************
+	 * SIZE
+	 **************************************************/
+
+	/**
+	 * Return the maximum number of outputs this cache remembers.
+	 */
+	@Basic @Immutable
+	public int getMaximumSize() {
+		return this.maximumSize;
+	}
+
+	private final int maximumSize;
+
+	/**
+	 * Return the number of outputs this cache currently remembers.
+	 */
+	public int getSize() {
+		return this.results.size();
+	}
+
+	/**
+	 * Return the number of lookups that found a remembered output.
+	 */
+	@Basic
+	public long getNbHits() {
+		return this.nbHits;
+	}
+
+	/**
+	 * Return the number of lookups that did not find a remembered output.
+	 */
+	@Basic
+	public long getNbMisses() {
+		return this.nbMisses;
+	}
+
+	private long nbHits = 0;
+	private long nbMisses = 0;
+
+	/**
+	 * Forget all outputs of this cache.
+	 *
+	 * @post   This cache is empty.
+	 * 		   | new.getSize() == 0
+	 */
+	public void clear() {
+		this.results.clear();
+	}
+
+
+	/**************************************************
+	 * LOOKUP
+	 **************************************************/
+
+	/**
+	 * Return the key under which the output of executing the given recipe in the given laboratory
+	 * is remembered.
+	 *
+	 * @param  recipe
+	 * 		   The recipe to be executed.
+	 * @param  plan
+	 * 		   A feasible plan for executing the recipe in the given laboratory.
+	 * @param  laboratory
+	 * 		   The laboratory executing the recipe.
+	 * @return A frozen key holding the processes of the recipe, a snapshot of the stored type and the
+	 * 		   scaled quantity of each of its ingredients, the amount of executions, and the temperature
+	 * 		   of the oven and cooling box if the recipe heats or cools.
+	 * @note   The key copies everything it holds, so later changes to the recipe, the stored types or
+	 * 		   the devices do not change existing keys.
+	 */
+	List<Object> getKey(Recipe recipe, RecipePlan plan, Laboratory laboratory) {
+		List<Object> key = new ArrayList<Object>();
+		key.add(new ArrayList<Object>(recipe.getProcesses()));
+		for (int index = 1; index<=recipe.getNbIngredients(); index++) {
+			IngredientType type = plan.getStoredTypeOf(index);
+			key.add(getSnapshotOf(type));
+			key.add(RecipePlanner.getQuantityIn(recipe.getIngredientAt(index), type));
+		}
+		key.add(plan.getAmount());
+		if (recipe.hasHeatProcess())
+			key.add(getTemperatureOf(laboratory.getDevice(Oven.class)));
+		if (recipe.hasCoolProcess())
+			key.add(getTemperatureOf(laboratory.getDevice(CoolingBox.class)));
+		return key;
+	}
+
+	/**
+	 * Return a snapshot of the given ingredient type, to be used in a key.
+	 *
+	 * @return A list holding a copy of the simple names, the special name, the state and the
+	 * 		   standard temperature of the given type.
+	 * @note   Ingredient types are mutable, since their special name can change, and that changes
+	 * 		   their hash code. Keys holding snapshots keep their hash code, so their entries stay
+	 * 		   reachable after such a change.
+	 */
+	@Model
+	private static List<Object> getSnapshotOf(IngredientType type) {
+		long[] temperature = type.getStandardTemperature();
+		return Arrays.<Object>asList(Arrays.asList(type.getSimpleNames().clone()), type.getSpecialName(),
+				type.getState(), temperature[0], temperature[1]);
+	}
+
+	/**
+	 * Return the temperature of the given device as a list of its coldness and hotness.
+	 */
+	@Model
+	private static List<Long> getTemperatureOf(Device device) {
+		long[] temperature = ((TemperatureDevice) device).getTemperature();
+		return Arrays.asList(temperature[0], temperature[1]);
+	}
+
+	/**
+	 * Return the output remembered under the given key, null if there is none.
+	 *
+	 * @param  key
+	 * 		   The key to look up.
+	 * @return A new ingredient with the type, quantity and temperature of the output remembered under
+	 * 		   the given key, or null if this cache does not remember such an output.
+	 * @post   If an output is remembered under the given key, it becomes the most recently used output.
+	 */
+	AlchemicIngredient get(List<Object> key) {
+		Result result = this.results.get(key);
+		if (result == null) {
+			this.nbMisses++;
+			return null;
+		}
+		this.nbHits++;
+		return result.toIngredient();
+	}
+
+	/**
+	 * Remember the given output under the given key.
+	 *
+	 * @param  key
+	 * 		   The key to remember the output under.
+	 * @param  output
+	 * 		   The output to remember.
+	 * @post   The given output is remembered under the given key, as the most recently used output.
+	 * 		   If this cache was full, the least recently used output is forgotten.
+	 */
+	void put(List<Object> key, AlchemicIngredient output) {
+		this.results.put(key, new Result(output));
+	}
+
+	/**
+	 * Map from keys to the outputs remembered under them, in access order.
+	 */
+	private final LinkedHashMap<List<Object>,Result> results;
+
+
+	/**
+	 * A class of frozen outputs of a recipe.
+	 */
+	private static class Result {
+
+		private Result(AlchemicIngredient output) {
+			this.type = output.getType();
+			this.quantity = output.getQuantity();
+			this.coldness = output.getColdness();
+			this.hotness = output.getHotness();
+		}
+
+		private final IngredientType type;
+		private final int quantity;
+		private final long coldness;
+		private final long hotness;
+
+		/**
+		 * Return a new ingredient with the type, quantity and temperature of this output.
+		 */
+		private AlchemicIngredient toIngredient() {
+			AlchemicIngredient ingredient = new AlchemicIngredient(this.type, this.quantity);
+			ingredient.changeTemperatureTo(new Temperature(this.coldness, this.hotness));
+			return ingredient;
+		}
+	}
+
+}
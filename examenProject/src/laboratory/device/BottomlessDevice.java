@@ -313,6 +313,25 @@ public abstract class BottomlessDevice extends Device {
 		removeProcessedIngredientAt(1);
 		return outputContainer;
 	}
+
+	/**
+	 * Take the first processed ingredient out of this device, without putting it in a container.
+	 *
+	 * @return The first processed ingredient of this device, null if there is none.
+	 * 		   | if (getNbProcessedIngredients() == 0)
+	 * 		   |   then result == null
+	 * 		   | else result == getProcessedIngredientAt(1)
+	 * @effect If this device has processed ingredients, the first one is removed.
+	 * 		   | removeProcessedIngredientAt(1)
+	 * @note   Unlike emptyDevice, this works for an ingredient that does not fit in any container.
+	 */
+	public AlchemicIngredient takeProcessedIngredient() {
+		if (getNbProcessedIngredients() == 0)
+			return null;
+		AlchemicIngredient outputIngredient = getProcessedIngredientAt(1);
+		removeProcessedIngredientAt(1);
+		return outputIngredient;
+	}
 	
 	/**
 	 * This bottomless device processes the ingredients in the start ingredients list. 
@@ -0,0 +1,544 @@
+package recipe;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import be.kuleuven.cs.som.annotate.*;
+
+/**
+ * A class of recipe books whose pages live in a memory-mapped page file.
+ *   Recipes are only decoded from the mapping when their page is first looked up, so a
+ *   large book costs next to nothing on the heap as long as it is accessed sparsely.
+ *   Decoded recipes are only kept as long as they are used elsewhere.
+ *   The page file itself is never changed: pages that are torn out and recipes that are added
+ *   after opening the book are kept on the heap, on top of the pages in the page file.
+ *
+ * @invar   The number of pages in this book is the number of pages registered in the
+ *          header of its page file.
+ *          | getNbPages() == getMapping().getInt(NB_PAGES_OFFSET)
+ *
+ * @note    The page file starts with a header holding a magic number, the number of pages,
+ *          the number of recipes and the page of the last recipe, followed by a table with the
+ *          offset of the record of each page (-1 for a page that has been torn out) and the
+ *          records themselves, each prefixed with its length.
+ * @note    A single mapping is limited to 2GB, so a page file cannot exceed that size.
+ *
+ * @version 1.0
+ * @author	Tim Lauwers, Tim Robensyn, Robbe Van Biervliet
+ */
+public class MappedRecipeBook extends RecipeBook {
+
+	/**********************************************************
+	 * Constructor
+	 **********************************************************/
+
+	/**
+	 * Initialize a new mapped recipe book backed by the given mapping of a page file.
+	 *
+	 * @param  mapping
+	 *         The mapping of the page file of the new book.
+	 * @effect The new book is a recipe book with the number of pages registered in the header
+	 *         of the given mapping and no recipes on the heap.
+	 *         | super(mapping.getInt(NB_PAGES_OFFSET), Collections.<Recipe>emptyList())
+	 */
+	@Raw
+	private MappedRecipeBook(MappedByteBuffer mapping) {
+		super(mapping.getInt(NB_PAGES_OFFSET), Collections.<Recipe>emptyList());
+		this.mapping = mapping;
+		this.nbRecipes = mapping.getInt(NB_RECIPES_OFFSET);
+		this.pageOfLastRecipe = mapping.getInt(LAST_PAGE_OFFSET);
+	}
+
+	/**
+	 * Open the page file at the given path as a mapped recipe book.
+	 *
+	 * @param  file
+	 *         The path of the page file to open.
+	 * @return A mapped recipe book backed by the given page file.
+	 * @throws IOException
+	 *         The given page file could not be mapped.
+	 * @throws IllegalArgumentException
+	 *         The given file is not a recipe book page file.
+	 */
+	public static MappedRecipeBook open(Path file) throws IOException, IllegalArgumentException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (mapping.limit() < HEADER_SIZE || mapping.getInt(MAGIC_OFFSET) != MAGIC)
+				throw new IllegalArgumentException("This file is not a recipe book page file.");
+			return new MappedRecipeBook(mapping);
+		}
+	}
+
+	/**
+	 * Write the given recipe book to a page file at the given path.
+	 *
+	 * @param  book
+	 *         The recipe book to write.
+	 * @param  file
+	 *         The path of the page file to write to. An existing file is overwritten.
+	 * @effect Each recipe in the given book is written on the page it has in that book.
+	 *         Torn out pages remain torn out.
+	 *         | for each I in 1..book.getNbPages()
+	 *         |   open(file).getRecipeAt(I) represents book.getRecipeAt(I)
+	 * @throws IOException
+	 *         The page file could not be written.
+	 */
+	public static void write(RecipeBook book, Path file) throws IOException {
+		int nbPages = book.getNbPages();
+		int nbRecipes = 0;
+		int pageOfLastRecipe = 0;
+		long[] offsets = new long[nbPages];
+		List<byte[]> records = new ArrayList<byte[]>();
+		long offset = HEADER_SIZE + (long) nbPages*Long.BYTES;
+
+		for (int page = 1; page<=nbPages; page++) {
+			Recipe recipe = book.getRecipeAt(page);
+			if (recipe == null) {
+				offsets[page-1] = -1;
+			}
+			else {
+				ByteArrayOutputStream record = new ByteArrayOutputStream();
+				recipe.writeTo(new DataOutputStream(record));
+				records.add(record.toByteArray());
+				offsets[page-1] = offset;
+				offset += Integer.BYTES + record.size();
+				nbRecipes++;
+				pageOfLastRecipe = page;
+			}
+		}
+
+		try (OutputStream stream = Files.newOutputStream(file)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+			out.writeInt(MAGIC);
+			out.writeInt(nbPages);
+			out.writeInt(nbRecipes);
+			out.writeInt(pageOfLastRecipe);
+			for (long pageOffset: offsets)
+				out.writeLong(pageOffset);
+			for (byte[] record: records) {
+				out.writeInt(record.length);
+				out.write(record);
+			}
+			out.flush();
+		}
+	}
+
+
+	/**********************************************************
+	 * Page file
+	 **********************************************************/
+
+	/**
+	 * Return the mapping of the page file of this book.
+	 *
+	 * @note  Each caller gets its own view on the mapping, so positions are never shared.
+	 */
+	@Model
+	private ByteBuffer getMapping() {
+		return this.mapping.duplicate();
+	}
+
+	/**
+	 * Variable referencing the mapping of the page file of this book.
+	 */
+	private final MappedByteBuffer mapping;
+
+	/**
+	 * The magic number every recipe book page file starts with.
+	 */
+	private static final int MAGIC = 0x52424B32;
+
+	/**
+	 * The offset of the magic number in the header of a page file.
+	 */
+	private static final int MAGIC_OFFSET = 0;
+
+	/**
+	 * The offset of the number of pages in the header of a page file.
+	 */
+	private static final int NB_PAGES_OFFSET = 4;
+
+	/**
+	 * The offset of the number of recipes in the header of a page file.
+	 */
+	private static final int NB_RECIPES_OFFSET = 8;
+
+	/**
+	 * The offset of the page of the last recipe in the header of a page file.
+	 */
+	private static final int LAST_PAGE_OFFSET = 12;
+
+	/**
+	 * The size of the header of a page file, after which the page table starts.
+	 */
+	private static final int HEADER_SIZE = 16;
+
+
+	/**********************************************************
+	 * Pages
+	 **********************************************************/
+
+	/**
+	 * Return the number of pages of this book, as registered in the header of its page file.
+	 */
+	@Basic @Raw @Override
+	public int getNbPages() {
+		return this.mapping.getInt(NB_PAGES_OFFSET);
+	}
+
+	/**
+	 * Return the number of recipes in this book.
+	 *
+	 * @note	The number of recipes is read from the header of the page file and kept up to date
+	 * 			when pages are torn out or recipes are added, so no page is decoded to count them.
+	 */
+	@Basic @Raw @Override
+	public int getNbRecipes() {
+		return this.nbRecipes;
+	}
+
+	/**
+	 * Variable registering the number of recipes in this book.
+	 */
+	private int nbRecipes;
+
+	/**
+	 * Return the page of the last recipe in this book.
+	 *
+	 * @return	Return the page of the last recipe in this book.
+	 * 			Return zero if there are no recipes in this book.
+	 * @note	The page of the last recipe is read from the header of the page file and kept up
+	 * 			to date when pages are torn out or recipes are added.
+	 */
+	@Raw @Override
+	public int getPageOfLastRecipe() {
+		return this.pageOfLastRecipe;
+	}
+
+	/**
+	 * Variable registering the page of the last recipe in this book.
+	 */
+	private int pageOfLastRecipe;
+
+	/**
+	 * Check whether the given page of this book has been torn out, without decoding it.
+	 *
+	 * @param	page
+	 * 			The page to check.
+	 * @return	True if and only if there is no recipe on the given page.
+	 * 			| result == (getRecipeAt(page) == null)
+	 */
+	@Model
+	private boolean isTornOut(int page) {
+		if (this.changedPages.containsKey(page))
+			return this.changedPages.get(page) == null;
+		return this.mapping.getLong(HEADER_SIZE + (page-1)*Long.BYTES) < 0;
+	}
+
+	/**
+	 * Return the recipe on the given page of this book.
+	 *
+	 * @param	page
+	 * 			The page of the recipe to be returned.
+	 * @return	The recipe added to the given page after opening this book, or else the recipe
+	 * 			decoded from the given page of the page file of this book. This is null if the given
+	 * 			page has been torn out. Looking up the same page twice returns the same recipe, as
+	 * 			long as the first one is still in use.
+	 * @throws	IndexOutOfBoundsException
+	 * 			The given page is not positive or it exceeds the
+	 * 			amount of pages in this book.
+	 * 			| (page < 1) || (page > getNbPages()
+	 * @throws  IllegalStateException
+	 *          The record on the given page could not be decoded.
+	 */
+	@Basic @Raw @Override
+	public Recipe getRecipeAt(int page) throws IndexOutOfBoundsException, IllegalStateException {
+		if ((page<1) || (page > getNbPages())) throw new IndexOutOfBoundsException();
+		if (this.changedPages.containsKey(page))
+			return this.changedPages.get(page);
+		DecodedPage decoded = this.decodedPages.get(page);
+		Recipe recipe = (decoded == null) ? null : decoded.get();
+		if (recipe == null) {
+			long offset = this.mapping.getLong(HEADER_SIZE + (page-1)*Long.BYTES);
+			if (offset < 0)
+				return null;
+			recipe = decodeRecipeAt((int) offset);
+			expungeDecodedPages();
+			this.decodedPages.put(page, new DecodedPage(page, recipe, this.releasedPages));
+			this.pagesOfRecipes.put(recipe, page);
+		}
+		return recipe;
+	}
+
+	/**
+	 * Decode the recipe whose record starts at the given offset in the page file of this book.
+	 *
+	 * @param  offset
+	 *         The offset of the record to decode.
+	 * @return The recipe read from the record at the given offset.
+	 *         | result == Recipe.readFrom(record at offset)
+	 * @throws IllegalStateException
+	 *         The record could not be decoded.
+	 */
+	@Model
+	private Recipe decodeRecipeAt(int offset) throws IllegalStateException {
+		ByteBuffer record = getMapping();
+		int length = record.getInt(offset);
+		record.position(offset + Integer.BYTES);
+		record.limit(offset + Integer.BYTES + length);
+		try {
+			return Recipe.readFrom(new DataInputStream(new ByteBufferInputStream(record)));
+		} catch (IOException exc) {
+			throw new IllegalStateException("The recipe on this page could not be decoded.", exc);
+		}
+	}
+
+	/**
+	 * Remove the entries of all decoded pages whose recipe is no longer in use.
+	 */
+	@Model
+	private void expungeDecodedPages() {
+		Reference<? extends Recipe> released;
+		while ((released = this.releasedPages.poll()) != null) {
+			DecodedPage decoded = (DecodedPage) released;
+			if (this.decodedPages.get(decoded.page) == decoded)
+				this.decodedPages.remove(decoded.page);
+		}
+	}
+
+	/**
+	 * Map from page numbers to the recipes decoded from those pages.
+	 *
+	 * @invar Only pages that have been looked up are registered.
+	 * @note  The recipes are only weakly referenced, so decoding the whole book does not keep it
+	 *        on the heap. Entries of recipes that are no longer in use are removed on the next decode.
+	 */
+	private final Map<Integer,DecodedPage> decodedPages = new HashMap<Integer,DecodedPage>();
+
+	/**
+	 * Queue on which the decoded pages are enqueued once their recipe is no longer in use.
+	 */
+	private final ReferenceQueue<Recipe> releasedPages = new ReferenceQueue<Recipe>();
+
+	/**
+	 * Map from pages torn out or filled after opening this book to their new recipe,
+	 * null for a page that has been torn out.
+	 *
+	 * @note  Changes are copied on write into this map, so the page file itself is never changed.
+	 */
+	private final Map<Integer,Recipe> changedPages = new HashMap<Integer,Recipe>();
+
+	/**
+	 * Map from each recipe handed out by or added to this book to its page.
+	 *
+	 * @note  Recipes are compared by identity, so a recipe that was never decoded from this book
+	 *        nor added to it cannot be one of its recipes. Decoded recipes are only weakly referenced,
+	 *        but as long as a caller holds one it stays registered here.
+	 */
+	private final Map<Recipe,Integer> pagesOfRecipes = new WeakHashMap<Recipe,Integer>();
+
+	/**
+	 * Return the page of this recipe in this book.
+	 *
+	 * @param	recipe
+	 * 			The recipe to look for.
+	 * @return	The given recipe can be found on the returned page
+	 * 			in this book.
+	 * @throws	IllegalArgumentException
+	 * 			The given recipe is not in this book.
+	 * 			| ! hasAsRecipe(recipe)
+	 */
+	@Override
+	public int getPageOfRecipe(Recipe recipe) throws IllegalArgumentException {
+		Integer page = (recipe == null) ? null : this.pagesOfRecipes.get(recipe);
+		if (page == null)
+			throw new IllegalArgumentException("Recipe not found");
+		return page;
+	}
+
+	/**
+	 * Check whether the given recipe is one of the recipes of this book.
+	 *
+	 * @return	True if and only if this book has the given
+	 * 			recipe as one of its recipes at some page.
+	 * 			| result ==
+	 * 			|	for some I in 1..getNbPages() :
+	 * 			|	   (getRecipeAt(I) == recipe)
+	 * @note	No page is decoded to answer this: a recipe on a page that was never looked up
+	 * 			is not yet an object any caller could hold.
+	 */
+	@Raw @Override
+	public boolean hasAsRecipe(Recipe recipe) {
+		return recipe != null && this.pagesOfRecipes.containsKey(recipe);
+	}
+
+	/**
+	 * Return a list of all recipes of this book.
+	 *
+	 * @return	The number of elements in the resulting list is
+	 * 			equal to the number of pages in this book.
+	 * 			| result.size() == getNbPages()
+	 * @return	Each recipe at a given page in the resulting list
+	 * 			is the recipe on the corresponding page.
+	 * 			| for each I in 0..getNbPages()-1:
+	 * 			|	(result.get(I) == getRecipeAt(I+1))
+	 * @note	This decodes every page of the book.
+	 */
+	@Override
+	public List<Recipe> getAllRecipes() {
+		List<Recipe> result = new ArrayList<Recipe>(getNbPages());
+		for (int page = 1; page<=getNbPages(); page++)
+			result.add(getRecipeAt(page));
+		return result;
+	}
+
+	/**
+	 * Remove the recipe in this book at the given page by tearing
+	 * the page out.
+	 *
+	 * @param	page
+	 * 			The page of the recipe to be removed.
+	 * @post	This book no longer has the recipe at the given
+	 * 			page in it.
+	 * 			| new.getRecipeAt(page) == null
+	 * @post	The number of recipes associated with this book
+	 * 			is decremented by 1.
+	 * 			| new.getNbRecipe() == this.getNbRecipes() - 1
+	 * @throws	IndexOutOfBoundsException
+	 * 			The given page is not positive or it exceeds the
+	 * 			number of pages associated with this book.
+	 * 			| (page < 1) || (page > getNbPages())
+	 * @throws	IllegalArgumentException
+	 * 			This page has already been torn out.
+	 * @note	The page is only torn out in memory, the page file is left unchanged.
+	 */
+	@Override
+	public void removeRecipeAt(int page) throws IndexOutOfBoundsException, IllegalArgumentException {
+		if ((page<1) || (page > getNbPages())) throw new IndexOutOfBoundsException();
+		if (isTornOut(page))
+			throw new IllegalArgumentException("Recipe has already been torn out.");
+		Recipe recipe = this.changedPages.get(page);
+		if (recipe == null) {
+			DecodedPage decoded = this.decodedPages.remove(page);
+			recipe = (decoded == null) ? null : decoded.get();
+		}
+		if (recipe != null)
+			this.pagesOfRecipes.remove(recipe);
+		this.changedPages.put(page, null);
+		this.nbRecipes--;
+		if (page == this.pageOfLastRecipe) {
+			while ((page > 0) && isTornOut(page))
+				page--;
+			this.pageOfLastRecipe = page;
+		}
+	}
+
+	/**
+	 * Add the given recipe to this book at the page after the
+	 * last recipe.
+	 *
+	 * @param	recipe
+	 * 			The recipe to put in the book.
+	 * @post	This book has the given recipe as its last recipe.
+	 * 			| new.getRecipeAt(getPageOfLastRecipe()) == recipe
+	 * @post	The number of recipes in this book is incremented
+	 * 			by 1.
+	 * 			| new.getNbRecipes() == getNbRecipes() + 1
+	 * @throws	IllegalArgumentException
+	 * 			The given recipe is not effective, this book already has the given recipe
+	 * 			or there is no page left after the last recipe.
+	 * 			| recipe == null || !canHaveAsRecipe(recipe)
+	 * 			|	|| getPageOfLastRecipe() == getNbPages()
+	 * @note	The recipe is only added in memory, the page file is left unchanged.
+	 */
+	@Raw @Override
+	public void addAsRecipe(Recipe recipe) throws IllegalArgumentException {
+		if ((recipe == null) || !canHaveAsRecipe(recipe))
+			throw new IllegalArgumentException("This book already contains this recipe.");
+		int page = this.pageOfLastRecipe + 1;
+		if (page > getNbPages())
+			throw new IllegalArgumentException("Invalid number of recipes");
+		this.decodedPages.remove(page);
+		this.changedPages.put(page, recipe);
+		this.pagesOfRecipes.put(recipe, page);
+		this.nbRecipes++;
+		this.pageOfLastRecipe = page;
+	}
+
+	/**
+	 * A class of weak references to recipes decoded from a page of a mapped recipe book,
+	 * remembering that page.
+	 */
+	private static final class DecodedPage extends WeakReference<Recipe> {
+
+		/**
+		 * Initialize this decoded page with the given page and recipe.
+		 *
+		 * @param page
+		 *        The page the given recipe was decoded from.
+		 * @param recipe
+		 *        The recipe decoded from the given page.
+		 * @param queue
+		 *        The queue on which to enqueue this decoded page once its recipe is no longer in use.
+		 */
+		private DecodedPage(int page, Recipe recipe, ReferenceQueue<Recipe> queue) {
+			super(recipe, queue);
+			this.page = page;
+		}
+
+		/**
+		 * Variable registering the page the recipe was decoded from.
+		 */
+		private final int page;
+
+	}
+
+
+	/**
+	 * An input stream reading the remaining bytes of a byte buffer, without copying them
+	 * out of the mapping first.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		private final ByteBuffer buffer;
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (!buffer.hasRemaining())
+				return -1;
+			int count = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, count);
+			return count;
+		}
+	}
+
+}
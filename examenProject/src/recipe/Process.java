@@ -9,11 +9,11 @@ import be.kuleuven.cs.som.annotate.*;
  * 
  * @author  Tim Lauwers, Tim Robensyn, Robbe Van BierVliet
  * @version 1.0
- * 
- * @note    We make this enumeration class package available.
  *
+ * @note    This enumeration is public, so a laboratory can read the processes of the
+ *          recipes it executes.
  */
 @Value
-enum Process {
+public enum Process {
 	add, heat, cool, mix;
 }
@@ -2,6 +2,9 @@ package recipe;
 
 import be.kuleuven.cs.som.annotate.*;
 import alchemy.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -100,9 +103,25 @@ public class Recipe {
 		}
 		return result;
 	}
-	
+
 	/**
-	 * Return the index of the nth add process in the process list.   
+	 * Check whether this recipe heats an ingredient in one of its processes.
+	 */
+	@Raw
+	public boolean hasHeatProcess() {
+		return getProcesses().contains(Process.heat);
+	}
+
+	/**
+	 * Check whether this recipe cools an ingredient in one of its processes.
+	 */
+	@Raw
+	public boolean hasCoolProcess() {
+		return getProcesses().contains(Process.cool);
+	}
+
+	/**
+	 * Return the index of the nth add process in the process list.
 	 */
 	public int getIndexOfNthAdd(int n) {
 		int index = 1;
@@ -217,6 +236,7 @@ public class Recipe {
 		else{
 			this.processes.add(index,process);
 		}
+		this.modificationCount++;
 	}
 	
 	/**
@@ -239,6 +259,7 @@ public class Recipe {
 		if (index<1 || index>=getNbProcesses())
 			throw new IndexOutOfBoundsException("The index is not valid.");
 		processes.remove(index-1);
+		this.modificationCount++;
 	}
 	
 	/**
@@ -254,6 +275,22 @@ public class Recipe {
 	 */
 	private List<Process> processes = new ArrayList<Process>();
 
+	/**
+	 * Return the number of times the processes or ingredients of this recipe have been changed.
+	 *
+	 * @note Results derived from this recipe can be cached as long as this number stays the same.
+	 */
+	@Basic @Raw
+	public int getModificationCount() {
+		return this.modificationCount;
+	}
+
+	/**
+	 * Variable registering the number of times the processes or ingredients of this recipe
+	 * have been changed.
+	 */
+	private int modificationCount = 0;
+
 
 	
 	/**********************************************************
@@ -401,4 +438,52 @@ public class Recipe {
 	 */
 	private List<AlchemicIngredient> ingredients = new ArrayList<AlchemicIngredient>();
 
+
+
+	/**********************************************************
+	 * Encoding
+	 **********************************************************/
+
+	/**
+	 * Write this recipe to the given output.
+	 *
+	 * @param  out
+	 * 		   The output to write this recipe to.
+	 * @effect The number of processes and each process are written, followed by the number of
+	 * 		   ingredients and each ingredient.
+	 * 		   | for each ingredient in getIngredients()
+	 * 		   |   ingredient.writeTo(out)
+	 * @throws IOException
+	 * 		   Writing to the given output failed.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(getNbProcesses());
+		for (Process process: getProcesses())
+			out.writeByte(process.ordinal());
+		out.writeInt(getNbIngredients());
+		for (AlchemicIngredient ingredient: getIngredients())
+			ingredient.writeTo(out);
+	}
+
+	/**
+	 * Read a recipe from the given input, as written by writeTo.
+	 *
+	 * @param  in
+	 * 		   The input to read the recipe from.
+	 * @return A new recipe with the processes and ingredients read from the given input.
+	 * @throws IOException
+	 * 		   Reading from the given input failed.
+	 */
+	public static Recipe readFrom(DataInput in) throws IOException {
+		int nbProcesses = in.readInt();
+		List<Process> processes = new ArrayList<Process>(nbProcesses);
+		for (int i = 0; i<nbProcesses; i++)
+			processes.add(Process.values()[in.readByte()]);
+		int nbIngredients = in.readInt();
+		List<AlchemicIngredient> ingredients = new ArrayList<AlchemicIngredient>(nbIngredients);
+		for (int i = 0; i<nbIngredients; i++)
+			ingredients.add(AlchemicIngredient.readFrom(in));
+		return new Recipe(processes, ingredients);
+	}
+
 }
@@ -158,6 +158,7 @@ public class RecipeBook {
 	@Basic @Raw
 	public Recipe getRecipeAt(int page) throws IndexOutOfBoundsException{
 		if ((page<1) || (page > getNbPages())) throw new IndexOutOfBoundsException();
+		if (page > this.book.size()) return null;
 		return this.book.get(page-1);
 	}
 	
@@ -307,7 +308,11 @@ public class RecipeBook {
 		if (!canHaveAsRecipe(recipe))
 			throw new IllegalArgumentException("This book already contains this recipe.");
 		setNbRecipes(getNbRecipes()+1);
-		this.book.set(getPageOfLastRecipe()-1, recipe);
+		int index = getPageOfLastRecipe();
+		if (index < this.book.size())
+			this.book.set(index, recipe);
+		else
+			this.book.add(recipe);
 		
 	}
 	
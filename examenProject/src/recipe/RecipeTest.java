@@ -3,6 +3,9 @@ import alchemy.*;
 
 import static org.junit.Assert.*;
 import org.junit.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import be.kuleuven.cs.som.annotate.*;
 
@@ -65,4 +68,74 @@ public class RecipeTest {
 		assertEquals(5, recipe.getIndexOfNthAdd(3));
 		assertEquals(4, recipe.getNbOfAdd());
 	}
+	
+	@Test
+	public void test_mappedRecipeBook() throws IOException {
+		ArrayList<Recipe> recipes = new ArrayList<Recipe>();
+		recipes.add(recipe);
+		RecipeBook book = new RecipeBook(3, recipes);
+		
+		Path file = Files.createTempFile("recipebook", ".pages");
+		try {
+			MappedRecipeBook.write(book, file);
+			MappedRecipeBook mappedBook = MappedRecipeBook.open(file);
+			
+			assertEquals(3, mappedBook.getNbPages());
+			assertEquals(1, mappedBook.getNbRecipes());
+			assertNull(mappedBook.getRecipeAt(2));
+			
+			Recipe mappedRecipe = mappedBook.getRecipeAt(1);
+			assertSame(mappedRecipe, mappedBook.getRecipeAt(1));
+			assertEquals(1, mappedBook.getPageOfRecipe(mappedRecipe));
+			assertEquals(recipe.getProcesses(), mappedRecipe.getProcesses());
+			assertEquals(3, mappedRecipe.getNbIngredients());
+			assertEquals(ingredient2.getType(), mappedRecipe.getIngredientAt(2).getType());
+			assertEquals(30, mappedRecipe.getIngredientAt(2).getQuantity());
+		} finally {
+			Files.delete(file);
+		}
+	}
+	
+	@Test
+	public void test_mappedRecipeBook_Changes() throws IOException {
+		ArrayList<Recipe> recipes = new ArrayList<Recipe>();
+		recipes.add(recipe);
+		RecipeBook book = new RecipeBook(3, recipes);
+		
+		Path file = Files.createTempFile("recipebook", ".pages");
+		try {
+			MappedRecipeBook.write(book, file);
+			MappedRecipeBook mappedBook = MappedRecipeBook.open(file);
+			assertEquals(1, mappedBook.getPageOfLastRecipe());
+			
+			mappedBook.removeRecipeAt(1);
+			assertNull(mappedBook.getRecipeAt(1));
+			assertEquals(0, mappedBook.getNbRecipes());
+			assertEquals(0, mappedBook.getPageOfLastRecipe());
+			try {
+				mappedBook.removeRecipeAt(1);
+				fail();
+			} catch (IllegalArgumentException exc) {}
+			
+			mappedBook.addAsRecipe(recipe);
+			Recipe other = MappedRecipeBook.open(file).getRecipeAt(1);
+			mappedBook.addAsRecipe(other);
+			assertSame(other, mappedBook.getRecipeAt(2));
+			assertSame(recipe, mappedBook.getRecipeAt(1));
+			assertTrue(mappedBook.hasAsRecipe(recipe));
+			assertEquals(1, mappedBook.getPageOfRecipe(recipe));
+			assertEquals(2, mappedBook.getNbRecipes());
+			assertEquals(2, mappedBook.getPageOfLastRecipe());
+			try {
+				mappedBook.addAsRecipe(recipe);
+				fail();
+			} catch (IllegalArgumentException exc) {}
+			
+			MappedRecipeBook reopened = MappedRecipeBook.open(file);
+			assertEquals(1, reopened.getNbRecipes());
+			assertNotNull(reopened.getRecipeAt(1));
+		} finally {
+			Files.delete(file);
+		}
+	}
 }
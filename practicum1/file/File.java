@@ -1,7 +1,10 @@
 package file;
 
 import be.kuleuven.cs.som.annotate.*;
+import java.time.Instant;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 
 /**
@@ -51,7 +54,7 @@ public class File {
 		setName(name);
 		setSize(size);
 		setWritable(writable);
-		this.modificationTime = null;
+		this.modificationTime = NO_TIME;
 
 	}
 	
@@ -299,31 +302,113 @@ public class File {
 	 *        |   || (getCreationTime().equals(getCurrentTime())) )
 	 */
 	public boolean isValidCreationTime(Date date) {
-		return ((date.before(getCurrentTime())) ||
-			   (date.equals(getCurrentTime())) );
+		return toNanos(date) <= getCurrentTime();
 	}
 	
 	/**
-	 * Return the current time
+	 * Return the current time of the clock of all files, in nanoseconds since the epoch.
 	 */
-	private static Date getCurrentTime() {
-		Date date = new Date();
-		return date;
+	private static long getCurrentTime() {
+		return clock.getAsLong();
 	}
 	
 	/**
-	 * Return the creation time of the file.
+	 * Return the clock of all files.
+	 *   The clock supplies the current time in nanoseconds since the epoch.
 	 */
 	@Basic
+	public static LongSupplier getClock() {
+		return clock;
+	}
+	
+	/**
+	 * Set the clock of all files to the given clock.
+	 * 
+	 * @param  clock
+	 *         The new clock, supplying the current time in nanoseconds since the epoch.
+	 * @post   The clock of all files is the given clock.
+	 *       | new.getClock() == clock
+	 * @throws IllegalArgumentException
+	 *         The given clock is not effective.
+	 *       | clock == null
+	 */
+	public static void setClock(LongSupplier clock) throws IllegalArgumentException {
+		if (clock == null)
+			throw new IllegalArgumentException("The clock of files must be effective.");
+		File.clock = clock;
+	}
+	
+	/**
+	 * A clock supplying the time of the system, at the precision of milliseconds.
+	 */
+	public static final LongSupplier SYSTEM_CLOCK = () -> TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+	
+	/*
+	 * Variable referencing the clock of all files.
+	 */
+	private static volatile LongSupplier clock = SYSTEM_CLOCK;
+	
+	/**
+	 * Value registering that a time is absent.
+	 */
+	private static final long NO_TIME = Long.MIN_VALUE;
+	
+	/**
+	 * Return the given date in nanoseconds since the epoch.
+	 */
+	private static long toNanos(Date date) {
+		return TimeUnit.MILLISECONDS.toNanos(date.getTime());
+	}
+	
+	/**
+	 * Return the given time in nanoseconds since the epoch in milliseconds, rounded down.
+	 * 
+	 * @note  Times before the epoch are rounded down as well, so a time and the date holding it
+	 *        never differ by a millisecond or more.
+	 */
+	private static long toMillis(long nanos) {
+		return Math.floorDiv(nanos, 1_000_000L);
+	}
+	
+	/**
+	 * Return the given time in nanoseconds since the epoch as an instant.
+	 */
+	private static Instant toInstant(long nanos) {
+		return Instant.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L), Math.floorMod(nanos, 1_000_000_000L));
+	}
+	
+	/**
+	 * Return the creation time of the file.
+	 * 
+	 * @return A new date holding the creation time of this file, rounded down to milliseconds.
+	 *       | result.getTime() == Math.floorDiv(getCreationTimeNanos(), 1000000)
+	 */
 	@Immutable
 	public Date getCreationTime() {
+		return new Date(toMillis(getCreationTimeNanos()));
+	}
+	
+	/**
+	 * Return the creation time of the file as an instant.
+	 */
+	@Immutable
+	public Instant getCreationInstant() {
+		return toInstant(getCreationTimeNanos());
+	}
+	
+	/**
+	 * Return the creation time of the file, in nanoseconds since the epoch.
+	 */
+	@Basic
+	@Immutable
+	public long getCreationTimeNanos() {
 		return this.creationTime;
 	}
 
 	/*
-	 * Variable registering the creation time of this file.	
+	 * Variable registering the creation time of this file, in nanoseconds since the epoch.	
 	 */
-	private final Date creationTime = new Date();
+	private final long creationTime = getCurrentTime();
 	
 	
 	/**
@@ -340,13 +425,12 @@ public class File {
 	 *	     |      || (date.equals(getCreationTime())) )
 	 *	     |    && ( (date.before(getCurrentTime()))
 	 *	     |      || (date.equals(getCurrentTime())) )) )
+	 * @note   The creation time is compared at the precision of the given date.
 	 */
 	public boolean canHaveAsModificationTime(Date date) {
 		return ( (date == null)
-			  || (	( (date.after(getCreationTime()))
-		           || (date.equals(getCreationTime())) )
-		         && ( (date.before(getCurrentTime()))
-		           || (date.equals(getCurrentTime())) )	 ) );
+			  || (	date.getTime() >= toMillis(getCreationTimeNanos())
+		         && toNanos(date) <= getCurrentTime() ) );
 	}
 	
 	/**
@@ -360,16 +444,48 @@ public class File {
 	
 	/**
 	 * Returns the modification time of the file.
+	 * 
+	 * @return A new date holding the modification time of this file, rounded down to milliseconds,
+	 *         or null if this file has not been modified.
 	 */
-	@Basic
 	public Date getModificationTime() {
+		if (!hasModificationTime())
+			return null;
+		return new Date(toMillis(getModificationTimeNanos()));
+	}
+	
+	/**
+	 * Returns the modification time of the file as an instant, null if this file has not been modified.
+	 */
+	public Instant getModificationInstant() {
+		if (!hasModificationTime())
+			return null;
+		return toInstant(getModificationTimeNanos());
+	}
+	
+	/**
+	 * Returns the modification time of the file, in nanoseconds since the epoch.
+	 * 
+	 * @pre   This file has been modified.
+	 *      | hasModificationTime()
+	 */
+	@Basic
+	public long getModificationTimeNanos() {
 		return this.modificationTime;
 	}
 	
+	/**
+	 * Check whether this file has been modified.
+	 */
+	public boolean hasModificationTime() {
+		return this.modificationTime != NO_TIME;
+	}
+	
 	/*
-	 * Variable registering the modification time of this file.
+	 * Variable registering the modification time of this file, in nanoseconds since the epoch,
+	 * or NO_TIME if this file has not been modified.
 	 */
-	private Date modificationTime = null;
+	private long modificationTime = NO_TIME;
 		
 	
 	/**
@@ -385,10 +501,10 @@ public class File {
 			 |	|| this.getCreationTime().after(file.getModificationTime()) )
 	 */
 	public boolean hasOverlappingUsePeriod(File file) {
-		if (this.getModificationTime() != null
-		   && file.getModificationTime() != null) {
-			return !(this.getModificationTime().before(file.getCreationTime())
-					|| this.getCreationTime().after(file.getModificationTime()));
+		if (this.hasModificationTime()
+		   && file.hasModificationTime()) {
+			return !(this.getModificationTimeNanos() < file.getCreationTimeNanos()
+					|| this.getCreationTimeNanos() > file.getModificationTimeNanos());
 		}
 		else
 			return false;
@@ -3,6 +3,8 @@ package file;
 import static org.junit.Assert.*;
 import org.junit.*;
 
+import java.util.Date;
+
 /**
  * A class made for testing the File class.
  * 
@@ -115,4 +117,37 @@ public class FileTest {
 			throws FileNotWritableException {
 		staticFile.setSize(5);
 	}
+	
+	@Test
+	public void clock_FakeClock() {
+		final long[] now = {5000000000L};
+		File.setClock(() -> now[0]);
+		try {
+			File file = new File("clocked", 10, true);
+			assertEquals(5000000000L, file.getCreationTimeNanos());
+			assertEquals(5000, file.getCreationTime().getTime());
+			assertFalse(file.hasModificationTime());
+			assertNull(file.getModificationTime());
+			now[0] += 1500;
+			file.enlarge(1);
+			assertEquals(5000001500L, file.getModificationTimeNanos());
+			assertEquals(1500, file.getModificationInstant().getNano()-file.getCreationInstant().getNano());
+			assertTrue(file.canHaveAsModificationTime(file.getModificationTime()));
+		} finally {
+			File.setClock(File.SYSTEM_CLOCK);
+		}
+	}
+	
+	@Test
+	public void clock_BeforeEpoch() {
+		File.setClock(() -> -1500000L);
+		try {
+			File file = new File("early", 10, true);
+			assertEquals(-2, file.getCreationTime().getTime());
+			assertTrue(file.canHaveAsModificationTime(file.getCreationTime()));
+			assertFalse(file.canHaveAsModificationTime(new Date(-3)));
+		} finally {
+			File.setClock(File.SYSTEM_CLOCK);
+		}
+	}
 }
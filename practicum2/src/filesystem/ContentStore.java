@@ -0,0 +1,263 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import be.kuleuven.cs.som.annotate.*;
+
+/**
+ * A class of stores holding the contents of files outside the heap.
+ *   A store hands out regions of large buffers, either direct buffers allocated as they are needed
+ *   or a single buffer mapped onto a file. The capacity of each region is a power of two, and regions
+ *   that are given back are kept per capacity to be handed out again.
+ *
+ * @invar   The slab size of each store is a power of two of at least the minimum region capacity.
+ *          | isValidSlabSize(getSlabSize())
+ *
+ * @author  Tim Lauwers, Tim Robensyn, Robbe Van Biervliet
+ * @version 1.0
+ */
+public final class ContentStore {
+
+	/**
+	 * Initialize a new store handing out regions of the given first slab.
+	 *
+	 * @param  slab
+	 *         The first slab of the new store.
+	 * @param  growable
+	 *         Whether the new store allocates further direct slabs when its slabs are full.
+	 */
+	private ContentStore(ByteBuffer slab, boolean growable) {
+		this.slabSize = slab.capacity();
+		this.slab = slab;
+		this.growable = growable;
+	}
+
+	/**
+	 * Return a new store that allocates its slabs as direct buffers of the given size.
+	 *
+	 * @param  slabSize
+	 *         The size of each slab of the new store, in bytes.
+	 * @return A new store of which the slab size is the given size.
+	 *         | result.getSlabSize() == slabSize
+	 * @throws IllegalArgumentException
+	 *         The given slab size is not valid.
+	 *         | !isValidSlabSize(slabSize)
+	 */
+	public static ContentStore allocateDirect(int slabSize) throws IllegalArgumentException {
+		if (!isValidSlabSize(slabSize))
+			throw new IllegalArgumentException("Invalid slab size.");
+		return new ContentStore(ByteBuffer.allocateDirect(slabSize), true);
+	}
+
+	/**
+	 * Return a new store of which the single slab is the first bytes of the given file, mapped in memory.
+	 *
+	 * @param  path
+	 *         The path of the file to map, which is created if it does not exist.
+	 * @param  slabSize
+	 *         The number of bytes to map.
+	 * @return A new store of which the slab size is the given size, and that does not grow beyond it.
+	 *         | result.getSlabSize() == slabSize
+	 * @throws IllegalArgumentException
+	 *         The given path is not effective or the given slab size is not valid.
+	 *         | path == null || !isValidSlabSize(slabSize)
+	 * @throws IOException
+	 *         The given file cannot be opened or mapped.
+	 */
+	public static ContentStore map(Path path, int slabSize) throws IllegalArgumentException, IOException {
+		if (path == null)
+			throw new IllegalArgumentException("Cannot map a non-effective path.");
+		if (!isValidSlabSize(slabSize))
+			throw new IllegalArgumentException("Invalid slab size.");
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer slab = channel.map(FileChannel.MapMode.READ_WRITE, 0, slabSize);
+			return new ContentStore(slab, false);
+		}
+	}
+
+
+	/**********************************************************
+	 * Slabs
+	 **********************************************************/
+
+	/**
+	 * Return the size of the slabs of this store, in bytes.
+	 */
+	@Basic @Immutable
+	public int getSlabSize() {
+		return this.slabSize;
+	}
+
+	/**
+	 * Check whether the given size is a valid slab size for any store.
+	 *
+	 * @param  slabSize
+	 *         The size to check.
+	 * @return True if and only if the given size is a power of two, not smaller than the minimum
+	 *         region capacity.
+	 *         | result == (slabSize >= getMinimumCapacity() && Integer.bitCount(slabSize) == 1)
+	 */
+	public static boolean isValidSlabSize(int slabSize) {
+		return slabSize >= getMinimumCapacity() && Integer.bitCount(slabSize) == 1;
+	}
+
+	/**
+	 * Return the smallest capacity of the regions handed out by any store.
+	 */
+	@Basic @Immutable
+	public static int getMinimumCapacity() {
+		return 64;
+	}
+
+	/**
+	 * Return the number of bytes in regions of this store that are handed out.
+	 */
+	public synchronized long getNbBytesInUse() {
+		return this.nbBytesInUse;
+	}
+
+	private final int slabSize;
+
+	/**
+	 * Variable referencing the slab regions are currently cut from.
+	 */
+	private ByteBuffer slab;
+
+	/**
+	 * Variable registering whether this store allocates new slabs when its slab is full.
+	 */
+	private final boolean growable;
+
+	private long nbBytesInUse = 0;
+
+
+	/**********************************************************
+	 * Regions
+	 **********************************************************/
+
+	/**
+	 * Return a region of this store that can hold at least the given number of bytes.
+	 *
+	 * @param  size
+	 *         The number of bytes the region must hold.
+	 * @return A buffer of which the capacity is the smallest power of two not smaller than the
+	 *         given size and the minimum capacity, with position zero and limit the given size,
+	 *         of which all bytes are zero.
+	 * @throws IllegalStateException
+	 *         The store cannot grow and has no free region of the required capacity.
+	 * @note   Regions larger than a slab are allocated on their own and not kept when given back.
+	 */
+	synchronized ByteBuffer allocate(int size) throws IllegalStateException {
+		int capacity = getCapacityFor(size);
+		ByteBuffer region = null;
+		int sizeClass = Integer.numberOfTrailingZeros(capacity);
+		if (sizeClass < freeRegions.size())
+			region = freeRegions.get(sizeClass).poll();
+		if (region == null)
+			region = cut(capacity);
+		region.clear();
+		clear(region, 0, capacity);
+		region.limit(size);
+		this.nbBytesInUse += capacity;
+		return region;
+	}
+
+	/**
+	 * Give the given region back to this store.
+	 *
+	 * @param  region
+	 *         The region to give back, as handed out by this store.
+	 * @post   The region can be handed out again, unless it was larger than a slab.
+	 */
+	synchronized void release(ByteBuffer region) {
+		int capacity = region.capacity();
+		this.nbBytesInUse -= capacity;
+		if (capacity > getSlabSize())
+			return;
+		int sizeClass = Integer.numberOfTrailingZeros(capacity);
+		freeRegions.get(sizeClass).push(region);
+	}
+
+	/**
+	 * Set the bytes of the given region from the given start up to the given end to zero.
+	 *
+	 * @param  region
+	 *         The region to clear.
+	 * @param  from
+	 *         The position of the first byte to clear.
+	 * @param  to
+	 *         The position after the last byte to clear.
+	 * @note   The position and limit of the given region are left untouched.
+	 */
+	static void clear(ByteBuffer region, int from, int to) {
+		ByteBuffer target = region.duplicate();
+		target.clear();
+		target.position(from);
+		while (target.position() < to) {
+			int length = Math.min(ZEROS.length, to-target.position());
+			target.put(ZEROS, 0, length);
+		}
+	}
+
+	private static final byte[] ZEROS = new byte[4096];
+
+	/**
+	 * Return the capacity of the regions holding the given number of bytes.
+	 */
+	@Model
+	private static int getCapacityFor(int size) {
+		if (size <= getMinimumCapacity())
+			return getMinimumCapacity();
+		if (size > (1 << 30))
+			return size;
+		return Integer.highestOneBit(size-1) << 1;
+	}
+
+	/**
+	 * Cut a new region of the given capacity from the slab of this store.
+	 */
+	@Model
+	private ByteBuffer cut(int capacity) throws IllegalStateException {
+		if (capacity > getSlabSize()) {
+			if (!growable)
+				throw new IllegalStateException("The region does not fit in this store.");
+			return ByteBuffer.allocateDirect(capacity);
+		}
+		if (slab.remaining() < capacity) {
+			if (!growable)
+				throw new IllegalStateException("This store is full.");
+			slab = ByteBuffer.allocateDirect(getSlabSize());
+		}
+		ByteBuffer region = slab.slice();
+		region.limit(capacity);
+		region = region.slice();
+		slab.position(slab.position()+capacity);
+		return region;
+	}
+
+	/**
+	 * The regions that are given back, by the base two logarithm of their capacity.
+	 */
+	private final List<ArrayDeque<ByteBuffer>> freeRegions = newFreeRegions();
+
+	/**
+	 * Return a list with an empty queue of free regions for each capacity that is a power of two.
+	 */
+	@Model
+	private static List<ArrayDeque<ByteBuffer>> newFreeRegions() {
+		List<ArrayDeque<ByteBuffer>> result = new ArrayList<ArrayDeque<ByteBuffer>>(Integer.SIZE-1);
+		for (int sizeClass = 0; sizeClass < Integer.SIZE-1; sizeClass++)
+			result.add(new ArrayDeque<ByteBuffer>());
+		return result;
+	}
+
+}
@@ -2,6 +2,34 @@ package filesystem;
 
 import be.kuleuven.cs.som.annotate.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A class of directories
@@ -15,7 +43,7 @@ import java.util.ArrayList;
  */
 
 
-public class Directory extends FileSystemObject {
+public class Directory extends FileSystemObject implements Iterable<FileSystemObject> {
 	
     /**********************************************************
      * Constructors
@@ -33,9 +61,13 @@ public class Directory extends FileSystemObject {
 	 * @effect The new directory is a file system object with the given parent directory,
 	 *         name and writability.
 	 *         | super(dir,name,writable) 
+	 * @note   The new directory is only added to the given directory once its own fields are
+	 *         initialized, so threads walking that directory never see it half constructed.
 	 */
 	public Directory(Directory dir, String name, boolean writable) {
-		super(dir, name, writable);
+		super(name, writable);
+		setParentDirectory(dir);
+		addToIndexOfFileSystem();
 	}
 	
 	/**
@@ -82,6 +114,25 @@ public class Directory extends FileSystemObject {
 		this(name, true);
 	}
 	
+	/**
+	 * Initialize a new directory kept at the given offset in the given image, with given parent directory,
+	 * name, writability, creation time, modification time and totals, of which the items are loaded
+	 * from the image when they are first needed.
+	 * 
+	 * @effect The new directory is a file system object loaded from the given image with the given
+	 *         parent directory, name, writability, creation time and modification time.
+	 *         | super(dir,name,writable,creationTime,modificationTime,image,offset)
+	 * @post   The new directory has the given totals.
+	 *         | new.getTotalSize() == totalSize && new.getTotalNbItems() == totalNbItems
+	 */
+	Directory(Directory dir, String name, boolean writable, long creationTime, long modificationTime,
+			long totalSize, int totalNbItems, FileSystemImage image, long offset) {
+		super(dir, name, writable, creationTime, modificationTime, image, offset);
+		this.totalSize = totalSize;
+		this.totalNbItems = totalNbItems;
+		this.isPending = true;
+	}
+	
 
 	
     /**********************************************************
@@ -89,24 +140,118 @@ public class Directory extends FileSystemObject {
      **********************************************************/
 	
 	/**
-	 * Variable referencing the ArrayList with the directories and files contained in this directory.
+	 * Variable referencing the sorted collection of directories and files contained in this directory,
+	 * keyed by their name in lower case.
 	 * 
-	 * @invar The list of contents is effective.
+	 * @invar The collection of contents is effective.
 	 *        | contents != null
-	 * @invar Each item in the contents list is effective.
+	 * @invar Each item in the contents is effective.
 	 *        | for each item in contents:
 	 *        |   item != null
-	 * @invar Each item in the contents list is not terminated.
+	 * @invar Each item in the contents is not terminated.
 	 *        | for each item in contents:
 	 *        |   !item.isTerminated()
-	 * @invar Each item in the contents list has this directory as its parent directory.
+	 * @invar Each item in the contents has this directory as its parent directory.
 	 *        | for each item in contents:
 	 *        |   item.getParentDirectory() == this
-	 * @invar The lists of contents is alphabetically ordered.
+	 * @invar The contents are alphabetically ordered.
 	 *        | for each I in 2..getNbItems()
 	 *        |   getItemAt(I).isLexicographicallyAfter(getItemAt(I-1)) 
+	 * @note  Lookups, insertions, removals and positional access all take logarithmic time.
+	 * @note  The contents are only replaced while this directory is locked for writing.
+	 */
+	private volatile DirectoryContents contents = DirectoryContents.EMPTY;
+	
+	/**
+	 * Variable referencing a map from the keys of the items of this directory to those items.
+	 * 
+	 * @invar The map holds exactly the items of the contents, under the same keys.
+	 *        | for each I in 1..getNbItems():
+	 *        |   itemsByKey.get(contents.getKeyAt(I)) == contents.getAt(I)
+	 * @note  The map is changed together with the contents, while this directory is locked for writing.
+	 *        It lets clash checks on names probe a hash table in constant time instead of the tree.
+	 * @note  The map is only created once an item is added, so empty directories do not carry one.
+	 *        Until then it is null.
 	 */
-	public ArrayList<FileSystemObject> contents = new ArrayList<FileSystemObject>();
+	private volatile Map<String,FileSystemObject> itemsByKey = null;
+	
+	/**
+	 * Return the map from the keys of the items of this directory to those items, creating it if
+	 * it has not been created yet.
+	 * 
+	 * @pre    This directory is locked for writing, or it is being materialized.
+	 */
+	@Model
+	private Map<String,FileSystemObject> getItemsByKey() {
+		Map<String,FileSystemObject> result = itemsByKey;
+		if (result == null) {
+			result = new ConcurrentHashMap<String,FileSystemObject>();
+			itemsByKey = result;
+		}
+		return result;
+	}
+	
+	/**
+	 * Return the current contents of this directory.
+	 * 
+	 * @note   The contents are immutable, so the result is a snapshot that later changes to this
+	 *         directory leave untouched.
+	 */
+	@Basic @Raw
+	DirectoryContents getContents() {
+		return readContents();
+	}
+	
+	/**
+	 * Return the key under which an item with the given name is kept in the contents of a directory.
+	 * 
+	 * @param  name
+	 *         The name to return the key of.
+	 * @return The given name in lower case.
+	 *         | result == name.toLowerCase(Locale.ROOT)
+	 * @note   Valid names only consist of ASCII letters, digits, dots, hyphens and underscores,
+	 *         so ordering keys is the same as ordering names ignoring case.
+	 */
+	@Model
+	static String getKeyOf(String name) {
+		return name.toLowerCase(Locale.ROOT);
+	}
+	
+	/**
+	 * Return the file system object in this directory that owns the given name, null if there is none.
+	 * 
+	 * @param  name
+	 *         The name of the file system object to look up.
+	 * @return The file system object in this directory whose name equals the given name ignoring case,
+	 *         or null if the given name is not effective or there is no such object.
+	 * @note   The given name is folded once and looked up in the map of items by key, in constant time.
+	 */
+	@Model
+	private FileSystemObject lookup(String name) {
+		if (name == null)
+			return null;
+		return lookupKey(getKeyOf(name));
+	}
+	
+	/**
+	 * Return the file system object in this directory kept under the given key, null if there is none.
+	 * 
+	 * @note   The map of items by key is read optimistically, like the contents. If a thread was changing
+	 *         this directory in the meantime, the key is looked up in the contents instead.
+	 */
+	@Model
+	private FileSystemObject lookupKey(String key) {
+		if (isPending)
+			materialize();
+		if (writer == Thread.currentThread())
+			return (itemsByKey == null) ? null : itemsByKey.get(key);
+		long stamp = lock.tryOptimisticRead();
+		Map<String,FileSystemObject> items = itemsByKey;
+		FileSystemObject item = (items == null) ? null : items.get(key);
+		if (lock.validate(stamp))
+			return item;
+		return readContents().get(key);
+	}
 	
 
 	/**
@@ -115,7 +260,7 @@ public class Directory extends FileSystemObject {
 	 * @param  index
 	 * 		   The index of the wanted file system object
 	 * @return The file system object in this directory with the given index
-	 * 		   | return contents.get(index)
+	 * 		   | return contents.getAt(index)
 	 * @throws IndexOutOfBoundsException
 	 *         The given index is not positive or is greater than the amount of 
 	 *         items in this directory.
@@ -123,7 +268,7 @@ public class Directory extends FileSystemObject {
 	 */
 	@Basic @Raw
 	public FileSystemObject getItemAt(int index) throws IndexOutOfBoundsException {
-		return contents.get(index-1);
+		return readContents().getAt(index);
 	}
 	
 	/**
@@ -137,26 +282,10 @@ public class Directory extends FileSystemObject {
 	 *         | !exists(name)
 	 */
 	public FileSystemObject getItem(String name) throws IllegalArgumentException {
-		if(! exists(name)) {
+		FileSystemObject item = lookup(name);
+		if (item == null)
 			throw new IllegalArgumentException("This directory does not contain an object with the given name.");
-		} else {
-			FileSystemObject item = null;
-			int R = getNbItems();
-			int L = 1;
-			while(L <= R) {
-				int mid =  (int) Math.floor((R+L)/2);
-				String objName = this.getItemAt(mid).getName();
-				if(name.compareToIgnoreCase(objName) > 0) {
-					L = mid+1;
-				} else if(name.compareToIgnoreCase(objName) < 0) {
-					R = mid-1;
-				} else {
-					item = this.getItemAt(mid);
-					break;
-				}
-			}
-			return item;
-		}
+		return item;
 	}
 	
 	
@@ -170,6 +299,9 @@ public class Directory extends FileSystemObject {
 	 *         | if ( obj == null || obj == this || !this.isWritable()
 	 *         |   || obj.isTerminated() || this.isTerminated() )
 	 *         |   then result == false 
+	 *         Else if the given object is a directory above this directory, then return false.
+	 *         | else if (obj instanceof Directory && isDirectOrIndirectSubdirectoryOf((Directory) obj))
+	 *         |   then result == false
 	 *         Else if the given object is an item of this directory, then true if and only if this objects name
 	 *         does not occur at other objects in this directory.
 	 *         | else if ( this.hasAsItem(obj))
@@ -186,14 +318,11 @@ public class Directory extends FileSystemObject {
 		if (obj == null || obj==this || !this.isWritable() 
 			|| obj.isTerminated() || this.isTerminated() )
 		    return false;
+		if (obj instanceof Directory && isDirectOrIndirectSubdirectoryOf((Directory) obj))
+			return false;
 		if (hasAsItem(obj)) {
-			int indexOfObj = getIndexOf(obj);
-			String nameOfObj = obj.getName();
-			boolean bool = true;
-			for (int i=1; i<=getNbItems();i++) {
-				if (getItemAt(i).getName().equalsIgnoreCase(nameOfObj)&& i!=indexOfObj) bool = false;
-			}
-			return bool;
+			// The contents hold at most one item per key, so no other item has the same name.
+			return true;
 		}
 		else {
 			return ( !this.exists(obj.getName()) &&
@@ -283,12 +412,8 @@ public class Directory extends FileSystemObject {
 		if (!hasAsItem(object))
 			throw new IllegalArgumentException("This directory does not contain the given object.");
 		else {
-			int index = 1;
-			while(getItemAt(index)!=object && index<=getNbItems() ) {
-				index++;
-			}
-			return index;
-		}		
+			return readContents().rankOf(object.getNameKey())+1;
+		}
 	}
 	
 	/**
@@ -296,7 +421,60 @@ public class Directory extends FileSystemObject {
 	 */
 	@Basic @Raw
 	public int getNbItems() {
-		return contents.size();
+		return readContents().size();
+	}
+	
+	/**
+	 * Return an iterator over the items of this directory.
+	 * 
+	 * @return An iterator over all items of this directory, in the order of their index.
+	 *         | for each I in 1..getNbItems(): the I-th item returned is getItemAt(I)
+	 * @note   The iterator walks the contents of this directory as they are when it is created,
+	 *         so later changes to this directory never make it fail nor show up in it.
+	 *         It moves to each next item without looking up positions.
+	 */
+	@Override
+	public Iterator<FileSystemObject> iterator() {
+		return readContents().iterator(null, null);
+	}
+	
+	/**
+	 * Return a sequential stream of the items of this directory.
+	 * 
+	 * @return A stream of all items of this directory, in the order of their index, of the contents
+	 *         this directory has when the stream is created.
+	 *         | the I-th element of result is getItemAt(I)
+	 */
+	public Stream<FileSystemObject> stream() {
+		DirectoryContents items = readContents();
+		return StreamSupport.stream(Spliterators.spliterator(items.iterator(null, null), items.size(),
+				Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.IMMUTABLE), false);
+	}
+	
+	/**
+	 * Return the items of this directory whose name lies in the given range.
+	 * 
+	 * @param  fromName
+	 *         The smallest name to include, or null to start at the first item.
+	 * @param  toName
+	 *         The smallest name to leave out, or null to end at the last item.
+	 * @return The items of this directory whose name, ignoring case, is at least the given from name
+	 *         and smaller than the given to name, in the order of their index.
+	 *         | for each obj in result:
+	 *         |   hasAsItem(obj) && (fromName == null || obj.getName().compareToIgnoreCase(fromName) >= 0)
+	 *         |     && (toName == null || obj.getName().compareToIgnoreCase(toName) < 0)
+	 * @note   Each iteration over the result starts at the from name in logarithmic time and walks
+	 *         the contents this directory has at that moment, so only the items in the range are visited.
+	 */
+	public Iterable<FileSystemObject> subRange(String fromName, String toName) {
+		final String fromKey = fromName == null ? null : getKeyOf(fromName);
+		final String toKey = toName == null ? null : getKeyOf(toName);
+		return new Iterable<FileSystemObject>() {
+			@Override
+			public Iterator<FileSystemObject> iterator() {
+				return readContents().iterator(fromKey, toKey);
+			}
+		};
 	}
 	
 	
@@ -313,15 +491,8 @@ public class Directory extends FileSystemObject {
 	 */
 	@Raw
 	public boolean hasAsItem(@Raw FileSystemObject obj) {
-		boolean bool = false;
-		int index = 1;
-		while((index <= this.getNbItems()) && (bool == false)) {
-			if(this.getItemAt(index) == obj) 
-				bool = true;
-			else 
-				index++;			
-		}
-		return bool;
+		return obj != null && obj.getNameKey() != null
+				&& lookupKey(obj.getNameKey()) == obj;
 	}
 	
 	/**
@@ -330,17 +501,10 @@ public class Directory extends FileSystemObject {
 	 * @param  name
 	 * 		   The name to check.
 	 * @return True if and only if this directory contains a file system object with the given name.
+	 *         | result == (lookup(name) != null)
 	 */
 	public boolean exists(String name) {
-		boolean bool = false;
-		int index = 1;
-		while((index <= getNbItems())&&(bool == false)) {
-			if(getItemAt(index).getName().equalsIgnoreCase(name)) {
-				bool = true;
-			}
-			index++;
-		}
-		return bool;
+		return lookup(name) != null;
 	}
 	
 
@@ -366,18 +530,17 @@ public class Directory extends FileSystemObject {
 	 */
 	@Raw
 	public void addAsItem(@Raw FileSystemObject obj) throws IllegalArgumentException {
-		if (hasAsItem(obj) || !canHaveAsItem(obj) )
-			throw new IllegalArgumentException("Cannot add the given file system object to this directory");	
-				
-		int size = getNbItems();
-		int pos = 1;
-		while (pos <= size) {
-			if (obj.isLexicographicallyAfter(getItemAt(pos)))
-				pos++;
-			else break;
-		}
-		addItemAt(obj,pos);
-		setModificationTime();
+		Locks locks = lockWithAncestors(this);
+		try {
+			if (hasAsItem(obj) || !canHaveAsItem(obj) )
+				throw new IllegalArgumentException("Cannot add the given file system object to this directory");	
+					
+			addItemAt(obj,contents.rankOf(obj.getNameKey())+1);
+			FileSystemEvents.publish(obj, this, FileSystemEvent.Kind.ADDED);
+			setModificationTime();
+		} finally {
+			locks.release();
+		}
 	}
 	
 	/**
@@ -395,6 +558,9 @@ public class Directory extends FileSystemObject {
 	 *         as content item at one index higher.
 	 *         | for each I in index..getNbItems():
 	 *         |   (new.getItemAt(I+1) == getItemAt(I))
+	 * @effect The totals of this directory and all directories above it are increased with the
+	 *         totals of the given object.
+	 *         | adjustTotals(getTotalSizeOf(obj), getTotalNbItemsOf(obj))
 	 * @throws IllegalArgumentException
 	 *         This directory cannot have the given file system object as a content item
 	 *         at the given index.
@@ -409,7 +575,10 @@ public class Directory extends FileSystemObject {
 		if(! isWritable()) {
 			throw new ObjectNotWritableException(this);
 		}
-		contents.add(index-1, obj);
+		beforeChange();
+		contents = contents.with(obj.getNameKey(), obj);
+		getItemsByKey().put(obj.getNameKey(), obj);
+		adjustTotals(getTotalSizeOf(obj), getTotalNbItemsOf(obj));
 	}
 	
 	/**
@@ -431,10 +600,16 @@ public class Directory extends FileSystemObject {
 	 *         | (index<1 || index> getNbItems())
 	 */
 	public void removeAsItem(FileSystemObject obj) throws IllegalArgumentException {
-		if (!hasAsItem(obj))
-			throw new IllegalArgumentException("This file system object is not an item of this directory.");
-		removeItemAt(getIndexOf(obj));
-		setModificationTime();
+		Locks locks = lockWithAncestors(this);
+		try {
+			if (!hasAsItem(obj))
+				throw new IllegalArgumentException("This file system object is not an item of this directory.");
+			removeItemAt(getIndexOf(obj));
+			FileSystemEvents.publish(obj, this, FileSystemEvent.Kind.REMOVED);
+			setModificationTime();
+		} finally {
+			locks.release();
+		}
 	}
 	
 	/**
@@ -451,6 +626,9 @@ public class Directory extends FileSystemObject {
 	 *         are registered as file system object at one index lower.
 	 *         | for each I in index+1..getNbItems()
 	 *         |   (new.getItemAt(I-1) == this.getItemAt(I))
+	 * @effect The totals of this directory and all directories above it are decreased with the
+	 *         totals of the removed object.
+	 *         | adjustTotals(-getTotalSizeOf(getItemAt(index)), -getTotalNbItemsOf(getItemAt(index)))
 	 * @throws IndexOutOfBoundsException
 	 *         The given index is not positive or it exceeds the number of content items
 	 *         associated with this directory.
@@ -465,7 +643,12 @@ public class Directory extends FileSystemObject {
 		if(! isWritable()) {
 			throw new ObjectNotWritableException(this);
 		}
-		contents.remove(index-1);
+		FileSystemObject obj = contents.getAt(index);
+		String key = contents.getKeyAt(index);
+		beforeChange();
+		contents = contents.without(key);
+		getItemsByKey().remove(key);
+		adjustTotals(-getTotalSizeOf(obj), -getTotalNbItemsOf(obj));
 	}
 	
 	
@@ -475,28 +658,240 @@ public class Directory extends FileSystemObject {
 	 * 
 	 * @param  changedObj
 	 *         The object of which the name has changed.
+	 * @param  oldName
+	 *         The name of the changed object before it was changed.
 	 * @post   The content list of this directory is properly ordered.
 	 *         | hasProperItems()
-	 * @effect The changed object is first removed from the content list,
-	 *         | removeItemAt(getIndexOf(changedObj))
-	 *         then a new proper index is searched at which the object is inserted 
-	 *         in the content list.
-	 *         | addItemAt(changedObj,newIndex)
+	 * @effect The changed object is first removed from the contents at the index of its old name,
+	 *         | removeItemAt(contents.rankOf(getKeyOf(oldName))+1)
+	 *         then it is inserted at the index of its new name.
+	 *         | addItemAt(changedObj,contents.rankOf(changedObj.getNameKey())+1)
 	 * @note   Errors are caught by the underlying used methods, removeItemAt and addItemAt. 
 	 */
-	protected void orderDirectory(FileSystemObject changedObj) {
-		int index = getIndexOf(changedObj);
-		removeItemAt(index);
+	protected void orderDirectory(FileSystemObject changedObj, String oldName) {
+		Locks locks = lockWithAncestors(this);
+		try {
+			removeItemAt(contents.rankOf(getKeyOf(oldName))+1);
+			addItemAt(changedObj,contents.rankOf(changedObj.getNameKey())+1);
+		} finally {
+			locks.release();
+		}
+	}
+	
+	/**
+	 * Add all given file system objects to the contents of this directory at once.
+	 * 
+	 * @param  objects
+	 *         The file system objects to move into this directory.
+	 * @effect Each given file system object is moved to this directory, as by move(this),
+	 *         but the contents of this directory are updated in a single step.
+	 *         | for each obj in objects:
+	 *         |   obj.move(this)
+	 * @effect The modification time of this directory is updated once.
+	 *         | setModificationTime()
+	 * @throws IllegalArgumentException
+	 *         The given collection is not effective, or one of the given objects is already an
+	 *         item of this directory, cannot be an item of this directory, or has the same name,
+	 *         ignoring case, as another given object. In that case nothing is changed.
+	 *         | objects == null || for some obj in objects:
+	 *         |   hasAsItem(obj) || !canHaveAsItem(obj) ||
+	 *         |   for some other in objects: other != obj && other.getName().equalsIgnoreCase(obj.getName())
+	 * @note   All objects are validated in one pass before anything changes, and the contents of
+	 *         this directory are merged with the new items once. Meanwhile this directory, the former
+	 *         parent directories of the objects and the objects that are directories are locked for
+	 *         writing, all directories above them for reading, and the objects that are roots are
+	 *         locked themselves, so none of the objects changes place, name or size otherwise.
+	 */
+	public void addAllAsItems(Collection<? extends FileSystemObject> objects) throws IllegalArgumentException {
+		if (objects == null)
+			throw new IllegalArgumentException("Cannot add a non-effective collection.");
+		List<FileSystemObject> given = new ArrayList<FileSystemObject>(objects);
+		while (true) {
+			List<Directory> changed = new ArrayList<Directory>();
+			List<Directory> parents = new ArrayList<Directory>(given.size());
+			List<FileSystemObject> roots = new ArrayList<FileSystemObject>();
+			changed.add(this);
+			for (FileSystemObject obj: given) {
+				Directory parent = obj.getParentDirectory();
+				parents.add(parent);
+				changed.add(parent);
+				if (obj instanceof Directory)
+					changed.add((Directory) obj);
+				if (parent == null)
+					roots.add(obj);
+			}
+			Locks locks = lock(changed, null);
+			try {
+				boolean added = FileSystemObject.changeHoldingAll(roots, () -> {
+					for (int i = 0; i < given.size(); i++)
+						if (given.get(i).getParentDirectory() != parents.get(i))
+							return false;
+					addAllAsItemsLocked(given);
+					return true;
+				});
+				if (added)
+					return;
+			} finally {
+				locks.release();
+			}
+		}
+	}
+	
+	/**
+	 * Add all given file system objects to the contents of this directory at once, while holding
+	 * all locks needed.
+	 * 
+	 * @see addAllAsItems(Collection)
+	 */
+	@Model
+	private void addAllAsItemsLocked(List<FileSystemObject> objects) throws IllegalArgumentException {
+		SortedMap<String,FileSystemObject> added = new TreeMap<String,FileSystemObject>();
+		for (FileSystemObject obj: objects) {
+			if (hasAsItem(obj) || !canHaveAsItem(obj) || added.put(obj.getNameKey(), obj) != null)
+				throw new IllegalArgumentException("Cannot add the given file system objects to this directory");
+		}
+		if (added.isEmpty())
+			return;
 		
-		int size = this.getNbItems();
-		int pos = 1;
-		while (pos <= size) {
-			if (changedObj.isLexicographicallyAfter(getItemAt(pos)))
-				pos++;
-			else break;
+		List<FileSystemIndex> oldIndexes = new ArrayList<FileSystemIndex>(added.size());
+		for (FileSystemObject obj: added.values())
+			oldIndexes.add(obj.isRoot() ? null : obj.getIndexOfFileSystem());
+		long sizeDelta = 0;
+		int nbItemsDelta = 0;
+		for (FileSystemObject obj: added.values()) {
+			obj.moveWithoutAdding(this);
+			sizeDelta += getTotalSizeOf(obj);
+			nbItemsDelta += getTotalNbItemsOf(obj);
 		}
+		beforeChange();
+		contents = contents.withAll(added, Collections.<String>emptySet());
+		getItemsByKey().putAll(added);
+		adjustTotals(sizeDelta, nbItemsDelta);
 		
-		addItemAt(changedObj,pos);
+		FileSystemIndex newIndex = getIndexOfFileSystem();
+		int position = 0;
+		for (FileSystemObject obj: added.values()) {
+			FileSystemIndex oldIndex = oldIndexes.get(position++);
+			if (oldIndex != newIndex) {
+				if (oldIndex != null)
+					oldIndex.removeSubtree(obj);
+				if (newIndex != null)
+					newIndex.addSubtree(obj);
+			}
+			FileSystemEvents.publish(obj, this, FileSystemEvent.Kind.ADDED);
+			obj.setModificationTime();
+		}
+		setModificationTime();
+	}
+	
+	/**
+	 * Rename items of this directory at once.
+	 * 
+	 * @param  names
+	 *         The new names, by the item they are given to.
+	 * @effect Each given item whose new name differs from its current name, ignoring case, gets its
+	 *         new name, and its modification time is updated.
+	 *         | for each obj in names.keySet():
+	 *         |   if (!names.get(obj).equalsIgnoreCase(obj.getName()))
+	 *         |     then obj.getName().equals(names.get(obj))
+	 * @post   The contents of this directory are properly ordered.
+	 *         | hasProperItems()
+	 * @throws IllegalArgumentException
+	 *         The given map is not effective, one of its items is not an item of this directory,
+	 *         one of its new names is not valid, or after renaming two items of this directory would
+	 *         have the same name, ignoring case. In that case nothing is changed.
+	 *         | names == null || for some obj in names.keySet():
+	 *         |   !hasAsItem(obj) || !isValidName(names.get(obj)) || ...
+	 * @throws ObjectNotWritableException
+	 *         This directory or one of the items to rename is not writable. In that case nothing is changed.
+	 *         | !isWritable() || for some obj in names.keySet(): !obj.isWritable()
+	 * @note   Unlike renaming the items one by one, items may swap names. The names are validated in
+	 *         one pass, and the contents of this directory are merged with the renamed items once.
+	 * @note   Like changing the name of a single item, this only locks this directory for writing and
+	 *         the directories above it for reading. No item can leave this directory or be renamed
+	 *         otherwise in the meantime, since that locks this directory for writing as well.
+	 */
+	public void renameAll(Map<? extends FileSystemObject,String> names)
+			throws IllegalArgumentException, ObjectNotWritableException {
+		if (names == null)
+			throw new IllegalArgumentException("Cannot rename with a non-effective map.");
+		Locks locks = lockWithAncestors(this);
+		try {
+			SortedMap<String,FileSystemObject> added = new TreeMap<String,FileSystemObject>();
+			Set<String> removed = new HashSet<String>();
+			for (Map.Entry<? extends FileSystemObject,String> entry: names.entrySet()) {
+				FileSystemObject obj = entry.getKey();
+				String name = entry.getValue();
+				if (!hasAsItem(obj) || !isValidName(name))
+					throw new IllegalArgumentException("Cannot give the given item the given name.");
+				if (!obj.isWritable())
+					throw new ObjectNotWritableException(obj);
+				if (!name.equalsIgnoreCase(obj.getName())) {
+					removed.add(obj.getNameKey());
+					if (added.put(getKeyOf(name), obj) != null)
+						throw new IllegalArgumentException("Two items cannot get the same name.");
+				}
+			}
+			if (!isWritable())
+				throw new ObjectNotWritableException(this);
+			for (String key: added.keySet())
+				if (!removed.contains(key) && readContents().get(key) != null)
+					throw new IllegalArgumentException("An item with the same name already exists.");
+			
+			beforeChange();
+			contents = contents.withAll(added, removed);
+			getItemsByKey().keySet().removeAll(removed);
+			getItemsByKey().putAll(added);
+			for (Map.Entry<String,FileSystemObject> entry: added.entrySet())
+				entry.getValue().renameWithinBatch(names.get(entry.getValue()));
+		} finally {
+			locks.release();
+		}
+	}
+	
+	
+	/**
+	 * Check whether the given items can be added to this directory after the items with the given
+	 * keys are removed from it.
+	 * 
+	 * @param  added
+	 *         The items to add, by their key.
+	 * @param  removed
+	 *         The keys of the items to remove.
+	 * @throws IllegalArgumentException
+	 *         An item to add has the same key as another item of this directory that is not removed.
+	 *         | for some key in added.keySet():
+	 *         |   lookupKey(key) != null && lookupKey(key) != added.get(key) && !removed.contains(key)
+	 */
+	void checkNewItems(SortedMap<String,FileSystemObject> added, Set<String> removed)
+			throws IllegalArgumentException {
+		for (Map.Entry<String,FileSystemObject> entry: added.entrySet()) {
+			FileSystemObject existing = lookupKey(entry.getKey());
+			if (existing != null && existing != entry.getValue() && !removed.contains(entry.getKey()))
+				throw new IllegalArgumentException("An item with the same name already exists.");
+		}
+	}
+	
+	/**
+	 * Remove the items with the given keys from the contents of this directory and add the given items,
+	 * in a single step.
+	 * 
+	 * @param  added
+	 *         The items to add, by their key.
+	 * @param  removed
+	 *         The keys of the items to remove.
+	 * @pre    The current thread holds the lock of this directory for writing and the locks of all
+	 *         directories above it, and the changes are validated by checkNewItems(added, removed).
+	 *         | isLockedForWritingByCurrentThread()
+	 * @post   The contents of this directory are merged with the given changes once.
+	 * @note   The totals, parent directories, indexes and modification times of the items are
+	 *         left to the caller.
+	 */
+	void changeItems(SortedMap<String,FileSystemObject> added, Set<String> removed) {
+		beforeChange();
+		contents = contents.withAll(added, removed);
+		getItemsByKey().keySet().removeAll(removed);
+		getItemsByKey().putAll(added);
 	}
 	
 	
@@ -512,19 +907,463 @@ public class Directory extends FileSystemObject {
 	 *         | 	  result == true
 	 *         |   	else parent=parent.getParentDirectory()
 	 *         | while(parent != null)
+	 * @effect The result is whether the given directory lies above this directory.
+	 *         | result == hasAsAncestor(dir)
 	 */
 	public boolean isDirectOrIndirectSubdirectoryOf(Directory dir) {
-		Directory parent = this.getParentDirectory();
-		while (parent != null) {
-			if (parent == dir) {
+		return hasAsAncestor(dir);
+	}
+		
+	
+    /**********************************************************
+     * Totals
+     **********************************************************/
+	
+	/**
+	 * Return the total size of all files in this directory and in all directories below it.
+	 * 
+	 * @return The sum of the sizes of the files in this directory and the total sizes of the
+	 *         directories in this directory.
+	 *         | result == sum({getTotalSizeOf(getItemAt(I)) | I in 1..getNbItems()})
+	 */
+	@Basic
+	public long getTotalSize() {
+		return totalSize;
+	}
+	
+	/**
+	 * Return the total number of file system objects in this directory and in all directories below it.
+	 * 
+	 * @return The number of items in this directory plus the total number of items of the
+	 *         directories in this directory.
+	 *         | result == sum({getTotalNbItemsOf(getItemAt(I)) | I in 1..getNbItems()})
+	 */
+	@Basic
+	public int getTotalNbItems() {
+		return totalNbItems;
+	}
+	
+	/**
+	 * Return the size the given file system object contributes to the total size of its parent directory.
+	 * 
+	 * @return The total size of the given object if it is a directory, its size otherwise.
+	 *         | if (obj instanceof Directory)
+	 *         |   then result == ((Directory) obj).getTotalSize()
+	 *         |   else result == ((File) obj).getSize()
+	 */
+	@Model
+	static long getTotalSizeOf(FileSystemObject obj) {
+		if (obj instanceof Directory)
+			return ((Directory) obj).getTotalSize();
+		return ((File) obj).getSize();
+	}
+	
+	/**
+	 * Return the number of items the given file system object contributes to the total number of
+	 * items of its parent directory.
+	 * 
+	 * @return One more than the total number of items of the given object if it is a directory,
+	 *         one otherwise.
+	 *         | if (obj instanceof Directory)
+	 *         |   then result == ((Directory) obj).getTotalNbItems()+1
+	 *         |   else result == 1
+	 */
+	@Model
+	static int getTotalNbItemsOf(FileSystemObject obj) {
+		if (obj instanceof Directory)
+			return ((Directory) obj).getTotalNbItems()+1;
+		return 1;
+	}
+	
+	/**
+	 * Adapt the totals of this directory and of all directories above it with the given deltas.
+	 * 
+	 * @param  sizeDelta
+	 *         The amount of bytes by which the total sizes change.
+	 * @param  nbItemsDelta
+	 *         The amount of items by which the total numbers of items change.
+	 * @post   The total size of this directory and of each directory above it is adapted
+	 *         with the given size delta, its total number of items with the given item delta.
+	 *         | for each dir in {this} U {D | isDirectOrIndirectSubdirectoryOf(D)}:
+	 *         |   (new dir).getTotalSize() == dir.getTotalSize()+sizeDelta
+	 *         |   && (new dir).getTotalNbItems() == dir.getTotalNbItems()+nbItemsDelta
+	 * @note   Only the chain of parent directories is visited, so totals stay up to date in time
+	 *         proportional to the depth of this directory. Callers hold the locks of this directory
+	 *         and of all directories above it, so the chain does not change while it is visited.
+	 *         The totals are adapted atomically, so changes below the same directory need not
+	 *         wait for each other.
+	 */
+	void adjustTotals(long sizeDelta, int nbItemsDelta) {
+		for (Directory dir = this; dir != null; dir = dir.getParentDirectory()) {
+			totalSizeUpdater.addAndGet(dir, sizeDelta);
+			totalNbItemsUpdater.addAndGet(dir, nbItemsDelta);
+		}
+	}
+	
+	/**
+	 * Variable registering the total size of all files in and below this directory.
+	 */
+	private volatile long totalSize = 0;
+	
+	/**
+	 * Variable registering the total number of file system objects in and below this directory.
+	 */
+	private volatile int totalNbItems = 0;
+	
+	/**
+	 * Updaters adapting the totals of directories atomically, as several threads may change
+	 * items below the same directory at the same time.
+	 */
+	private static final AtomicLongFieldUpdater<Directory> totalSizeUpdater =
+			AtomicLongFieldUpdater.newUpdater(Directory.class, "totalSize");
+	private static final AtomicIntegerFieldUpdater<Directory> totalNbItemsUpdater =
+			AtomicIntegerFieldUpdater.newUpdater(Directory.class, "totalNbItems");
+	
+	
+    /**********************************************************
+     * Indexed queries
+     **********************************************************/
+	
+	/**
+	 * Return all files of the given type in and below this directory.
+	 * 
+	 * @param  type
+	 *         The type of the files to return.
+	 * @return A new set with each file of the given type that is in this directory or in a
+	 *         directory below it.
+	 * @note   The query uses the index of the file system of this directory, which is built
+	 *         the first time the file system is queried. If this directory is not a root and has
+	 *         fewer objects below it than its file system has files of the given type, the objects
+	 *         below it are walked instead. Otherwise the files of the index are filtered, climbing
+	 *         each directory above them at most once, so the query takes time proportional to the
+	 *         smallest of both numbers, plus the number of directories above the files.
+	 */
+	public Set<File> getFilesOfType(FileType type) {
+		FileSystemIndex index = buildIndexOfFileSystem();
+		if (isRoot())
+			return index.getFilesOfType(type);
+		if (getTotalNbItems() < index.getNbFilesOfType(type)) {
+			Set<File> files = new HashSet<File>();
+			FileSystemWalker.walk(this, FileSystemWalker.isFileOfType(type), obj -> files.add((File) obj));
+			return files;
+		}
+		Set<File> files = index.getFilesOfType(type);
+		Predicate<FileSystemObject> isBelow = getSubtreeFilter();
+		files.removeIf(file -> !isBelow.test(file));
+		return files;
+	}
+	
+	/**
+	 * Return all file system objects in and below this directory that were last modified after
+	 * the given date.
+	 * 
+	 * @param  date
+	 *         The date after which the returned objects were modified.
+	 * @return A new list with this directory and each object in or below this directory whose
+	 *         modification time is after the given date, ordered by modification time.
+	 * @throws IllegalArgumentException
+	 *         The given date is not effective.
+	 *         | date == null
+	 * @note   The query uses the index of the file system of this directory, which is built
+	 *         the first time the file system is queried. If this directory is not a root, the objects
+	 *         of the index modified after the given date are filtered, climbing each directory above
+	 *         them at most once, so the query takes time proportional to the number of these objects
+	 *         plus the number of directories above them, not to that number times their depth.
+	 */
+	public List<FileSystemObject> getObjectsModifiedAfter(Date date) throws IllegalArgumentException {
+		if (date == null)
+			throw new IllegalArgumentException("Cannot compare with a non-effective date.");
+		List<FileSystemObject> objects = buildIndexOfFileSystem().getObjectsModifiedAfter(toNanos(date));
+		if (!isRoot()) {
+			Predicate<FileSystemObject> isBelow = getSubtreeFilter();
+			objects.removeIf(obj -> !isBelow.test(obj));
+		}
+		return objects;
+	}
+	
+	/**
+	 * Return a filter accepting the file system objects that are this directory or lie below it.
+	 * 
+	 * @return A filter that accepts an object if and only if it is this directory, or this directory
+	 *         is a direct or indirect parent directory of it.
+	 * @note   The filter remembers for each directory it climbs whether it lies below this directory,
+	 *         so testing many objects climbs each directory above them only once. Each object is
+	 *         tested against its parent directories as they are when it is tested.
+	 */
+	@Model
+	private Predicate<FileSystemObject> getSubtreeFilter() {
+		Map<Directory,Boolean> isBelow = new IdentityHashMap<Directory,Boolean>();
+		isBelow.put(this, Boolean.TRUE);
+		return obj -> {
+			if (obj == this)
 				return true;
-			} else {
-				parent = parent.getParentDirectory();
+			List<Directory> climbed = new ArrayList<Directory>();
+			Boolean result = Boolean.FALSE;
+			for (Directory dir = obj.getParentDirectory(); dir != null; dir = dir.getParentDirectory()) {
+				Boolean known = isBelow.get(dir);
+				if (known != null) {
+					result = known;
+					break;
+				}
+				climbed.add(dir);
+			}
+			for (Directory dir: climbed)
+				isBelow.put(dir, result);
+			return result;
+		};
+	}
+	
+	
+    /**********************************************************
+     * Path resolution
+     **********************************************************/
+	
+	/**
+	 * Return the file system object at the given path.
+	 * 
+	 * @param  path
+	 *         The path to resolve. Names in the path are separated by the path separator and
+	 *         empty names are ignored. A path starting with the path separator is an absolute path,
+	 *         whose first name is the name of the root of this directory. Other paths are relative
+	 *         to this directory.
+	 * @return If the path is relative, this directory if the path has no names, otherwise the item
+	 *         with the last name in the directory found by resolving the other names.
+	 *         If the path is absolute, the result of resolving the rest of the path relative to the
+	 *         root of this directory.
+	 * @throws IllegalArgumentException
+	 *         The given path is not effective, or it does not lead to a file system object.
+	 * @note   Resolved paths are remembered by the directory they are resolved from, together with
+	 *         the remembered ancestry of the object they lead to. A remembered path is trusted as
+	 *         long as that ancestry holds, that is until the object or a directory above it is renamed,
+	 *         moved, made a root or terminated. Changes elsewhere in the file system do not affect it.
+	 *         At most getMaximumNbRememberedPaths() paths are remembered, the least recently used
+	 *         paths are forgotten first.
+	 */
+	public FileSystemObject resolve(String path) throws IllegalArgumentException {
+		if (path == null)
+			throw new IllegalArgumentException("Cannot resolve a non-effective path.");
+		String key = getKeyOf(path);
+		boolean isAbsolute = path.length() > 0 && path.charAt(0) == PATH_SEPARATOR;
+		Map<String,Ancestry> remembered = rememberedPaths;
+		if (remembered != null) {
+			Ancestry found;
+			synchronized (remembered) {
+				found = remembered.get(key);
+			}
+			if (found != null && found.holds() && (!isAbsolute || found.getRoot() == getRoot()))
+				return found.getOwner();
+		}
+		FileSystemObject result = resolveUncached(path);
+		Ancestry ancestry = result.getAncestry();
+		// Only remember the result if the path still leads to it now its ancestry is known.
+		if (leadsTo(path, isAbsolute, ancestry)) {
+			remembered = getRememberedPaths();
+			synchronized (remembered) {
+				remembered.put(key, ancestry);
 			}
 		}
-		return false;
+		return result;
+	}
+	
+	/**
+	 * Check whether the given path, resolved from this directory, leads to the owner of the given
+	 * ancestry, according to that ancestry.
+	 * 
+	 * @see    resolve(String)
+	 */
+	@Model
+	private boolean leadsTo(String path, boolean isAbsolute, Ancestry ancestry) {
+		List<String> names = new ArrayList<String>();
+		for (String name: path.split(String.valueOf(PATH_SEPARATOR)))
+			if (!name.isEmpty())
+				names.add(name);
+		Ancestry current = ancestry;
+		for (int i = names.size()-1; i >= (isAbsolute ? 1 : 0); i--) {
+			if (current.getParent() == null || !names.get(i).equalsIgnoreCase(current.getOwner().getName()))
+				return false;
+			current = current.getParent();
+		}
+		if (isAbsolute)
+			return current.getParent() == null && current.getOwner() == getRoot()
+					&& names.get(0).equalsIgnoreCase(current.getOwner().getName()) && ancestry.holds();
+		return current.getOwner() == this && ancestry.holds();
 	}
-		
+	
+	/**
+	 * Return the file system object at the given path, without using remembered paths.
+	 * 
+	 * @see    resolve(String)
+	 */
+	@Model
+	private FileSystemObject resolveUncached(String path) throws IllegalArgumentException {
+		String[] names = path.split(String.valueOf(PATH_SEPARATOR));
+		FileSystemObject current = this;
+		int start = 0;
+		if (path.length() > 0 && path.charAt(0) == PATH_SEPARATOR) {
+			current = getRoot();
+			while (start < names.length && names[start].isEmpty())
+				start++;
+			if (start == names.length || !names[start].equalsIgnoreCase(current.getName()))
+				throw new IllegalArgumentException("The path does not start with the name of the root.");
+			start++;
+		}
+		for (int i = start; i < names.length; i++) {
+			if (names[i].isEmpty())
+				continue;
+			if (!(current instanceof Directory))
+				throw new IllegalArgumentException("The path continues after a file.");
+			current = ((Directory) current).getItem(names[i]);
+		}
+		return current;
+	}
+	
+	/**
+	 * Return the maximum number of paths a directory remembers.
+	 */
+	@Immutable
+	public static int getMaximumNbRememberedPaths() {
+		return 256;
+	}
+	
+	/**
+	 * Return the paths resolved from this directory, creating the map remembering them if it has not
+	 * been created yet.
+	 */
+	@Model
+	private Map<String,Ancestry> getRememberedPaths() {
+		Map<String,Ancestry> result = rememberedPaths;
+		if (result == null) {
+			synchronized (this) {
+				result = rememberedPaths;
+				if (result == null) {
+					result = new LinkedHashMap<String,Ancestry>(16, 0.75f, true) {
+						private static final long serialVersionUID = 1L;
+						
+						@Override
+						protected boolean removeEldestEntry(Map.Entry<String,Ancestry> eldest) {
+							return size() > getMaximumNbRememberedPaths();
+						}
+					};
+					rememberedPaths = result;
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Variable referencing the remembered ancestries of the objects paths resolved from this directory
+	 * lead to, keyed by the path in lower case, in access order.
+	 * 
+	 * @note   The map is only created once a path is resolved from this directory, so directories
+	 *         no path is resolved from do not carry one. Until then it is null.
+	 */
+	private volatile Map<String,Ancestry> rememberedPaths = null;
+	
+	
+	/**********************************************************
+     * Listeners
+     **********************************************************/
+	
+	/**
+	 * Add the given listener to this directory.
+	 * 
+	 * @param  listener
+	 *         The listener to add.
+	 * @param  recursive
+	 *         Whether the listener also hears about objects below the items of this directory.
+	 * @param  executor
+	 *         The executor running the listener, or null to run it on the thread dispatching the changes.
+	 * @post   The given listener is handed the changes of the items of this directory, and of all objects
+	 *         below them if recursive, in lists of events coalesced per object.
+	 * @throws IllegalArgumentException
+	 *         The given listener is not effective.
+	 *         | listener == null
+	 * @note   Changes are dispatched in the background, or when FileSystemEvents.flush() is called.
+	 */
+	public void addListener(Consumer<? super List<FileSystemEvent>> listener, boolean recursive, Executor executor)
+			throws IllegalArgumentException {
+		if (listener == null)
+			throw new IllegalArgumentException("Cannot add a non-effective listener.");
+		synchronized (listenerRegistrations) {
+			listenerRegistrations.add(new FileSystemEvents.Registration(listener, recursive, executor));
+		}
+		FileSystemEvents.listenerAdded();
+	}
+	
+	/**
+	 * Remove the given listener from this directory.
+	 * 
+	 * @param  listener
+	 *         The listener to remove.
+	 * @post   The given listener no longer hears about changes in this directory.
+	 */
+	public void removeListener(Consumer<? super List<FileSystemEvent>> listener) {
+		synchronized (listenerRegistrations) {
+			for (FileSystemEvents.Registration registration: listenerRegistrations)
+				if (registration.listener == listener) {
+					listenerRegistrations.remove(registration);
+					FileSystemEvents.listenerRemoved();
+				}
+		}
+	}
+	
+	/**
+	 * Return the registrations of the listeners of this directory.
+	 */
+	@Basic
+	List<FileSystemEvents.Registration> getListenerRegistrations() {
+		return listenerRegistrations;
+	}
+	
+	/**
+	 * Variable referencing the registrations of the listeners of this directory.
+	 */
+	private final List<FileSystemEvents.Registration> listenerRegistrations =
+			new CopyOnWriteArrayList<FileSystemEvents.Registration>();
+	
+	
+	/**********************************************************
+     * Images
+     **********************************************************/
+	
+	/**
+	 * Check whether the items of this directory are still to be loaded from its image.
+	 */
+	@Basic
+	boolean isPending() {
+		return isPending;
+	}
+	
+	/**
+	 * Load the items of this directory from its image, if that has not happened yet.
+	 * 
+	 * @post   This directory is no longer pending, and its contents are the items kept for it in its image.
+	 *         | !new.isPending()
+	 * @note   Loading only takes a lock shared by the directories of the image, and no other lock,
+	 *         so it can happen in the middle of reading or changing any directory.
+	 */
+	@Model
+	private void materialize() {
+		synchronized (getImage().getLoadLock(getImageOffset())) {
+			if (!isPending)
+				return;
+			FileSystemObject[] items = getImage().loadItems(this);
+			String[] keys = new String[items.length];
+			for (int i = 0; i < items.length; i++) {
+				keys[i] = items[i].getNameKey();
+				getItemsByKey().put(keys[i], items[i]);
+			}
+			contents = DirectoryContents.ofSorted(keys, items);
+			isPending = false;
+		}
+	}
+	
+	/**
+	 * Variable registering whether the items of this directory are still to be loaded from its image.
+	 */
+	private volatile boolean isPending = false;
+	
 	
 	/**********************************************************
      * Termination
@@ -539,23 +1378,472 @@ public class Directory extends FileSystemObject {
 	 * @throws IllegalStateException
 	 *         This directory is not empty
 	 *         | getNbItems() != 0
+	 * @note   This directory is checked to be empty while it is locked for writing, so no item
+	 *         can be added to it in the meantime.
 	 */
 	@Override
 	public void terminate() throws IllegalStateException {
+		super.terminate();
+	}
+	
+	/**
+	 * Terminate this directory, while holding all locks needed.
+	 * 
+	 * @see terminate()
+	 */
+	@Override @Model
+	void terminateLocked() throws IllegalStateException {
 		if(getNbItems() != 0)
 			throw new IllegalStateException("This directory is not empty.");
+		super.terminateLocked();
+	}
+	
+	/**
+	 * Terminate this directory and all objects below it.
+	 * 
+	 * @effect This directory and all objects below it are terminated, sequentially.
+	 *         | terminateRecursively(false)
+	 */
+	public void terminateRecursively() throws IllegalStateException {
+		terminateRecursively(false);
+	}
+	
+	/**
+	 * Terminate this directory and all objects below it, possibly in parallel.
+	 * 
+	 * @param  inParallel
+	 *         Whether subdirectories with many objects below them are torn down in parallel.
+	 * @post   This directory and all objects that were below it are terminated roots.
+	 *         | new.isTerminated() && for each obj below this directory: (new obj).isTerminated()
+	 * @effect This directory is removed from its parent directory, and the totals of all directories
+	 *         above it are decreased with its totals.
+	 * @throws IllegalStateException
+	 *         This directory is terminated, or it or an object below it is not writable, or its parent
+	 *         directory is not writable. In that case nothing is changed.
+	 *         | isTerminated() || !isWritable() || (!isRoot() && !getParentDirectory().isWritable())
+	 *         |   || for some obj below this directory: !obj.isWritable()
+	 * @note   The objects are torn down in post-order: each directory drops all its items at once after
+	 *         they are terminated, instead of removing them one by one. The index of the file system
+	 *         drops the whole subtree at once, and listeners hear about all terminations in the same
+	 *         dispatch. Subdirectories with at least FileSystemWalker.getParallelThreshold() objects
+	 *         below them are torn down in separate tasks of the common fork-join pool. This directory
+	 *         and its parent directory are locked for writing meanwhile, so nothing below this directory
+	 *         changes otherwise.
+	 */
+	public void terminateRecursively(boolean inParallel) throws IllegalStateException {
+		changePlace(null, () -> {
+			if (isTerminated() || !isWritable() || (!isRoot() && !getParentDirectory().isWritable()))
+				throw new IllegalStateException("This directory cannot be terminated.");
+			FileSystemWalker.walk(this, obj -> !obj.isWritable(), obj -> {
+				throw new IllegalStateException("An object below this directory cannot be terminated.");
+			});
+			
+			FileSystemIndex index = getIndexOfFileSystem();
+			if (index != null)
+				index.removeSubtree(this);
+			long totalSize = getTotalSize();
+			int totalNbItems = getTotalNbItems();
+			// The current thread holds the lock of this directory, so it tears down its items itself,
+			// forking tasks of the common fork-join pool for large subdirectories.
+			tearDownItems(inParallel);
+			if (!isRoot())
+				getParentDirectory().adjustTotals(-totalSize, -totalNbItems);
+			terminate();
+			return null;
+		});
+	}
+	
+	/**
+	 * Terminate all objects below this directory, and drop all items of this directory at once.
+	 * 
+	 * @param  inParallel
+	 *         Whether large subdirectories are torn down in separate tasks.
+	 * @post   This directory has no items, and zero totals. All its former items are terminated.
+	 */
+	@Model
+	private void tearDownItems(boolean inParallel) {
+		DirectoryContents items = getContents();
+		List<Teardown> tasks = new ArrayList<Teardown>();
+		for (int i = 1; i <= items.size(); i++) {
+			FileSystemObject item = items.getAt(i);
+			if (item instanceof Directory) {
+				Directory dir = (Directory) item;
+				if (inParallel && dir.getTotalNbItems() >= FileSystemWalker.getParallelThreshold()) {
+					Teardown task = new Teardown(dir);
+					task.fork();
+					tasks.add(task);
+					continue;
+				}
+				dir.tearDownItems(inParallel);
+			}
+			item.terminateWithinTeardown();
+		}
+		for (Teardown task: tasks) {
+			task.join();
+			task.dir.terminateWithinTeardown();
+		}
+		lockForWriting();
+		try {
+			beforeChange();
+			contents = DirectoryContents.EMPTY;
+			itemsByKey = null;
+			totalSize = 0;
+			totalNbItems = 0;
+		} finally {
+			unlockForWriting();
+		}
+	}
+	
+	/**
+	 * A class of tasks tearing down the items of a directory.
+	 */
+	private static class Teardown extends RecursiveAction {
 		
-		super.terminate();
+		private static final long serialVersionUID = 1L;
+		
+		private Teardown(Directory dir) {
+			this.dir = dir;
+		}
+		
+		private final Directory dir;
+		
+		@Override
+		protected void compute() {
+			dir.tearDownItems(true);
+		}
+	}
+	
+	
+	/**********************************************************
+     * Locking
+     **********************************************************/
+	
+	/**
+	 * Return the contents of this directory, reading them optimistically.
+	 * 
+	 * @return The contents of this directory as they are when no thread is changing them.
+	 * @note   The contents are first read without locking. Only if a thread was changing this directory
+	 *         in the meantime, they are read again under the read lock. A thread that is itself
+	 *         changing this directory reads its own contents directly.
+	 */
+	@Model
+	private DirectoryContents readContents() {
+		if (isPending)
+			materialize();
+		if (writer == Thread.currentThread())
+			return contents;
+		long stamp = lock.tryOptimisticRead();
+		DirectoryContents current = contents;
+		if (lock.validate(stamp))
+			return current;
+		stamp = lock.readLock();
+		try {
+			return contents;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+	
+	/**
+	 * Lock this directory for writing by the current thread.
+	 * 
+	 * @post   This directory is locked for writing by the current thread. If the current thread
+	 *         already held that lock, it now holds it once more.
+	 * @note   Each call must be matched by a call of unlockForWriting() by the same thread.
+	 */
+	void lockForWriting() {
+		if (writer == Thread.currentThread()) {
+			nbWriteHolds++;
+			return;
+		}
+		long stamp = lock.writeLock();
+		writeStamp = stamp;
+		writer = Thread.currentThread();
+		nbWriteHolds = 1;
+		if (isPending)
+			materialize();
+	}
+	
+	/**
+	 * Check whether the current thread holds the lock of this directory for writing.
+	 */
+	boolean isLockedForWritingByCurrentThread() {
+		return writer == Thread.currentThread();
+	}
+	
+	/**
+	 * Release one hold of the current thread on the write lock of this directory.
+	 * 
+	 * @post   If this was the last hold of the current thread, this directory is no longer locked.
+	 */
+	void unlockForWriting() {
+		if (--nbWriteHolds == 0) {
+			writer = null;
+			lock.unlockWrite(writeStamp);
+		}
+	}
+	
+	/**
+	 * Lock the given directories for writing, and all directories above them for reading.
+	 * 
+	 * @param  changed
+	 *         The directories to lock for writing. Non-effective elements are ignored.
+	 * @return The locks taken, to be released by the current thread once its change is made.
+	 * @effect Each effective given directory is locked for writing by the current thread, and each
+	 *         other directory above one of them is locked for reading.
+	 *         | lock(Arrays.asList(changed), null)
+	 */
+	static Locks lockWithAncestors(Directory... changed) {
+		return lock(Arrays.asList(changed), null);
+	}
+	
+	/**
+	 * Lock the given directory and all directories above it for reading.
+	 * 
+	 * @param  dir
+	 *         The directory to lock, possibly null.
+	 * @return The locks taken, to be released by the current thread once its change is made.
+	 * @effect The given directory, if effective, and each directory above it are locked for reading.
+	 *         | lock(Collections.emptyList(), dir)
+	 * @note   This keeps the given directory and all directories above it in place, while the totals
+	 *         of an item of the given directory change.
+	 */
+	static Locks lockAncestors(Directory dir) {
+		return lock(Collections.<Directory>emptyList(), dir);
+	}
+	
+	/**
+	 * Lock the given directories for writing, and the given directory and all directories above
+	 * these directories for reading.
+	 * 
+	 * @param  changed
+	 *         The directories to lock for writing. Non-effective elements are ignored.
+	 * @param  kept
+	 *         A directory to lock for reading, possibly null.
+	 * @return The locks taken, to be released by the current thread once its change is made.
+	 * @note   A directory can only be moved, made a root or terminated while it is locked for writing.
+	 *         A change that holds the directories above the directories it changes for reading thus
+	 *         knows that they stay in place, while any number of changes below them adjust their totals
+	 *         at the same time. Changes of unrelated directories never wait for each other.
+	 * @note   The locks are tried in the order of their lock rank, without waiting. If one of them is
+	 *         not available, all locks taken so far are released, and the current thread waits until
+	 *         that lock is free before it tries again. A thread thus never waits for a lock taken here
+	 *         while it holds another one taken here for the same change. Once all locks are taken, the
+	 *         directories above are looked up again, and if they changed meanwhile, all locks are
+	 *         released and taken again.
+	 * @note   A thread that already holds the lock of a directory takes it once more. A directory the
+	 *         current thread holds for writing is held for writing once more, even if it is only to be
+	 *         held for reading.
+	 */
+	@Model
+	static Locks lock(Collection<Directory> changed, Directory kept) {
+		while (true) {
+			Map<Directory,Boolean> needed = getLocksNeeded(changed, kept);
+			List<Directory> ordered = new ArrayList<Directory>(needed.keySet());
+			Collections.sort(ordered, (first, second) -> Long.compare(first.lockRank, second.lockRank));
+			Locks locks = new Locks(ordered.size());
+			Directory unavailable = null;
+			for (Directory dir: ordered) {
+				int mode = dir.tryLock(needed.get(dir));
+				if (mode == NOT_LOCKED) {
+					unavailable = dir;
+					break;
+				}
+				locks.add(dir, mode);
+			}
+			if (unavailable == null && needed.equals(getLocksNeeded(changed, kept)))
+				return locks;
+			locks.release();
+			if (unavailable != null)
+				unavailable.awaitLock(needed.get(unavailable));
+		}
+	}
+	
+	/**
+	 * Return the directories to lock to change the given directories, and to keep the given directory
+	 * in place.
+	 * 
+	 * @return A map from each effective given changed directory to true, and from each other directory
+	 *         that is the given kept directory or lies above one of the given directories to false.
+	 */
+	@Model
+	private static Map<Directory,Boolean> getLocksNeeded(Collection<Directory> changed, Directory kept) {
+		Map<Directory,Boolean> needed = new IdentityHashMap<Directory,Boolean>();
+		for (Directory dir: changed) {
+			if (dir != null) {
+				needed.put(dir, Boolean.TRUE);
+				addAncestors(needed, dir.getParentDirectory());
+			}
+		}
+		addAncestors(needed, kept);
+		return needed;
+	}
+	
+	/**
+	 * Register the given directory and all directories above it in the given map as to be locked
+	 * for reading, stopping at the first directory that is registered already.
+	 */
+	private static void addAncestors(Map<Directory,Boolean> needed, Directory dir) {
+		for (; dir != null && !needed.containsKey(dir); dir = dir.getParentDirectory())
+			needed.put(dir, Boolean.FALSE);
+	}
+	
+	/**
+	 * Try to lock this directory for the current thread, without waiting.
+	 * 
+	 * @param  forWriting
+	 *         Whether to lock this directory for writing.
+	 * @return WRITE_LOCKED if the current thread now holds the write lock of this directory once more,
+	 *         READ_LOCKED if it now holds its read lock once more, and NOT_LOCKED if the lock is not
+	 *         available.
+	 * @throws IllegalStateException
+	 *         This directory is to be locked for writing, while the current thread holds it for reading.
+	 */
+	@Model
+	private int tryLock(boolean forWriting) throws IllegalStateException {
+		if (writer == Thread.currentThread()) {
+			nbWriteHolds++;
+			return WRITE_LOCKED;
+		}
+		Map<Directory,Integer> holds = readHolds.get();
+		Integer nbReadHolds = holds.get(this);
+		if (nbReadHolds != null) {
+			if (forWriting)
+				throw new IllegalStateException("A directory locked for reading cannot be locked for writing.");
+			holds.put(this, nbReadHolds+1);
+			return READ_LOCKED;
+		}
+		if (forWriting) {
+			long stamp = lock.tryWriteLock();
+			if (stamp == 0)
+				return NOT_LOCKED;
+			writeStamp = stamp;
+			writer = Thread.currentThread();
+			nbWriteHolds = 1;
+			if (isPending)
+				materialize();
+			return WRITE_LOCKED;
+		}
+		if (lock.tryReadLock() == 0)
+			return NOT_LOCKED;
+		holds.put(this, 1);
+		return READ_LOCKED;
+	}
+	
+	/**
+	 * Release one hold of the current thread on this directory, taken by tryLock in the given mode.
+	 */
+	@Model
+	private void unlock(int mode) {
+		if (mode == WRITE_LOCKED) {
+			unlockForWriting();
+			return;
+		}
+		Map<Directory,Integer> holds = readHolds.get();
+		int nbReadHolds = holds.get(this);
+		if (nbReadHolds == 1) {
+			holds.remove(this);
+			lock.tryUnlockRead();
+		}
+		else
+			holds.put(this, nbReadHolds-1);
+	}
+	
+	/**
+	 * Wait until the lock of this directory is available for writing or for reading.
+	 */
+	@Model
+	private void awaitLock(boolean forWriting) {
+		if (forWriting)
+			lock.unlockWrite(lock.writeLock());
+		else
+			lock.unlockRead(lock.readLock());
+	}
+	
+	private static final int NOT_LOCKED = 0;
+	private static final int READ_LOCKED = 1;
+	private static final int WRITE_LOCKED = 2;
+	
+	/**
+	 * Variable registering, for the current thread, how many times it holds the read lock of each directory.
+	 */
+	private static final ThreadLocal<Map<Directory,Integer>> readHolds =
+			ThreadLocal.withInitial(() -> new IdentityHashMap<Directory,Integer>());
+	
+	/**
+	 * A class of locks on directories taken together by a single thread.
+	 */
+	static final class Locks {
+		
+		private Locks(int capacity) {
+			this.dirs = new Directory[capacity];
+			this.modes = new int[capacity];
+		}
+		
+		private void add(Directory dir, int mode) {
+			dirs[size] = dir;
+			modes[size++] = mode;
+		}
+		
+		/**
+		 * Release all locks of this set, in the reverse order in which they were taken.
+		 * 
+		 * @pre    The current thread took these locks.
+		 */
+		void release() {
+			while (size > 0) {
+				size--;
+				dirs[size].unlock(modes[size]);
+				dirs[size] = null;
+			}
+		}
+		
+		private final Directory[] dirs;
+		
+		private final int[] modes;
+		
+		private int size = 0;
 	}
 	
+	/**
+	 * Variable referencing the lock guarding the contents of this directory.
+	 */
+	private final StampedLock lock = new StampedLock();
+	
+	/**
+	 * Variable referencing the thread holding the write lock of this directory, null if none.
+	 */
+	private volatile Thread writer = null;
+	
+	/**
+	 * Variable registering how many times the writing thread holds the write lock.
+	 */
+	private int nbWriteHolds = 0;
+	
+	/**
+	 * Variable registering the stamp of the write lock held on this directory.
+	 */
+	private long writeStamp;
+	
+	/**
+	 * Variable registering the rank of this directory in the order in which directories are locked.
+	 */
+	private final long lockRank = nextLockRank.getAndIncrement();
+	
+	/**
+	 * Variable registering the lock rank of the next directory.
+	 */
+	private static final AtomicLong nextLockRank = new AtomicLong();
+	
 	
 	
 	
 	public void printList() {
-		for (int i=1; i<=getNbItems(); i++) {
-			System.out.print(i);
+		int i = 1;
+		for (FileSystemObject item: this) {
+			System.out.print(i++);
 			System.out.print(" ");
-			System.out.println(getItemAt(i).getName());
+			System.out.println(item.getName());
 		}
 	}
 }
@@ -0,0 +1,405 @@
+package filesystem;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+
+import be.kuleuven.cs.som.annotate.*;
+
+/**
+ * A class of immutable, sorted collections of the items of a directory.
+ *   Items are kept in a balanced binary search tree ordered by their name key. Each node
+ *   also registers the size of its subtree, so the item at a given position and the
+ *   position of a given key are found in logarithmic time, like lookups, insertions and removals.
+ *   Updates never change an existing collection, they return a new collection that shares all
+ *   unchanged nodes with the old one.
+ *
+ * @invar   The keys in each collection are unique and in ascending order.
+ *
+ * @author  Tim Lauwers, Tim Robensyn, Robbe Van Biervliet
+ * @version 1.0
+ */
+@Value
+final class DirectoryContents {
+
+	/**
+	 * An empty collection of items.
+	 */
+	static final DirectoryContents EMPTY = new DirectoryContents(null);
+
+	/**
+	 * Initialize a new collection with the given root node.
+	 */
+	private DirectoryContents(Node root) {
+		this.root = root;
+	}
+
+	/**
+	 * Variable referencing the root node of the tree of this collection, null if it is empty.
+	 */
+	private final Node root;
+
+
+	/**********************************************************
+	 * Queries
+	 **********************************************************/
+
+	/**
+	 * Return the number of items in this collection.
+	 */
+	@Basic
+	int size() {
+		return size(this.root);
+	}
+
+	/**
+	 * Return the item with the given key, null if there is none.
+	 *
+	 * @param  key
+	 *         The key to look up.
+	 */
+	FileSystemObject get(String key) {
+		Node node = this.root;
+		while (node != null) {
+			int comparison = key.compareTo(node.key);
+			if (comparison == 0)
+				return node.item;
+			node = comparison < 0 ? node.left : node.right;
+		}
+		return null;
+	}
+
+	/**
+	 * Return the item at the given position in this collection.
+	 *
+	 * @param  index
+	 *         The position of the item, starting at 1.
+	 * @throws IndexOutOfBoundsException
+	 *         The given index is not positive or exceeds the number of items.
+	 *         | (index < 1) || (index > size())
+	 */
+	FileSystemObject getAt(int index) throws IndexOutOfBoundsException {
+		return nodeAt(index).item;
+	}
+
+	/**
+	 * Return the key of the item at the given position in this collection.
+	 *
+	 * @param  index
+	 *         The position of the item, starting at 1.
+	 * @throws IndexOutOfBoundsException
+	 *         The given index is not positive or exceeds the number of items.
+	 *         | (index < 1) || (index > size())
+	 */
+	String getKeyAt(int index) throws IndexOutOfBoundsException {
+		return nodeAt(index).key;
+	}
+
+	/**
+	 * Return the node at the given position in this collection.
+	 */
+	private Node nodeAt(int index) throws IndexOutOfBoundsException {
+		if (index < 1 || index > size())
+			throw new IndexOutOfBoundsException();
+		Node node = this.root;
+		while (true) {
+			int leftSize = size(node.left);
+			if (index <= leftSize)
+				node = node.left;
+			else if (index == leftSize+1)
+				return node;
+			else {
+				index -= leftSize+1;
+				node = node.right;
+			}
+		}
+	}
+
+	/**
+	 * Return the number of keys in this collection that are smaller than the given key.
+	 *
+	 * @param  key
+	 *         The key to rank.
+	 * @return The position the given key has or would have in this collection, minus one.
+	 */
+	int rankOf(String key) {
+		int rank = 0;
+		Node node = this.root;
+		while (node != null) {
+			int comparison = key.compareTo(node.key);
+			if (comparison <= 0)
+				node = node.left;
+			else {
+				rank += size(node.left)+1;
+				node = node.right;
+			}
+		}
+		return rank;
+	}
+
+
+	/**
+	 * Return an iterator over the items of this collection whose key lies in the given range.
+	 *
+	 * @param  fromKey
+	 *         The smallest key to include, or null to start at the first item.
+	 * @param  toKey
+	 *         The smallest key to leave out, or null to end at the last item.
+	 * @return An iterator over all items of this collection whose key is at least the given
+	 *         from key and smaller than the given to key, in ascending key order.
+	 * @note   The iterator keeps the path from the root to its next node, so it starts in
+	 *         logarithmic time and moves to each next item in constant amortized time.
+	 *         This collection is immutable, so the iterator never fails because of changes.
+	 */
+	Iterator<FileSystemObject> iterator(String fromKey, String toKey) {
+		return new RangeIterator(this.root, fromKey, toKey);
+	}
+
+	/**
+	 * A class of iterators over the items of a tree whose key lies in a range.
+	 */
+	private static final class RangeIterator implements Iterator<FileSystemObject> {
+
+		private RangeIterator(Node root, String fromKey, String toKey) {
+			this.toKey = toKey;
+			Node node = root;
+			while (node != null) {
+				if (fromKey == null || fromKey.compareTo(node.key) <= 0) {
+					path.push(node);
+					node = node.left;
+				}
+				else
+					node = node.right;
+			}
+		}
+
+		/**
+		 * The nodes whose item and right subtree are still to be visited, the next node on top.
+		 */
+		private final Deque<Node> path = new ArrayDeque<Node>();
+
+		private final String toKey;
+
+		@Override
+		public boolean hasNext() {
+			return !path.isEmpty() && (toKey == null || path.peek().key.compareTo(toKey) < 0);
+		}
+
+		@Override
+		public FileSystemObject next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Node node = path.pop();
+			for (Node next = node.right; next != null; next = next.left)
+				path.push(next);
+			return node.item;
+		}
+	}
+
+
+	/**********************************************************
+	 * Updates
+	 **********************************************************/
+
+	/**
+	 * Return a collection with the items of this collection and the given item under the given key.
+	 *
+	 * @param  key
+	 *         The key of the item to add.
+	 * @param  item
+	 *         The item to add.
+	 * @return A collection with all items of this collection, where the given key is mapped to the
+	 *         given item, replacing the item that had that key if any.
+	 */
+	DirectoryContents with(String key, FileSystemObject item) {
+		return new DirectoryContents(insert(this.root, key, item));
+	}
+
+	/**
+	 * Return a collection with the items of this collection except the one with the given key.
+	 *
+	 * @param  key
+	 *         The key of the item to leave out.
+	 * @return A collection with all items of this collection, except the one with the given key.
+	 *         This collection itself if it has no item with the given key.
+	 */
+	DirectoryContents without(String key) {
+		if (get(key) == null)
+			return this;
+		return new DirectoryContents(delete(this.root, key));
+	}
+
+	/**
+	 * Return a collection with the items of this collection except those with the given keys to remove,
+	 * and with the given items to add.
+	 *
+	 * @param  added
+	 *         The items to add, by their key.
+	 * @param  removed
+	 *         The keys of the items to leave out.
+	 * @return A collection with all items of this collection whose key is not among the keys to remove,
+	 *         where each key to add is mapped to its item, replacing the item that had that key if any.
+	 * @note   A few changes are made one by one. Many changes are merged with the items of this collection
+	 *         in a single pass over both in key order, from which a new balanced tree is built, so
+	 *         n items and m changes take time proportional to n + m log m.
+	 */
+	DirectoryContents withAll(SortedMap<String,FileSystemObject> added, Set<String> removed) {
+		int nbChanges = added.size() + removed.size();
+		if (nbChanges == 0)
+			return this;
+		if ((long) nbChanges * (32 - Integer.numberOfLeadingZeros(size())) < size()) {
+			DirectoryContents result = this;
+			for (String key: removed)
+				result = result.without(key);
+			for (Map.Entry<String,FileSystemObject> entry: added.entrySet())
+				result = result.with(entry.getKey(), entry.getValue());
+			return result;
+		}
+		Node[] old = new Node[size()];
+		collect(this.root, old, 0);
+		String[] keys = new String[old.length + added.size()];
+		FileSystemObject[] items = new FileSystemObject[keys.length];
+		int nbMerged = 0;
+		int next = 0;
+		for (Map.Entry<String,FileSystemObject> entry: added.entrySet()) {
+			while (next < old.length && old[next].key.compareTo(entry.getKey()) <= 0) {
+				Node node = old[next++];
+				if (!removed.contains(node.key) && !node.key.equals(entry.getKey())) {
+					keys[nbMerged] = node.key;
+					items[nbMerged++] = node.item;
+				}
+			}
+			keys[nbMerged] = entry.getKey();
+			items[nbMerged++] = entry.getValue();
+		}
+		for (; next < old.length; next++)
+			if (!removed.contains(old[next].key)) {
+				keys[nbMerged] = old[next].key;
+				items[nbMerged++] = old[next].item;
+			}
+		return new DirectoryContents(build(keys, items, 0, nbMerged-1));
+	}
+
+	/**
+	 * Return a collection of the given items under the given keys.
+	 *
+	 * @param  keys
+	 *         The keys of the items, in ascending order.
+	 * @param  items
+	 *         The items, in the order of their keys.
+	 * @return A collection mapping each given key to the item at the same position.
+	 * @note   The tree is built in time proportional to the number of items.
+	 */
+	static DirectoryContents ofSorted(String[] keys, FileSystemObject[] items) {
+		return new DirectoryContents(build(keys, items, 0, keys.length-1));
+	}
+
+	/**
+	 * Store the nodes of the given tree in the given array in key order, starting at the given position.
+	 *
+	 * @return The position after the last node stored.
+	 */
+	private static int collect(Node node, Node[] nodes, int position) {
+		if (node == null)
+			return position;
+		position = collect(node.left, nodes, position);
+		nodes[position++] = node;
+		return collect(node.right, nodes, position);
+	}
+
+	/**
+	 * Return a perfectly balanced tree of the given keys and items from the given low up to and
+	 * including the given high position, which are in ascending key order.
+	 */
+	private static Node build(String[] keys, FileSystemObject[] items, int lo, int hi) {
+		if (lo > hi)
+			return null;
+		int mid = (lo+hi) >>> 1;
+		return new Node(keys[mid], items[mid], build(keys, items, lo, mid-1), build(keys, items, mid+1, hi));
+	}
+
+	private static Node insert(Node node, String key, FileSystemObject item) {
+		if (node == null)
+			return new Node(key, item, null, null);
+		int comparison = key.compareTo(node.key);
+		if (comparison == 0)
+			return new Node(key, item, node.left, node.right);
+		if (comparison < 0)
+			return balance(node.key, node.item, insert(node.left, key, item), node.right);
+		return balance(node.key, node.item, node.left, insert(node.right, key, item));
+	}
+
+	private static Node delete(Node node, String key) {
+		int comparison = key.compareTo(node.key);
+		if (comparison < 0)
+			return balance(node.key, node.item, delete(node.left, key), node.right);
+		if (comparison > 0)
+			return balance(node.key, node.item, node.left, delete(node.right, key));
+		if (node.left == null)
+			return node.right;
+		if (node.right == null)
+			return node.left;
+		Node successor = node.right;
+		while (successor.left != null)
+			successor = successor.left;
+		return balance(successor.key, successor.item, node.left, delete(node.right, successor.key));
+	}
+
+	/**
+	 * Return a balanced node with the given key and item and the given subtrees, whose heights
+	 * differ by at most two.
+	 */
+	private static Node balance(String key, FileSystemObject item, Node left, Node right) {
+		if (height(left) > height(right)+1) {
+			if (height(left.left) >= height(left.right))
+				return new Node(left.key, left.item, left.left, new Node(key, item, left.right, right));
+			return new Node(left.right.key, left.right.item,
+					new Node(left.key, left.item, left.left, left.right.left),
+					new Node(key, item, left.right.right, right));
+		}
+		if (height(right) > height(left)+1) {
+			if (height(right.right) >= height(right.left))
+				return new Node(right.key, right.item, new Node(key, item, left, right.left), right.right);
+			return new Node(right.left.key, right.left.item,
+					new Node(key, item, left, right.left.left),
+					new Node(right.key, right.item, right.left.right, right.right));
+		}
+		return new Node(key, item, left, right);
+	}
+
+	private static int size(Node node) {
+		return node == null ? 0 : node.size;
+	}
+
+	private static int height(Node node) {
+		return node == null ? 0 : node.height;
+	}
+
+
+	/**
+	 * A class of immutable nodes of the tree of a collection of items.
+	 */
+	private static final class Node {
+
+		private Node(String key, FileSystemObject item, Node left, Node right) {
+			this.key = key;
+			this.item = item;
+			this.left = left;
+			this.right = right;
+			this.size = size(left)+size(right)+1;
+			this.height = Math.max(height(left), height(right))+1;
+		}
+
+		private final String key;
+		private final FileSystemObject item;
+		private final Node left;
+		private final Node right;
+		private final int size;
+		private final int height;
+	}
+
+}
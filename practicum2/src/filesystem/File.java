@@ -1,6 +1,7 @@
 package filesystem;
 
 import be.kuleuven.cs.som.annotate.*;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -46,8 +47,12 @@ public class File extends FileSystemObject {
 	 */
 	public File(Directory dir, String name, int size, boolean writable, FileType type) {
 		super(dir, name, writable);
-		setSize(size);
+		changeInPlace(false, () -> {
+			setSize(size);
+			return null;
+		});
 		this.type = type;
+		addToIndexOfFileSystem();
 	}
 	
 	/**
@@ -101,6 +106,24 @@ public class File extends FileSystemObject {
 	public File(String name, FileType type) {
 		this(name, 0, true, type);
 	}
+	
+	/**
+	 * Initialize a new file kept at the given offset in the given image, with given parent directory,
+	 * name, writability, type, size, creation time and modification time.
+	 * 
+	 * @effect The new file is a file system object loaded from the given image with the given
+	 *         parent directory, name, writability, creation time and modification time.
+	 *         | super(dir,name,writable,creationTime,modificationTime,image,offset)
+	 * @post   The new file has the given type and size.
+	 *         | new.getType() == type && new.getSize() == size
+	 * @note   The totals of the given directory already include the given size.
+	 */
+	File(Directory dir, String name, boolean writable, FileType type, int size, long creationTime,
+			long modificationTime, FileSystemImage image, long offset) {
+		super(dir, name, writable, creationTime, modificationTime, image, offset);
+		this.size = size;
+		this.type = type;
+	}
 
 
 	
@@ -146,7 +169,7 @@ public class File extends FileSystemObject {
     /**
      * Variable registering the size of this file (in bytes).
      */
-    private int size = 0;
+    private volatile int size = 0;
     
     /**
      * Variable registering the maximum size of any file (in bytes).
@@ -169,12 +192,30 @@ public class File extends FileSystemObject {
      *         The new size for this file.
      * @pre    The given size must be legal.
      *         | isValidSize(size)
+     * @pre    The current thread holds the locks of all directories above this file, and the lock
+     *         of this file itself.
      * @post   The given size is registered as the size of this file.
      *         | new.getSize() == size
+     * @effect If this file is not a root, the total size of its parent directory and of all
+     *         directories above it is adapted with the difference in size.
+     *         | if (!isRoot())
+     *         |   then getParentDirectory().adjustTotals(size-getSize(), 0)
+     * @effect If this file holds content, its content is resized to the given size.
+     *         | if (getContentStore() != null)
+     *         |   then resizeContent(size)
+     * @note   The content is resized first, so if its store cannot allocate a region of the given size,
+     *         the size of this file and the totals of the directories above it are left unchanged.
      */
     @Raw @Model 
     private void setSize(int size) {
+        int delta = size - this.size;
+        if (delta != 0)
+        	beforeChange();
+        if (content != null)
+        	resizeContent(size);
         this.size = size;
+        if (!isRoot() && delta != 0)
+        	getParentDirectory().adjustTotals(delta, 0);
     }
    
     /**
@@ -246,17 +287,286 @@ public class File extends FileSystemObject {
      * @throws ObjectNotWritableException(this)
      *         This file is not writable.
      *         | ! isWritable()
+     * @note   The file locks the directories above it for reading and then itself, so concurrent
+     *         changes of its size or place happen one by one, while files elsewhere change at the same time.
      */
     @Model 
     private void changeSize(int delta) throws IllegalStateException, ObjectNotWritableException{
+        changeInPlace(false, () -> {
+        	if (isTerminated())
+        		throw new IllegalStateException("This file is terminated.");    	
+        	if (isWritable()) {
+        		setSize(getSize()+delta);
+        		setModificationTime();            
+        	}else{
+        		throw new ObjectNotWritableException(this);
+        	}
+        	return null;
+        });
+    }
+
+
+    /**********************************************************
+     * Content
+     **********************************************************/
+
+    /**
+     * Return the store holding the content of this file, null if this file holds no content.
+     */
+    @Basic
+    public synchronized ContentStore getContentStore() {
+        return contentStore;
+    }
+
+    /**
+     * Keep the content of this file in the given store.
+     *
+     * @param  store
+     *         The store to keep the content in, or null to hold no content.
+     * @post   The content store of this file is the given store.
+     *         | new.getContentStore() == store
+     * @post   If this file held content before, the first bytes of its new content are the bytes of its
+     *         old content. All other bytes of its new content are zero.
+     * @throws IllegalStateException
+     *         This file is terminated.
+     *         | isTerminated()
+     * @note   The content of a file takes a region of its store of at least its size; the region it
+     *         took before is given back.
+     */
+    public synchronized void setContentStore(ContentStore store) throws IllegalStateException {
+        if (isTerminated())
+            throw new IllegalStateException("This file is terminated.");
+        if (store == contentStore)
+            return;
+        ByteBuffer region = store == null ? null : store.allocate(getSize());
+        if (content != null) {
+            if (region != null)
+                region.put(content.duplicate()).clear().limit(getSize());
+            contentStore.release(content);
+        }
+        this.contentStore = store;
+        this.content = region;
+    }
+
+    /**
+     * Read bytes of this file, starting at the given position, into the given buffer.
+     *
+     * @param  dst
+     *         The buffer to read into.
+     * @param  position
+     *         The position of the first byte to read.
+     * @return The number of bytes read, which is the smallest of the remaining space in the given
+     *         buffer and the number of bytes from the given position to the end of this file.
+     *         Minus one if the given position is not before the end of this file.
+     * @throws IllegalArgumentException
+     *         The given buffer is not effective or the given position is negative.
+     *         | dst == null || position < 0
+     * @throws IllegalStateException
+     *         This file holds no content.
+     *         | getContentStore() == null
+     * @note   The bytes are copied straight from the store into the given buffer.
+     */
+    public synchronized int read(ByteBuffer dst, int position)
+            throws IllegalArgumentException, IllegalStateException {
+        if (dst == null || position < 0)
+            throw new IllegalArgumentException("Invalid buffer or position.");
+        if (content == null)
+            throw new IllegalStateException("This file holds no content.");
+        if (position >= getSize())
+            return -1;
+        ByteBuffer source = content.duplicate();
+        source.position(position);
+        if (source.remaining() > dst.remaining())
+            source.limit(position+dst.remaining());
+        int length = source.remaining();
+        dst.put(source);
+        return length;
+    }
+
+    /**
+     * Write the remaining bytes of the given buffer into this file, starting at the given position.
+     *
+     * @param  src
+     *         The buffer to write from.
+     * @param  position
+     *         The position in this file of the first byte to write.
+     * @return The number of bytes written, which is the number of remaining bytes in the given buffer.
+     * @effect If the bytes reach beyond the end of this file, this file is enlarged to hold them,
+     *         with zero bytes between its old end and the given position.
+     *         | if (position + src.remaining() > getSize())
+     *         |   then enlarge(position + src.remaining() - getSize())
+     * @effect The modification time is updated.
+     *         | setModificationTime()
+     * @throws IllegalArgumentException
+     *         The given buffer is not effective, the given position is negative or the bytes would
+     *         reach beyond the maximum size.
+     *         | src == null || position < 0 || !isValidSize(position + src.remaining())
+     * @throws IllegalStateException
+     *         This file is terminated or holds no content.
+     *         | isTerminated() || getContentStore() == null
+     * @throws ObjectNotWritableException(this)
+     *         This file is not writable.
+     *         | ! isWritable()
+     */
+    public int write(ByteBuffer src, int position)
+            throws IllegalArgumentException, IllegalStateException, ObjectNotWritableException {
+        return changeInPlace(false, () -> writeLocked(src, position));
+    }
+
+    /**
+     * Write the remaining bytes of the given buffer into this file, holding its lock.
+     *
+     * @see write(ByteBuffer, int)
+     */
+    @Model
+    private int writeLocked(ByteBuffer src, int position)
+            throws IllegalArgumentException, IllegalStateException, ObjectNotWritableException {
+        if (src == null || position < 0 || position > getMaximumSize() - src.remaining())
+            throw new IllegalArgumentException("Invalid buffer or position.");
         if (isTerminated())
-        	throw new IllegalStateException("This file is terminated.");    	
-    	if (isWritable()) {
-            setSize(getSize()+delta);
-            setModificationTime();            
-        }else{
-        	throw new ObjectNotWritableException(this);
+            throw new IllegalStateException("This file is terminated.");
+        if (content == null)
+            throw new IllegalStateException("This file holds no content.");
+        if (!isWritable())
+            throw new ObjectNotWritableException(this);
+        int length = src.remaining();
+        if (position + length > getSize())
+            setSize(position + length);
+        ByteBuffer target = content.duplicate();
+        target.position(position);
+        target.put(src);
+        setModificationTime();
+        return length;
+    }
+
+    /**
+     * Append bytes of this file to the end of the given file.
+     *
+     * @param  position
+     *         The position of the first byte to transfer.
+     * @param  count
+     *         The maximum number of bytes to transfer.
+     * @param  target
+     *         The file to append the bytes to.
+     * @return The number of bytes transferred, which is the smallest of the given count and the number
+     *         of bytes from the given position to the end of this file.
+     * @effect The bytes of this file from the given position on, but no more than the given count,
+     *         are written at the end of the given file.
+     *         | target.write(bytes, target.getSize())
+     * @throws IllegalArgumentException
+     *         The given file is not effective or is this file, or the given position or count is negative.
+     *         | target == null || target == this || position < 0 || count < 0
+     * @throws IllegalStateException
+     *         This file holds no content.
+     *         | getContentStore() == null
+     * @note   The bytes are copied straight from the store of this file into the store of the given
+     *         file. The directories above the given file are locked for reading, and then both files
+     *         are locked, the one with the lowest identity hash code first.
+     */
+    public int transferTo(int position, int count, File target)
+            throws IllegalArgumentException, IllegalStateException, ObjectNotWritableException {
+        if (target == null || target == this || position < 0 || count < 0)
+            throw new IllegalArgumentException("Invalid target, position or count.");
+        int thisHash = System.identityHashCode(this);
+        int targetHash = System.identityHashCode(target);
+        File first = thisHash <= targetHash ? this : target;
+        File second = first == this ? target : this;
+        while (true) {
+            Directory parent = target.getParentDirectory();
+            Directory.Locks locks = Directory.lockAncestors(parent);
+            try {
+                synchronized (thisHash == targetHash ? getTieLock() : first) {
+                    synchronized (first) {
+                        synchronized (second) {
+                            if (target.getParentDirectory() == parent) {
+                                if (content == null)
+                                    throw new IllegalStateException("This file holds no content.");
+                                ByteBuffer source = content.duplicate();
+                                source.position(Math.min(position, getSize()));
+                                source.limit(source.position() + Math.min(count, source.remaining()));
+                                return target.writeLocked(source, target.getSize());
+                            }
+                        }
+                    }
+                }
+            } finally {
+                locks.release();
+            }
+        }
+    }
+
+    /**
+     * Resize the content of this file to the given size.
+     *
+     * @note   The region of the content is only replaced if it is too small, or more than four times
+     *         too large. Bytes that come in view are cleared, as they may hold old content.
+     */
+    @Model
+    private void resizeContent(int size) {
+        int capacity = content.capacity();
+        if (size <= capacity && (size > capacity/4 || capacity == ContentStore.getMinimumCapacity())) {
+            if (size > content.limit())
+                ContentStore.clear(content, content.limit(), size);
+            content.limit(size);
+            return;
+        }
+        ByteBuffer region = contentStore.allocate(size);
+        ByteBuffer old = content.duplicate();
+        old.limit(Math.min(size, old.limit()));
+        region.put(old).clear().limit(size);
+        contentStore.release(content);
+        content = region;
+    }
+
+    /**
+     * Terminate this file.
+     *
+     * @effect This file is terminated as a file system object.
+     *         | super.terminate()
+     * @post   If this file is terminated, it holds no content.
+     *         | if new.isTerminated() then new.getContentStore() == null
+     */
+    @Override
+    public void terminate() throws IllegalStateException {
+        super.terminate();
+        synchronized (this) {
+            if (isTerminated() && content != null) {
+                contentStore.release(content);
+                content = null;
+                contentStore = null;
+            }
         }
     }
 
+    /**
+     * Terminate this file as part of terminating a directory above it with all objects below it.
+     *
+     * @effect This file is terminated as a file system object.
+     *         | super.terminateWithinTeardown()
+     * @post   This file holds no content.
+     *         | new.getContentStore() == null
+     */
+    @Override
+    void terminateWithinTeardown() {
+        super.terminateWithinTeardown();
+        synchronized (this) {
+            if (content != null) {
+                contentStore.release(content);
+                content = null;
+                contentStore = null;
+            }
+        }
+    }
+
+    /**
+     * Variable referencing the store holding the content of this file.
+     */
+    private ContentStore contentStore = null;
+
+    /**
+     * Variable referencing the region of the content store holding the content of this file,
+     *   with its limit at the size of this file.
+     */
+    private ByteBuffer content = null;
+
 }
@@ -0,0 +1,118 @@
+package filesystem;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import be.kuleuven.cs.som.annotate.*;
+
+/**
+ * A class of events reporting how a file system object changed.
+ *   All changes of the same object that are dispatched together are coalesced into a single event.
+ *
+ * @invar   The object of each event is effective.
+ *          | getObject() != null
+ * @invar   Each event has at least one kind of change.
+ *          | !getKinds().isEmpty()
+ *
+ * @author  Tim Lauwers, Tim Robensyn, Robbe Van Biervliet
+ * @version 1.0
+ */
+@Value
+public final class FileSystemEvent {
+
+	/**
+	 * An enumeration of the kinds of changes of file system objects.
+	 */
+	public enum Kind {
+		/** The object became an item of a directory. */
+		ADDED,
+		/** The object is no longer an item of a directory. */
+		REMOVED,
+		/** The name of the object changed. */
+		RENAMED,
+		/** The modification time of the object changed. */
+		MODIFIED,
+		/** The object was terminated. */
+		TERMINATED
+	}
+
+	/**
+	 * Initialize a new event for the given object with the given kinds of changes.
+	 *
+	 * @param  object
+	 *         The object that changed.
+	 * @param  kinds
+	 *         The kinds of changes of the given object.
+	 * @post   The object of the new event is the given object.
+	 *         | new.getObject() == object
+	 * @post   The kinds of the new event are the given kinds.
+	 *         | new.getKinds().equals(kinds)
+	 */
+	FileSystemEvent(FileSystemObject object, EnumSet<Kind> kinds) {
+		this.object = object;
+		this.kinds = Collections.unmodifiableSet(EnumSet.copyOf(kinds));
+	}
+
+	/**
+	 * Return the object that changed.
+	 */
+	@Basic @Immutable
+	public FileSystemObject getObject() {
+		return this.object;
+	}
+
+	private final FileSystemObject object;
+
+	/**
+	 * Return the kinds of changes of the object of this event.
+	 */
+	@Basic @Immutable
+	public Set<Kind> getKinds() {
+		return this.kinds;
+	}
+
+	/**
+	 * Check whether the object of this event went through the given kind of change.
+	 *
+	 * @param  kind
+	 *         The kind to check.
+	 * @return True if and only if the given kind is one of the kinds of this event.
+	 *         | result == getKinds().contains(kind)
+	 */
+	public boolean hasKind(Kind kind) {
+		return this.kinds.contains(kind);
+	}
+
+	private final Set<Kind> kinds;
+
+	/**
+	 * Check whether this event is equal to the given object.
+	 *
+	 * @return True if and only if the given object is an event with the same object and kinds.
+	 */
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof FileSystemEvent))
+			return false;
+		FileSystemEvent event = (FileSystemEvent) other;
+		return event.object == this.object && event.kinds.equals(this.kinds);
+	}
+
+	/**
+	 * Return the hash code of this event.
+	 */
+	@Override
+	public int hashCode() {
+		return System.identityHashCode(this.object) * 31 + this.kinds.hashCode();
+	}
+
+	/**
+	 * Return a textual representation of this event.
+	 */
+	@Override
+	public String toString() {
+		return this.object.getName() + " " + this.kinds;
+	}
+
+}
@@ -0,0 +1,354 @@
+package filesystem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import be.kuleuven.cs.som.annotate.*;
+
+/**
+ * A class dispatching the changes of file system objects to the listeners of directories.
+ *   Changes are published into a bounded ring buffer without locking, together with the listeners
+ *   they reach at that moment. A background thread drains the buffer in batches, coalesces all changes
+ *   of the same object into one event, and hands each listener the events of its directory in a single
+ *   list. Changes are only published while some directory has a listener.
+ *
+ * @author  Tim Lauwers, Tim Robensyn, Robbe Van Biervliet
+ * @version 1.0
+ */
+public final class FileSystemEvents {
+
+	/**
+	 * This class only has static members.
+	 */
+	private FileSystemEvents() {
+	}
+
+
+	/**********************************************************
+	 * Listeners
+	 **********************************************************/
+
+	/**
+	 * A class of registrations of listeners with directories.
+	 */
+	static final class Registration {
+
+		Registration(Consumer<? super List<FileSystemEvent>> listener, boolean recursive, Executor executor) {
+			this.listener = listener;
+			this.recursive = recursive;
+			this.executor = executor;
+		}
+
+		final Consumer<? super List<FileSystemEvent>> listener;
+
+		/**
+		 * Whether the listener also hears about objects below the items of its directory.
+		 */
+		final boolean recursive;
+
+		/**
+		 * The executor running the listener, null to run it on the dispatching thread.
+		 */
+		final Executor executor;
+
+		/**
+		 * Hand the given events to the listener of this registration.
+		 */
+		void deliver(List<FileSystemEvent> events) {
+			if (executor == null)
+				listener.accept(events);
+			else
+				executor.execute(() -> listener.accept(events));
+		}
+	}
+
+	/**
+	 * Register that a listener was added to a directory.
+	 *
+	 * @post   Changes are published, and the dispatching thread is running.
+	 */
+	static void listenerAdded() {
+		if (nbListeners.getAndIncrement() == 0)
+			startDispatcher();
+	}
+
+	/**
+	 * Register that a listener was removed from a directory.
+	 */
+	static void listenerRemoved() {
+		nbListeners.decrementAndGet();
+	}
+
+	private static final AtomicInteger nbListeners = new AtomicInteger(0);
+
+
+	/**********************************************************
+	 * Publishing
+	 **********************************************************/
+
+	/**
+	 * Publish the given kind of change of the given object, as an item of the given directory.
+	 *
+	 * @param  obj
+	 *         The object that changed.
+	 * @param  directory
+	 *         The directory the object is, or was, an item of, null if it is a root.
+	 * @param  kind
+	 *         The kind of change.
+	 * @note   Nothing is published while no directory has a listener. If the ring buffer is full,
+	 *         the change is queued aside, so no change is ever lost.
+	 * @note   The listeners the change reaches are looked up now, by walking up from the given directory,
+	 *         because the ancestors of the directory may have changed or been cleared by the time the
+	 *         change is dispatched.
+	 */
+	static void publish(FileSystemObject obj, Directory directory, FileSystemEvent.Kind kind) {
+		if (nbListeners.get() == 0 || directory == null)
+			return;
+		Registration[] reached = getRegistrationsReached(directory);
+		if (reached.length == 0)
+			return;
+		Change change = new Change(obj, reached, kind);
+		if (!offer(change))
+			overflow.add(change);
+		if (dispatcherIsWaiting)
+			LockSupport.unpark(dispatcher);
+	}
+
+	/**
+	 * Return the registrations of the listeners that hear about changes of the items of the given directory.
+	 *
+	 * @return All registrations of the given directory, followed by the recursive registrations of the
+	 *         directories above it.
+	 */
+	@Model
+	private static Registration[] getRegistrationsReached(Directory directory) {
+		List<Registration> reached = null;
+		boolean direct = true;
+		for (Directory current = directory; current != null; current = current.getParentDirectory()) {
+			for (Registration registration: current.getListenerRegistrations())
+				if (direct || registration.recursive) {
+					if (reached == null)
+						reached = new ArrayList<Registration>(2);
+					reached.add(registration);
+				}
+			direct = false;
+		}
+		return (reached == null) ? NO_REGISTRATIONS : reached.toArray(NO_REGISTRATIONS);
+	}
+
+	private static final Registration[] NO_REGISTRATIONS = new Registration[0];
+
+	/**
+	 * A class of single changes of a file system object, with the listeners they reach.
+	 */
+	private static final class Change {
+
+		private Change(FileSystemObject obj, Registration[] reached, FileSystemEvent.Kind kind) {
+			this.obj = obj;
+			this.reached = reached;
+			this.kind = kind;
+		}
+
+		private final FileSystemObject obj;
+
+		/**
+		 * The registrations of the listeners the change reached when it was published.
+		 */
+		private final Registration[] reached;
+
+		private final FileSystemEvent.Kind kind;
+	}
+
+
+	/**********************************************************
+	 * Ring buffer
+	 **********************************************************/
+
+	/**
+	 * Return the number of changes the ring buffer holds.
+	 */
+	@Basic @Immutable
+	public static int getCapacity() {
+		return CAPACITY;
+	}
+
+	private static final int CAPACITY = 1 << 14;
+
+	/**
+	 * Add the given change to the ring buffer, if it is not full.
+	 *
+	 * @return True if and only if the change was added.
+	 * @note   A producer claims the next slot by advancing the tail, and then fills it. The consumer
+	 *         stops at a claimed slot that is not filled yet.
+	 */
+	private static boolean offer(Change change) {
+		while (true) {
+			long tail = tailSequence.get();
+			if (tail - headSequence.get() >= CAPACITY)
+				return false;
+			if (tailSequence.compareAndSet(tail, tail+1)) {
+				slots.set((int) tail & (CAPACITY-1), change);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Remove the oldest change from the ring buffer.
+	 *
+	 * @return The oldest change, or null if there is none or it is not filled in yet.
+	 * @note   Only the thread holding the drain lock may call this method.
+	 */
+	private static Change poll() {
+		long head = headSequence.get();
+		int slot = (int) head & (CAPACITY-1);
+		Change change = slots.get(slot);
+		if (change == null)
+			return null;
+		slots.set(slot, null);
+		headSequence.lazySet(head+1);
+		return change;
+	}
+
+	private static final AtomicReferenceArray<Change> slots = new AtomicReferenceArray<Change>(CAPACITY);
+	private static final AtomicLong headSequence = new AtomicLong(0);
+	private static final AtomicLong tailSequence = new AtomicLong(0);
+
+	/**
+	 * The changes published while the ring buffer was full.
+	 */
+	private static final ConcurrentLinkedQueue<Change> overflow = new ConcurrentLinkedQueue<Change>();
+
+
+	/**********************************************************
+	 * Dispatching
+	 **********************************************************/
+
+	/**
+	 * Dispatch all published changes on the current thread.
+	 *
+	 * @effect All changes published before this call are handed to the listeners of their
+	 *         directories, coalesced per object.
+	 * @throws RuntimeException
+	 *         A listener failed. All changes are still handed to all other listeners first, and the
+	 *         first failure is thrown with the other failures suppressed by it.
+	 * @note   Listeners without an executor are run on the current thread before this method returns,
+	 *         so a synchronous consumer can flush after a series of changes to hear about all of them.
+	 *         Listeners must not flush themselves.
+	 */
+	public static void flush() throws RuntimeException {
+		List<RuntimeException> failures = new ArrayList<RuntimeException>(0);
+		drainLock.lock();
+		try {
+			while (dispatchBatch(failures) > 0)
+				;
+		} finally {
+			drainLock.unlock();
+		}
+		if (!failures.isEmpty()) {
+			RuntimeException first = failures.get(0);
+			for (int i = 1; i < failures.size(); i++)
+				first.addSuppressed(failures.get(i));
+			throw first;
+		}
+	}
+
+	/**
+	 * Drain one batch of changes and hand them to the listeners they reached.
+	 *
+	 * @param  failures
+	 *         The list to add the failures of listeners to.
+	 * @return The number of changes drained.
+	 * @note   Each listener is run on its own, so a failing listener does not keep the batch from
+	 *         the other listeners.
+	 */
+	@Model
+	private static int dispatchBatch(List<RuntimeException> failures) {
+		Map<FileSystemObject,EnumSet<FileSystemEvent.Kind>> kinds =
+				new IdentityHashMap<FileSystemObject,EnumSet<FileSystemEvent.Kind>>();
+		Map<FileSystemObject,Set<Registration>> reached = new LinkedHashMap<FileSystemObject,Set<Registration>>();
+		int nbChanges = 0;
+		Change change;
+		while (nbChanges < CAPACITY && ((change = poll()) != null || (change = overflow.poll()) != null)) {
+			nbChanges++;
+			EnumSet<FileSystemEvent.Kind> objKinds = kinds.get(change.obj);
+			if (objKinds == null) {
+				kinds.put(change.obj, EnumSet.of(change.kind));
+				reached.put(change.obj, new LinkedHashSet<Registration>());
+			}
+			else
+				objKinds.add(change.kind);
+			Collections.addAll(reached.get(change.obj), change.reached);
+		}
+		if (nbChanges == 0)
+			return 0;
+
+		Map<Registration,List<FileSystemEvent>> batches = new LinkedHashMap<Registration,List<FileSystemEvent>>();
+		for (Map.Entry<FileSystemObject,Set<Registration>> entry: reached.entrySet()) {
+			FileSystemEvent event = new FileSystemEvent(entry.getKey(), kinds.get(entry.getKey()));
+			for (Registration registration: entry.getValue()) {
+				List<FileSystemEvent> batch = batches.get(registration);
+				if (batch == null)
+					batches.put(registration, batch = new ArrayList<FileSystemEvent>());
+				batch.add(event);
+			}
+		}
+		for (Map.Entry<Registration,List<FileSystemEvent>> entry: batches.entrySet()) {
+			try {
+				entry.getKey().deliver(entry.getValue());
+			} catch (RuntimeException exc) {
+				failures.add(exc);
+			}
+		}
+		return nbChanges;
+	}
+
+	/**
+	 * Start the background thread dispatching published changes, if it is not running yet.
+	 */
+	private static synchronized void startDispatcher() {
+		if (dispatcher != null)
+			return;
+		Thread thread = new Thread(() -> {
+			while (true) {
+				try {
+					flush();
+				} catch (RuntimeException exc) {
+					// A failing listener must not stop the dispatching of other changes.
+				}
+				dispatcherIsWaiting = true;
+				if (headSequence.get() == tailSequence.get() && overflow.isEmpty())
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+				dispatcherIsWaiting = false;
+			}
+		}, "file-system-events");
+		thread.setDaemon(true);
+		dispatcher = thread;
+		thread.start();
+	}
+
+	private static volatile Thread dispatcher = null;
+	private static volatile boolean dispatcherIsWaiting = false;
+
+	/**
+	 * Lock held by the thread draining the ring buffer.
+	 */
+	private static final ReentrantLock drainLock = new ReentrantLock();
+
+}
@@ -0,0 +1,542 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import be.kuleuven.cs.som.annotate.*;
+
+/**
+ * A class of images keeping a file system on disk.
+ *   An image starts with a header, followed by records of 64 bytes for files and directories,
+ *   the names of the objects, and for each directory a block with the offsets of the records of
+ *   its items, sorted by name ignoring case. The image is mapped in memory for reading.
+ *   Directories loaded from an image load their items the first time they are needed, so only
+ *   the part of the file system that is used is ever built in memory.
+ *   Objects kept in an image that change are marked dirty, and flushing the image writes only
+ *   their records back. Names and item blocks are overwritten in place when the new ones fit, and
+ *   are left untouched when they did not change. Only longer names, new objects and larger item
+ *   blocks are appended to the end of the image; the space they replace is left unused.
+ *
+ * @invar   The root of each image is effective.
+ *          | getRoot() != null
+ *
+ * @author  Tim Lauwers, Tim Robensyn, Robbe Van Biervliet
+ * @version 1.0
+ */
+public final class FileSystemImage implements AutoCloseable {
+
+	/**
+	 * Initialize a new image on the given channel.
+	 */
+	private FileSystemImage(FileChannel channel, long end) {
+		this.channel = channel;
+		this.end = end;
+	}
+
+	/**
+	 * Write the given root directory and all objects below it into a new image at the given path.
+	 *
+	 * @param  root
+	 *         The directory to write.
+	 * @param  path
+	 *         The path of the image, which is replaced if it exists.
+	 * @return An open image of which the root is the given directory. The given directory and all
+	 *         objects below it are kept in the image.
+	 *         | result.getRoot() == root
+	 * @throws IllegalArgumentException
+	 *         The given directory or path is not effective, or the given directory is not a root.
+	 *         | root == null || path == null || !root.isRoot()
+	 * @throws IOException
+	 *         The image cannot be written.
+	 * @note   The given directory is locked for writing while it is written, so nothing below it
+	 *         changes in the meantime. Other file systems are not held up.
+	 */
+	public static FileSystemImage create(Directory root, Path path) throws IllegalArgumentException, IOException {
+		if (root == null || path == null || !root.isRoot())
+			throw new IllegalArgumentException("Cannot create an image of the given root at the given path.");
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		FileSystemImage image = new FileSystemImage(channel, HEADER_SIZE);
+		Directory.Locks locks = Directory.lockWithAncestors(root);
+		try {
+			if (!root.isRoot())
+				throw new IllegalArgumentException("Cannot create an image of a directory that is not a root.");
+			long rootOffset = image.append(root);
+			image.writeHeader(rootOffset);
+			image.map();
+			image.root = root;
+			return image;
+		} catch (IOException | RuntimeException exc) {
+			channel.close();
+			throw exc;
+		} finally {
+			locks.release();
+		}
+	}
+
+	/**
+	 * Open the image at the given path.
+	 *
+	 * @param  path
+	 *         The path of the image.
+	 * @return An open image, of which the root is a new root directory loaded from the image.
+	 *         Its items are loaded when they are first needed.
+	 * @throws IllegalArgumentException
+	 *         The given path is not effective.
+	 *         | path == null
+	 * @throws IOException
+	 *         The image cannot be read, or is not an image of a file system.
+	 */
+	public static FileSystemImage open(Path path) throws IllegalArgumentException, IOException {
+		if (path == null)
+			throw new IllegalArgumentException("Cannot open a non-effective path.");
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			channel.read(header, 0);
+			if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION)
+				throw new IOException("Not an image of a file system.");
+			FileSystemImage image = new FileSystemImage(channel, channel.size());
+			image.map();
+			FileSystemObject root = image.load(null, header.getLong(16));
+			if (!(root instanceof Directory))
+				throw new IOException("The root of the image is not a directory.");
+			image.root = (Directory) root;
+			return image;
+		} catch (IOException | RuntimeException exc) {
+			channel.close();
+			throw exc;
+		}
+	}
+
+	/**
+	 * Return the root directory of this image.
+	 */
+	@Basic @Immutable
+	public Directory getRoot() {
+		return this.root;
+	}
+
+	private Directory root;
+
+
+	/**********************************************************
+	 * Format
+	 **********************************************************/
+
+	private static final long MAGIC = 0x4F475046_53494D47L;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int RECORD_SIZE = 64;
+
+	private static final byte KIND_FILE = 0;
+	private static final byte KIND_DIRECTORY = 1;
+
+	// Positions of the fields in a record.
+	private static final int KIND = 0;
+	private static final int WRITABLE = 1;
+	private static final int TYPE_LENGTH = 2;
+	private static final int NAME_LENGTH = 4;
+	private static final int NAME_OFFSET = 8;
+	private static final int CREATION_TIME = 16;
+	private static final int MODIFICATION_TIME = 24;
+	private static final int SIZE = 32;
+	private static final int NB_ITEMS = 40;
+	private static final int TOTAL_NB_ITEMS = 44;
+	private static final int BLOCK_OFFSET = 48;
+	private static final int TYPE_OFFSET = 56;
+
+
+	/**********************************************************
+	 * Loading
+	 **********************************************************/
+
+	/**
+	 * Return the items of the given directory, loaded from this image.
+	 *
+	 * @param  dir
+	 *         A pending directory kept in this image.
+	 * @return New file system objects for the items of the given directory, in order of their name,
+	 *         of which the given directory is the parent directory.
+	 */
+	FileSystemObject[] loadItems(Directory dir) {
+		ByteBuffer record = read(dir.getImageOffset(), RECORD_SIZE);
+		int nbItems = record.getInt(NB_ITEMS);
+		ByteBuffer block = read(record.getLong(BLOCK_OFFSET), nbItems * 8);
+		FileSystemObject[] items = new FileSystemObject[nbItems];
+		for (int i = 0; i < nbItems; i++)
+			items[i] = load(dir, block.getLong(i * 8));
+		return items;
+	}
+
+	/**
+	 * Return a new file system object for the record at the given offset, with the given parent directory.
+	 */
+	@Model
+	private FileSystemObject load(Directory dir, long offset) {
+		ByteBuffer record = read(offset, RECORD_SIZE);
+		String name = readString(record.getLong(NAME_OFFSET), record.getInt(NAME_LENGTH));
+		boolean writable = record.get(WRITABLE) != 0;
+		long creationTime = record.getLong(CREATION_TIME);
+		long modificationTime = record.getLong(MODIFICATION_TIME);
+		if (record.get(KIND) == KIND_DIRECTORY)
+			return new Directory(dir, name, writable, creationTime, modificationTime,
+					record.getLong(SIZE), record.getInt(TOTAL_NB_ITEMS), this, offset);
+		String typeName = readString(record.getLong(TYPE_OFFSET), record.getShort(TYPE_LENGTH));
+		FileType type = FileType.forName(typeName);
+		if (type == null)
+			throw new IllegalStateException("The file type " + typeName + " is not registered.");
+		return new File(dir, name, writable, type, (int) record.getLong(SIZE), creationTime, modificationTime,
+				this, offset);
+	}
+
+	/**
+	 * Return the lock taken while loading the items of the directory with the record at the given offset.
+	 */
+	Object getLoadLock(long offset) {
+		return loadLocks[(int) ((offset / RECORD_SIZE) & (loadLocks.length-1))];
+	}
+
+	private final Object[] loadLocks = new Object[64];
+	{
+		for (int i = 0; i < loadLocks.length; i++)
+			loadLocks[i] = new Object();
+	}
+
+
+	/**********************************************************
+	 * Writing back
+	 **********************************************************/
+
+	/**
+	 * Mark the given object, kept in this image, as changed.
+	 */
+	void markDirty(FileSystemObject obj) {
+		dirty.add(obj);
+	}
+
+	/**
+	 * Return the number of objects kept in this image that changed since it was last flushed.
+	 */
+	public int getNbDirtyObjects() {
+		return dirty.size();
+	}
+
+	/**
+	 * Write the objects kept in this image that changed back to it.
+	 *
+	 * @effect The record of each changed object still kept in this image is rewritten, as are the
+	 *         totals of the directories above it. New items of changed directories are appended
+	 *         to this image and kept in it from now on.
+	 * @post   No object kept in this image is marked as changed.
+	 *         | new.getNbDirtyObjects() == 0
+	 * @throws IllegalStateException
+	 *         This image is closed.
+	 * @throws IOException
+	 *         The image cannot be written. The objects that changed stay marked as changed, so a
+	 *         later flush writes them again.
+	 * @note   Only the changed objects and the directories above them are visited. The roots of the
+	 *         file systems they belong to are locked for writing, so no object in those file systems
+	 *         changes place, name or size during the flush. Other file systems are not held up.
+	 *         A root file is not locked: if it changes during the flush, it is marked as changed again.
+	 */
+	public void flush() throws IllegalStateException, IOException {
+		if (!channel.isOpen())
+			throw new IllegalStateException("This image is closed.");
+		List<FileSystemObject> changed = new ArrayList<FileSystemObject>(dirty);
+		while (true) {
+			Set<Directory> roots = getRootDirectories(changed);
+			Directory.Locks locks = Directory.lock(roots, null);
+			try {
+				if (roots.equals(getRootDirectories(changed))) {
+					flushLocked(changed);
+					return;
+				}
+			} finally {
+				locks.release();
+			}
+		}
+	}
+
+	/**
+	 * Return the roots of the given objects that are directories.
+	 */
+	private static Set<Directory> getRootDirectories(Collection<FileSystemObject> objects) {
+		Set<Directory> result = Collections.newSetFromMap(new IdentityHashMap<Directory,Boolean>());
+		for (FileSystemObject obj: objects) {
+			FileSystemObject root = obj.getRoot();
+			if (root instanceof Directory)
+				result.add((Directory) root);
+		}
+		return result;
+	}
+
+	/**
+	 * Write the given objects kept in this image back to it, while holding all locks needed.
+	 *
+	 * @see flush()
+	 */
+	@Model
+	private void flushLocked(List<FileSystemObject> changed) throws IOException {
+		dirty.removeAll(changed);
+		try {
+			Set<Directory> above = new HashSet<Directory>();
+			for (FileSystemObject obj: changed) {
+				if (obj.getImage() != this || obj.isTerminated())
+					continue;
+				rewrite(obj);
+				for (Directory dir = obj.getParentDirectory(); dir != null && dir.getImage() == this;
+						dir = dir.getParentDirectory())
+					if (!above.add(dir))
+						break;
+			}
+			for (Directory dir: above) {
+				ByteBuffer totals = ByteBuffer.allocate(BLOCK_OFFSET - SIZE);
+				totals.putLong(SIZE - SIZE, dir.getTotalSize());
+				totals.putInt(NB_ITEMS - SIZE, dir.isPending()
+						? read(dir.getImageOffset(), RECORD_SIZE).getInt(NB_ITEMS) : dir.getNbItems());
+				totals.putInt(TOTAL_NB_ITEMS - SIZE, dir.getTotalNbItems());
+				write(totals, dir.getImageOffset() + SIZE);
+			}
+			channel.force(false);
+			map();
+		} catch (IOException | RuntimeException exc) {
+			dirty.addAll(changed);
+			throw exc;
+		}
+	}
+
+	/**
+	 * Rewrite the record of the given object kept in this image.
+	 *
+	 * @note   A changed name is written over the old one if it is not longer. The item block of a
+	 *         directory is kept if its items did not change, written over the old one if it does not
+	 *         hold more items, and only appended otherwise. A change of the writability, the
+	 *         modification time or the size of an object thus only rewrites its record.
+	 */
+	@Model
+	private void rewrite(FileSystemObject obj) throws IOException {
+		ByteBuffer old = read(obj.getImageOffset(), RECORD_SIZE);
+		long nameOffset = old.getLong(NAME_OFFSET);
+		int nameLength = old.getInt(NAME_LENGTH);
+		if (!readString(nameOffset, nameLength).equals(obj.getName())) {
+			if (obj.getName().length() <= nameLength)
+				write(ByteBuffer.wrap(obj.getName().getBytes(StandardCharsets.US_ASCII)), nameOffset);
+			else
+				nameOffset = appendString(obj.getName());
+		}
+		long blockOffset = old.getLong(BLOCK_OFFSET);
+		int nbItems = old.getInt(NB_ITEMS);
+		if (obj instanceof Directory && !((Directory) obj).isPending()) {
+			ByteBuffer block = encodeBlock((Directory) obj);
+			if (!block.equals(read(blockOffset, nbItems * 8))) {
+				if (block.remaining() <= nbItems * 8)
+					write(block.duplicate(), blockOffset);
+				else
+					blockOffset = append(block.duplicate());
+			}
+			nbItems = block.remaining() / 8;
+		}
+		write(encode(obj, nameOffset, old.getLong(TYPE_OFFSET), blockOffset, nbItems), obj.getImageOffset());
+	}
+
+	/**
+	 * Append the given object and all objects below it to this image, and keep them in it.
+	 *
+	 * @return The offset of the record of the given object.
+	 */
+	@Model
+	private long append(FileSystemObject obj) throws IOException {
+		long nameOffset = appendString(obj.getName());
+		long typeOffset = obj instanceof File ? appendString(((File) obj).getType().getName()) : 0;
+		long blockOffset = 0;
+		int nbItems = 0;
+		if (obj instanceof Directory) {
+			nbItems = ((Directory) obj).getNbItems();
+			blockOffset = appendBlock((Directory) obj);
+		}
+		long offset = append(encode(obj, nameOffset, typeOffset, blockOffset, nbItems));
+		obj.attachToImage(this, offset);
+		return offset;
+	}
+
+	/**
+	 * Append a block with the offsets of the records of the items of the given directory, appending
+	 * the items not kept in this image first.
+	 *
+	 * @return The offset of the block.
+	 */
+	@Model
+	private long appendBlock(Directory dir) throws IOException {
+		return append(encodeBlock(dir));
+	}
+
+	/**
+	 * Return a block with the offsets of the records of the items of the given directory, appending
+	 * the items not kept in this image first.
+	 */
+	@Model
+	private ByteBuffer encodeBlock(Directory dir) throws IOException {
+		DirectoryContents contents = dir.getContents();
+		ByteBuffer block = ByteBuffer.allocate(contents.size() * 8);
+		for (int i = 1; i <= contents.size(); i++) {
+			FileSystemObject item = contents.getAt(i);
+			block.putLong(item.getImage() == this ? item.getImageOffset() : append(item));
+		}
+		block.flip();
+		return block;
+	}
+
+	/**
+	 * Return the record of the given object with the given offsets.
+	 */
+	@Model
+	private static ByteBuffer encode(FileSystemObject obj, long nameOffset, long typeOffset, long blockOffset,
+			int nbItems) {
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		record.put(KIND, obj instanceof Directory ? KIND_DIRECTORY : KIND_FILE);
+		record.put(WRITABLE, (byte) (obj.isWritable() ? 1 : 0));
+		record.putInt(NAME_LENGTH, obj.getName().length());
+		record.putLong(NAME_OFFSET, nameOffset);
+		record.putLong(CREATION_TIME, obj.getCreationTimeNanos());
+		record.putLong(MODIFICATION_TIME, obj.getModificationTimeNanos());
+		if (obj instanceof File) {
+			record.putShort(TYPE_LENGTH, (short) ((File) obj).getType().getName().length());
+			record.putLong(TYPE_OFFSET, typeOffset);
+			record.putLong(SIZE, ((File) obj).getSize());
+		}
+		else {
+			record.putLong(SIZE, ((Directory) obj).getTotalSize());
+			record.putInt(NB_ITEMS, nbItems);
+			record.putInt(TOTAL_NB_ITEMS, ((Directory) obj).getTotalNbItems());
+			record.putLong(BLOCK_OFFSET, blockOffset);
+		}
+		return record;
+	}
+
+	/**
+	 * Set of objects kept in this image that changed since it was last flushed.
+	 */
+	private final Set<FileSystemObject> dirty = ConcurrentHashMap.newKeySet();
+
+
+	/**********************************************************
+	 * Channel
+	 **********************************************************/
+
+	/**
+	 * Close this image.
+	 *
+	 * @post   This image is closed. Objects that changed since it was last flushed are not written back.
+	 * @throws IOException
+	 *         The image cannot be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private void writeHeader(long rootOffset) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putLong(0, MAGIC);
+		header.putInt(8, VERSION);
+		header.putLong(16, rootOffset);
+		write(header, 0);
+	}
+
+	private long appendString(String string) throws IOException {
+		return append(ByteBuffer.wrap(string.getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	private String readString(long offset, int length) {
+		ByteBuffer bytes = read(offset, length);
+		return new String(bytes.array(), 0, length, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Append the remaining bytes of the given buffer to this image.
+	 *
+	 * @return The offset of the first byte appended.
+	 */
+	private long append(ByteBuffer bytes) throws IOException {
+		long offset = end;
+		end += bytes.remaining();
+		write(bytes, offset);
+		return offset;
+	}
+
+	private void write(ByteBuffer bytes, long offset) throws IOException {
+		while (bytes.hasRemaining())
+			offset += channel.write(bytes, offset);
+	}
+
+	/**
+	 * Return a new heap buffer with the given number of bytes of this image, starting at the given offset.
+	 *
+	 * @note   The bytes are read from the mapped segments of the image. Bytes that were written after
+	 *         the image was last mapped are read from its channel.
+	 */
+	private ByteBuffer read(long offset, int length) {
+		ByteBuffer result = ByteBuffer.allocate(length);
+		MappedByteBuffer[] segments = this.segments;
+		while (result.hasRemaining()) {
+			int index = (int) (offset >>> SEGMENT_BITS);
+			int position = (int) (offset & (SEGMENT_SIZE-1));
+			if (index >= segments.length || position >= segments[index].limit()) {
+				try {
+					while (result.hasRemaining())
+						offset += channel.read(result, offset);
+				} catch (IOException exc) {
+					throw new IllegalStateException("The image cannot be read.", exc);
+				}
+				break;
+			}
+			ByteBuffer segment = segments[index].duplicate();
+			segment.position(position);
+			segment.limit(Math.min(segment.limit(), position + result.remaining()));
+			offset += segment.remaining();
+			result.put(segment);
+		}
+		result.clear();
+		return result;
+	}
+
+	/**
+	 * Map this image in memory again, in segments.
+	 */
+	private void map() throws IOException {
+		long size = channel.size();
+		MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+		for (int i = 0; i < segments.length; i++) {
+			long start = (long) i << SEGMENT_BITS;
+			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+		}
+		this.segments = segments;
+	}
+
+	private static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+	private final FileChannel channel;
+
+	/**
+	 * Variable registering the offset of the end of this image.
+	 */
+	private long end;
+
+	private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+}
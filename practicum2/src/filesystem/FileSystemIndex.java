@@ -0,0 +1,213 @@
+package filesystem;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import be.kuleuven.cs.som.annotate.*;
+
+/**
+ * A class of secondary indexes over all file system objects below a root.
+ *   The files are indexed by their type, and the objects that have been modified are indexed
+ *   by their modification time. The index of a root is built the first time it is queried,
+ *   and is kept up to date from then on by the operations that change types, times or roots.
+ *   Each index locks itself while it is queried or updated, so it can be shared by threads.
+ *
+ * @author  Tim Lauwers, Tim Robensyn, Robbe Van Biervliet
+ * @version 1.0
+ */
+final class FileSystemIndex {
+
+	/**
+	 * Initialize a new index over the given root and all file system objects below it.
+	 *
+	 * @param  root
+	 *         The root of the objects to index.
+	 * @effect The given root and all objects below it are added to the new index.
+	 *         | addSubtree(root)
+	 */
+	FileSystemIndex(FileSystemObject root) {
+		addSubtree(root);
+	}
+
+
+	/**********************************************************
+	 * Queries
+	 **********************************************************/
+
+	/**
+	 * Return the files of the given type in this index.
+	 *
+	 * @param  type
+	 *         The type of the files to return.
+	 * @return A new set with all files of the given type in this index.
+	 */
+	synchronized Set<File> getFilesOfType(FileType type) {
+		Set<File> files = getFilesByType(type, false);
+		return files == null ? new HashSet<File>() : new HashSet<File>(files);
+	}
+
+	/**
+	 * Return the number of files of the given type in this index.
+	 *
+	 * @param  type
+	 *         The type of the files to count.
+	 * @return The number of files of the given type in this index.
+	 *         | result == getFilesOfType(type).size()
+	 */
+	synchronized int getNbFilesOfType(FileType type) {
+		Set<File> files = getFilesByType(type, false);
+		return files == null ? 0 : files.size();
+	}
+
+	/**
+	 * Return the objects in this index that were last modified after the given time.
+	 *
+	 * @param  time
+	 *         The time after which the returned objects were modified, in nanoseconds since the epoch.
+	 * @return A new list with all objects in this index whose modification time is after the given
+	 *         time, ordered by their modification time.
+	 * @note   Only the objects after the given date are visited, so the query takes time proportional
+	 *         to the size of its result plus the logarithm of the size of this index.
+	 */
+	synchronized List<FileSystemObject> getObjectsModifiedAfter(long time) {
+		List<FileSystemObject> objects = new ArrayList<FileSystemObject>();
+		for (Set<FileSystemObject> modified: objectsByModificationTime.tailMap(time, false).values())
+			objects.addAll(modified);
+		return objects;
+	}
+
+
+	/**********************************************************
+	 * Updates
+	 **********************************************************/
+
+	/**
+	 * Add the given file system object to this index.
+	 *
+	 * @param  obj
+	 *         The object to add.
+	 * @post   If the given object is a file, it is indexed by its type.
+	 * @post   If the given object has a modification time, it is indexed by that time.
+	 */
+	synchronized void add(FileSystemObject obj) {
+		if (obj instanceof File) {
+			getFilesByType(((File) obj).getType(), true).add((File) obj);
+		}
+		if (obj.getModificationTimeNanos() != FileSystemObject.NO_TIME)
+			addModificationTime(obj, obj.getModificationTimeNanos());
+	}
+
+	/**
+	 * Remove the given file system object from this index.
+	 *
+	 * @param  obj
+	 *         The object to remove.
+	 * @post   The given object is no longer indexed by its type nor by its modification time.
+	 */
+	synchronized void remove(FileSystemObject obj) {
+		if (obj instanceof File) {
+			Set<File> files = getFilesByType(((File) obj).getType(), false);
+			if (files != null)
+				files.remove(obj);
+		}
+		if (obj.getModificationTimeNanos() != FileSystemObject.NO_TIME)
+			removeModificationTime(obj, obj.getModificationTimeNanos());
+	}
+
+	/**
+	 * Add the given file system object and all file system objects below it to this index.
+	 *
+	 * @effect Each object in and below the given object is added.
+	 *         | FileSystemWalker.walk(start, obj -> true, this::add)
+	 */
+	synchronized void addSubtree(FileSystemObject start) {
+		FileSystemWalker.walk(start, obj -> true, this::add);
+	}
+
+	/**
+	 * Remove the given file system object and all file system objects below it from this index.
+	 *
+	 * @effect Each object in and below the given object is removed.
+	 *         | FileSystemWalker.walk(start, obj -> true, this::remove)
+	 */
+	synchronized void removeSubtree(FileSystemObject start) {
+		FileSystemWalker.walk(start, obj -> true, this::remove);
+	}
+
+	/**
+	 * Register that the modification time of the given object has changed.
+	 *
+	 * @param  obj
+	 *         The object whose modification time has changed.
+	 * @param  oldTime
+	 *         The modification time of the given object before the change, possibly NO_TIME.
+	 * @post   The given object is indexed by its new modification time instead of its old one.
+	 */
+	synchronized void modificationTimeChanged(FileSystemObject obj, long oldTime) {
+		if (oldTime != FileSystemObject.NO_TIME)
+			removeModificationTime(obj, oldTime);
+		addModificationTime(obj, obj.getModificationTimeNanos());
+	}
+
+	@Model
+	private void addModificationTime(FileSystemObject obj, long time) {
+		Set<FileSystemObject> objects = objectsByModificationTime.get(time);
+		if (objects == null) {
+			objects = new HashSet<FileSystemObject>();
+			objectsByModificationTime.put(time, objects);
+		}
+		objects.add(obj);
+	}
+
+	@Model
+	private void removeModificationTime(FileSystemObject obj, long time) {
+		Set<FileSystemObject> objects = objectsByModificationTime.get(time);
+		if (objects != null) {
+			objects.remove(obj);
+			if (objects.isEmpty())
+				objectsByModificationTime.remove(time);
+		}
+	}
+
+	/**
+	 * Return the set of files of the given type in this index.
+	 *
+	 * @param  create
+	 *         Whether a set is to be created if this index has none for the given type yet.
+	 * @return The set of files of the given type kept by this index, null if there is none
+	 *         and none is to be created.
+	 */
+	@Model
+	private Set<File> getFilesByType(FileType type, boolean create) {
+		if (type.getIndex() >= filesByType.size()) {
+			if (!create)
+				return null;
+			while (type.getIndex() >= filesByType.size())
+				filesByType.add(null);
+		}
+		Set<File> files = filesByType.get(type.getIndex());
+		if (files == null && create) {
+			files = new HashSet<File>();
+			filesByType.set(type.getIndex(), files);
+		}
+		return files;
+	}
+
+	/**
+	 * List with at the index of each file type the files of that type in this index, or null
+	 * if this index has no set for that type yet.
+	 */
+	private final List<Set<File>> filesByType = new ArrayList<Set<File>>();
+
+	/**
+	 * Map from each modification time, in nanoseconds since the epoch, to the objects last modified
+	 * at that time.
+	 */
+	private final NavigableMap<Long,Set<FileSystemObject>> objectsByModificationTime =
+			new TreeMap<Long,Set<FileSystemObject>>();
+
+}
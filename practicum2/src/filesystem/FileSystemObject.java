@@ -1,7 +1,17 @@
 package filesystem;
 
 import be.kuleuven.cs.som.annotate.*;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 /**
  * An abstract class of file system objects.
@@ -14,7 +24,11 @@ import java.util.Date;
  *           | canHaveAsModificationTime(getModificationTime())
  * @invar    Each file system object must have a valid parent directory.
  *           | canHaveAsParentDirectory(getParentDirectory())
- * 
+ * @note     File system objects can be used by several threads at the same time. Each change locks
+ *           the directories it changes for writing and all directories above them for reading, in the
+ *           order of their lock rank, and then the object it changes. Operations that change where
+ *           objects are, such as move, makeRoot and terminate, also lock a directory they move for
+ *           writing, so changes in unrelated parts of the file systems never wait for each other.
  * @author  Tim Lauwers, Tim Robensyn, Robbe Van Biervliet
  * @version 1.0
  *
@@ -49,6 +63,7 @@ public abstract class FileSystemObject {
      *         | new.getModificationTime() == null
 	 */
 	protected FileSystemObject(Directory dir, String name, boolean writable) {
+		this.creationTime = getCurrentTime();
 		setName(name);
 		setWritable(writable);
 		setParentDirectory(dir);
@@ -70,6 +85,38 @@ public abstract class FileSystemObject {
 		this(null,name,writable);
 	}
 	
+	/**
+	 * Initialize a new file system object kept at the given offset in the given image, with given
+	 * directory, name, writability, creation time and modification time.
+	 * 
+	 * @param  dir
+	 *         The parent directory of the new file system object.
+	 * @param  name
+	 *         The name of the new file system object.
+	 * @param  writable
+	 * 		   The writability of the new file system object.
+	 * @param  creationTime
+	 *         The creation time of the new file system object, in nanoseconds since the epoch.
+	 * @param  modificationTime
+	 *         The modification time of the new file system object, NO_TIME if it has none.
+	 * @param  image
+	 *         The image the new file system object is loaded from.
+	 * @param  offset
+	 *         The offset of the record of the new file system object in the image.
+	 * @post   The new file system object has the given properties, and is kept in the given image.
+	 * @note   The new file system object is not added to the given directory: the directory adds
+	 *         all items it loads at once.
+	 */
+	FileSystemObject(Directory dir, String name, boolean writable, long creationTime, long modificationTime,
+			FileSystemImage image, long offset) {
+		this.creationTime = creationTime;
+		setName(name);
+		this.isWritable = writable;
+		this.modificationTime = modificationTime;
+		this.dir = dir;
+		attachToImage(image, offset);
+	}
+	
 	
 	
 	
@@ -80,7 +127,7 @@ public abstract class FileSystemObject {
     /**
      * Variable referencing the name of this file system object.
      */
-    private String name = null;
+    private volatile String name = null;
 
     /**
      * Return the name of this file system object.
@@ -90,6 +137,25 @@ public abstract class FileSystemObject {
         return name;
     }
     
+    /**
+     * Variable referencing the name of this file system object in lower case.
+     */
+    private volatile String nameKey = null;
+    
+    /**
+     * Return the key under which this file system object is kept in the contents of its
+     * parent directory.
+     * 
+     * @return The name of this file system object in lower case.
+     *         | result.equals(getName().toLowerCase(Locale.ROOT))
+     * @note   The key is folded once each time the name is set, so directories can look up
+     *         and order their items without folding their names again.
+     */
+    @Raw @Basic
+    String getNameKey() {
+        return nameKey;
+    }
+    
     /**
      * Check whether the given name is a legal name for a file system object.
      * 
@@ -119,11 +185,13 @@ public abstract class FileSystemObject {
      */
     @Raw @Model 
     private void setName(String name) {
+        beforeChange();
         if (isValidName(name)) {
         		this.name = name;
         } else {
         		this.name = getDefaultName();
         }
+        this.nameKey = this.name.toLowerCase(Locale.ROOT);
     }
     
     /**
@@ -168,6 +236,19 @@ public abstract class FileSystemObject {
      *          | !isWritable() 
      */
     public void changeName(String name) throws IllegalStateException, ObjectNotWritableException {
+    	changeInPlace(true, () -> {
+    		changeNameLocked(name);
+    		return null;
+    	});
+    }
+    
+    /**
+     * Change the name of this filesystem object to the given name, while holding all locks needed.
+     * 
+     * @see changeName(String)
+     */
+    @Model
+    private void changeNameLocked(String name) throws IllegalStateException, ObjectNotWritableException {
     	if (isTerminated()) throw new IllegalStateException("This file system object is terminated.");
         if (isWritable()) {
             if (isValidName(name) 
@@ -175,9 +256,12 @@ public abstract class FileSystemObject {
               && !name.equalsIgnoreCase(getName())
               && (isRoot() || getParentDirectory().isWritable()) ) {
             	
+            	String oldName = getName();
             	setName(name);
             	if (!isRoot())
-            		getParentDirectory().orderDirectory(this);
+            		getParentDirectory().orderDirectory(this, oldName);
+            	pathChanged();
+            	FileSystemEvents.publish(this, getParentDirectory(), FileSystemEvent.Kind.RENAMED);
                 setModificationTime();
 
             }
@@ -186,6 +270,27 @@ public abstract class FileSystemObject {
         }
     }
     
+    /**
+     * Change the name of this file system object to the given name as one of many items its parent
+     * directory renames at once, that directory ordering its contents itself.
+     * 
+     * @param  name
+     *         The new name for this file system object.
+     * @pre    The current thread holds the lock of the parent directory of this file system object for
+     *         writing, and the locks of all directories above it, and the given name is valid.
+     *         | getParentDirectory().isLockedForWritingByCurrentThread() && isValidName(name)
+     * @effect The name of this file system object is set to the given name.
+     *         | setName(name)
+     * @effect The modification time of this file system object is updated.
+     *         | setModificationTime()
+     */
+    void renameWithinBatch(String name) {
+    	setName(name);
+    	pathChanged();
+    	FileSystemEvents.publish(this, getParentDirectory(), FileSystemEvent.Kind.RENAMED);
+    	setModificationTime();
+    }
+    
     /**
      * Check whether this file system object is ordered before this file system object,
      * lexographically by name, ignoring case.
@@ -223,22 +328,131 @@ public abstract class FileSystemObject {
     }
     
     
+    /**********************************************************
+     * Clock
+     **********************************************************/
+    
+    /**
+     * A clock supplying the time of the system in nanoseconds since the epoch, at the precision
+     * of milliseconds.
+     */
+    public static final LongSupplier SYSTEM_CLOCK = () -> TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    
+    /**
+     * Value registering that a time is absent.
+     */
+    public static final long NO_TIME = Long.MIN_VALUE;
+    
+    /**
+     * Return the clock of all file system objects.
+     *   The clock supplies the current time in nanoseconds since the epoch.
+     */
+    @Basic
+    public static LongSupplier getClock() {
+    	return clock;
+    }
+    
+    /**
+     * Set the clock of all file system objects to the given clock.
+     * 
+     * @param  clock
+     *         The new clock, supplying the current time in nanoseconds since the epoch.
+     * @post   The clock of all file system objects is the given clock.
+     *         | new.getClock() == clock
+     * @throws IllegalArgumentException
+     *         The given clock is not effective.
+     *         | clock == null
+     */
+    public static void setClock(LongSupplier clock) throws IllegalArgumentException {
+    	if (clock == null)
+    		throw new IllegalArgumentException("The clock of file system objects must be effective.");
+    	FileSystemObject.clock = clock;
+    }
+    
+    /**
+     * Variable referencing the clock of all file system objects.
+     */
+    private static volatile LongSupplier clock = SYSTEM_CLOCK;
+    
+    /**
+     * Return the current time of the clock, in nanoseconds since the epoch.
+     */
+    @Model
+    static long getCurrentTime() {
+    	return clock.getAsLong();
+    }
+    
+    /**
+     * Return the given date in nanoseconds since the epoch.
+     */
+    @Model
+    static long toNanos(Date date) {
+    	return TimeUnit.MILLISECONDS.toNanos(date.getTime());
+    }
+    
+    /**
+     * Return the given time in nanoseconds since the epoch in milliseconds, rounded down.
+     * 
+     * @note   Times before the epoch are rounded down as well, so a time and the date holding it
+     *         never differ by a millisecond or more.
+     */
+    @Model
+    private static long toMillis(long nanos) {
+    	return Math.floorDiv(nanos, 1_000_000L);
+    }
+    
+    /**
+     * Return the given time in nanoseconds since the epoch as a date, rounded down to milliseconds.
+     */
+    @Model
+    private static Date toDate(long nanos) {
+    	return new Date(toMillis(nanos));
+    }
+    
+    /**
+     * Return the given time in nanoseconds since the epoch as an instant.
+     */
+    @Model
+    private static Instant toInstant(long nanos) {
+    	return Instant.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L), Math.floorMod(nanos, 1_000_000_000L));
+    }
+    
+    
     /**********************************************************
      * creationTime
      **********************************************************/
 
     /**
-     * Variable referencing the time of creation.
+     * Variable registering the time of creation, in nanoseconds since the epoch.
      */
-    private final Date creationTime = new Date();
+    private final long creationTime;
    
     /**
-     * Return the time at which this file system object was created.
+     * Return the time at which this file system object was created, in nanoseconds since the epoch.
      */
     @Raw @Basic @Immutable
-    public Date getCreationTime() {
+    public long getCreationTimeNanos() {
         return creationTime;
     }
+   
+    /**
+     * Return the time at which this file system object was created.
+     * 
+     * @return A new date holding the creation time, rounded down to milliseconds.
+     *         | result.getTime() == getCreationTimeNanos() / 1000000
+     */
+    @Raw @Immutable
+    public Date getCreationTime() {
+        return toDate(getCreationTimeNanos());
+    }
+   
+    /**
+     * Return the time at which this file system object was created, as an instant.
+     */
+    @Raw @Immutable
+    public Instant getCreationInstant() {
+        return toInstant(getCreationTimeNanos());
+    }
 
     /**
      * Check whether the given date is a valid creation time.
@@ -249,11 +463,22 @@ public abstract class FileSystemObject {
      * 			in the future.
      *         	| result == 
      *         	| 	(date != null) &&
-     *         	| 	(date.getTime() <= System.currentTimeMillis())
+     *         	| 	isValidCreationTime(toNanos(date))
      */
     public static boolean isValidCreationTime(Date date) {
-    	return 	(date!=null) &&
-    			(date.getTime()<=System.currentTimeMillis());
+    	return 	(date!=null) && isValidCreationTime(toNanos(date));
+    }
+
+    /**
+     * Check whether the given time is a valid creation time.
+     *
+     * @param  	time
+     *         	The time to check, in nanoseconds since the epoch.
+     * @return 	True if and only if the given time is not in the future according to the clock.
+     *         	| result == (time <= getClock().getAsLong())
+     */
+    public static boolean isValidCreationTime(long time) {
+    	return time <= getCurrentTime();
     }
 
     
@@ -263,19 +488,43 @@ public abstract class FileSystemObject {
      **********************************************************/
 
     /**
-     * Variable referencing the time of the last modification,
-     * possibly null.
+     * Variable registering the time of the last modification, in nanoseconds since the epoch,
+     * or NO_TIME if this file system object has not been modified.
      */
-    private Date modificationTime = null;
+    private volatile long modificationTime = NO_TIME;
+   
+    /**
+     * Return the time at which this file system object was last modified, in nanoseconds since
+     * the epoch, that is at which the name or size was last changed. If this file system object has
+     * not yet been modified after construction, NO_TIME is returned.
+     */
+    @Raw @Basic
+    public long getModificationTimeNanos() {
+        return modificationTime;
+    }
    
     /**
      * Return the time at which this file system object was last modified, that is
      * at which the name or size was last changed. If this file system object has
      * not yet been modified after construction, null is returned.
+     * 
+     * @return A new date holding the modification time, rounded down to milliseconds, or null if
+     *         this file system object has not been modified.
      */
-    @Raw @Basic
+    @Raw
     public Date getModificationTime() {
-        return modificationTime;
+        long time = getModificationTimeNanos();
+        return time == NO_TIME ? null : toDate(time);
+    }
+   
+    /**
+     * Return the time at which this file system object was last modified, as an instant, or null
+     * if this file system object has not been modified.
+     */
+    @Raw
+    public Instant getModificationInstant() {
+        long time = getModificationTimeNanos();
+        return time == NO_TIME ? null : toInstant(time);
     }
 
     /**
@@ -287,32 +536,58 @@ public abstract class FileSystemObject {
      * 			or if the given date lies between the creation time and the
      * 			current time.
      *         | result == (date == null) ||
-     *         | ( (date.getTime() >= getCreationTime().getTime()) &&
-     *         |   (date.getTime() <= System.currentTimeMillis())     )
+     *         | ( (date.getTime() >= Math.floorDiv(getCreationTimeNanos(), 1000000)) &&
+     *         |   (toNanos(date) <= getClock().getAsLong())     )
+     * @note   The creation time is compared at the precision of the given date.
      */
     @Raw
     public boolean canHaveAsModificationTime(Date date) {
         return (date == null) ||
-               ( (date.getTime() >= getCreationTime().getTime()) &&
-                 (date.getTime() <= System.currentTimeMillis()) );
+               ( (date.getTime() >= toMillis(getCreationTimeNanos())) &&
+                 (toNanos(date) <= getCurrentTime()) );
+    }
+
+    /**
+     * Check whether this file system object can have the given time as modification time.
+     *
+     * @param	time
+     * 			The time to check, in nanoseconds since the epoch.
+     * @return 	True if and only if the given time is NO_TIME or lies between the creation
+     * 			time and the current time.
+     *         | result == (time == NO_TIME) ||
+     *         | ( (time >= getCreationTimeNanos()) && (time <= getClock().getAsLong()) )
+     */
+    @Raw
+    public boolean canHaveAsModificationTime(long time) {
+        return (time == NO_TIME) ||
+               ( (time >= getCreationTimeNanos()) && (time <= getCurrentTime()) );
     }
 
     /**
      * Set the modification time of this file to the current time.
      *
-     * @post   The new modification time is effective.
-     *         | new.getModificationTime() != null
-     * @post   The new modification time lies between the system
-     *         time at the beginning of this method execution and
-     *         the system time at the end of method execution.
-     *         | (new.getModificationTime().getTime() >=
-     *         |                    System.currentTimeMillis()) &&
-     *         | (new.getModificationTime().getTime() <=
-     *         |                    (new System).currentTimeMillis())
+     * @post   The new modification time is the time of the clock during the execution of this method.
+     *         | (new.getModificationTimeNanos() >= getClock().getAsLong()) &&
+     *         | (new.getModificationTimeNanos() <= (new getClock()).getAsLong())
+     * @effect The change is published to the listeners of the parent directory.
+     *         | FileSystemEvents.publish(this, getParentDirectory(), MODIFIED)
+     * @note   No objects are allocated, unless the file system is indexed or a directory has a listener.
      */
     @Model 
     protected void setModificationTime() {
-        modificationTime = new Date();
+        beforeChange();
+        FileSystemIndex index = getIndexOfFileSystem();
+        if (index == null) {
+        	modificationTime = getCurrentTime();
+        	FileSystemEvents.publish(this, getParentDirectory(), FileSystemEvent.Kind.MODIFIED);
+        	return;
+        }
+        synchronized (index) {
+        	long oldTime = modificationTime;
+        	modificationTime = getCurrentTime();
+        	index.modificationTimeChanged(this, oldTime);
+        }
+        FileSystemEvents.publish(this, getParentDirectory(), FileSystemEvent.Kind.MODIFIED);
     }
 
     /**
@@ -339,11 +614,13 @@ public abstract class FileSystemObject {
      */
     public boolean hasOverlappingUsePeriod(FileSystemObject other) {
         if (other == null) return false;
-        if(getModificationTime() == null || other.getModificationTime() == null) return false;
-        return ! (getCreationTime().before(other.getCreationTime()) && 
-        	      getModificationTime().before(other.getCreationTime()) ) &&
-        	   ! (other.getCreationTime().before(getCreationTime()) && 
-        	      other.getModificationTime().before(getCreationTime()) );
+        long modificationTime = getModificationTimeNanos();
+        long otherModificationTime = other.getModificationTimeNanos();
+        if (modificationTime == NO_TIME || otherModificationTime == NO_TIME) return false;
+        return ! (getCreationTimeNanos() < other.getCreationTimeNanos() && 
+        	      modificationTime < other.getCreationTimeNanos() ) &&
+        	   ! (other.getCreationTimeNanos() < getCreationTimeNanos() && 
+        	      otherModificationTime < getCreationTimeNanos() );
     }
 
     
@@ -355,7 +632,7 @@ public abstract class FileSystemObject {
     /**
      * Variable registering whether or not this filesystem object is writable.
      */
-    private boolean isWritable = true;
+    private volatile boolean isWritable = true;
     
     /**
      * Check whether this filesystem object is writable.
@@ -376,6 +653,7 @@ public abstract class FileSystemObject {
      */
     @Raw 
     public void setWritable(boolean isWritable) {
+        beforeChange();
         this.isWritable = isWritable;
     }
     
@@ -387,7 +665,7 @@ public abstract class FileSystemObject {
     /**
      * Variable referencing the directory of this filesystem object
      */
-    private Directory dir = null;
+    private volatile Directory dir = null;
     
     /**
      * Return the directory this filesystem object belongs to
@@ -425,7 +703,7 @@ public abstract class FileSystemObject {
      * 		   | dir.addAsItem(this)
      */
     @Raw
-    private void setParentDirectory(Directory dir) {
+    void setParentDirectory(Directory dir) {
     	this.dir = dir;
     	if (dir != null)
     		dir.addAsItem(this);
@@ -446,9 +724,26 @@ public abstract class FileSystemObject {
 	 * @note   Possible errors are caught by underlying methods.
      */
     public void makeRoot() {
+    	changePlace(null, () -> {
+    		makeRootLocked();
+    		return null;
+    	});
+    }
+    
+    /**
+     * Make this file system object a root object, while holding all locks needed.
+     * 
+     * @see makeRoot()
+     */
+    @Model
+    private void makeRootLocked() {
     	if (!isRoot()) {
+	    	FileSystemIndex oldIndex = getIndexOfFileSystem();
 	    	getParentDirectory().removeAsItem(this);
 	    	setParentDirectory(null);
+	    	pathChanged();
+	    	if (oldIndex != null)
+	    		oldIndex.removeSubtree(this);
 	    	
 	    	setModificationTime();
     	}
@@ -478,33 +773,363 @@ public abstract class FileSystemObject {
     public void move(Directory destination) throws IllegalArgumentException {
     	if (destination==null) 
     		throw new IllegalArgumentException("The destination directory cannot be null.");
+    	changePlace(destination, () -> {
+    		moveLocked(destination);
+    		return null;
+    	});
+    }
+    
+    /**
+     * Move this file system object to the given effective destination directory, while holding
+     * all locks needed.
+     * 
+     * @see move(Directory)
+     */
+    @Model
+    private void moveLocked(Directory destination) throws IllegalArgumentException {
     	if (destination==getParentDirectory()) 
     		throw new IllegalArgumentException("The destination directory cannot be the same as the current parent directory.");
     	if (!destination.canHaveAsItem(this))
     		throw new IllegalArgumentException("The destination directory cannot contain this file system object");
     	
+    	FileSystemIndex oldIndex = isRoot() ? null : getIndexOfFileSystem();
     	if (!isRoot()) 
     		getParentDirectory().removeAsItem(this);
     	setParentDirectory(destination);
+    	pathChanged();
+    	this.index = null;
+    	FileSystemIndex newIndex = getIndexOfFileSystem();
+    	if (oldIndex != newIndex) {
+    		if (oldIndex != null)
+    			oldIndex.removeSubtree(this);
+    		if (newIndex != null)
+    			newIndex.addSubtree(this);
+    	}
     	
     	setModificationTime();
     }
     
+    /**
+     * Move this file system object into the given directory as one of many objects that directory
+     * adds at once, without adding it to the contents of that directory yet.
+     * 
+     * @param  destination
+     *         The directory this file system object is moved into.
+     * @pre    The current thread holds the locks of the given directory, of the parent directory of this
+     *         file system object and of this object itself if it is a directory for writing, and the
+     *         locks of all directories above them, and the given directory can have this file system
+     *         object as a new item.
+     *         | destination.isLockedForWritingByCurrentThread()
+     *         |   && (isRoot() || getParentDirectory().isLockedForWritingByCurrentThread())
+     *         |   && destination.canHaveAsItem(this)
+     * @effect If this file system object is not a root, it is removed from its old parent directory.
+     *         | if (!isRoot())
+     *         |   then getParentDirectory().removeAsItem(this)
+     * @post   The parent directory of this file system object is the given directory.
+     *         | new.getParentDirectory() == destination
+     * @note   The caller adds this file system object to the contents of the given directory, moves it
+     *         to the index of its new file system and updates its modification time.
+     */
+    @Raw
+    void moveWithoutAdding(Directory destination) {
+    	if (!isRoot())
+    		getParentDirectory().removeAsItem(this);
+    	this.dir = destination;
+    	pathChanged();
+    	this.index = null;
+    }
+    
+    /**
+     * Give this file system object the given parent directory as part of a transaction, that
+     * updates the contents and totals of the directories involved itself.
+     * 
+     * @param  destination
+     *         The new parent directory of this file system object, null to make it a root.
+     * @pre    The current thread holds the locks of the given directory, of the parent directory of this
+     *         file system object and of this object itself if it is a directory for writing, and the
+     *         locks of all directories above them.
+     *         | (destination == null || destination.isLockedForWritingByCurrentThread())
+     *         |   && (isRoot() || getParentDirectory().isLockedForWritingByCurrentThread())
+     * @post   The parent directory of this file system object is the given directory.
+     *         | new.getParentDirectory() == destination
+     */
+    @Raw
+    void moveWithinTransaction(Directory destination) {
+    	this.dir = destination;
+    	pathChanged();
+    	this.index = null;
+    }
+    
     /**
      * Return the root of this file system object
      * 
      * @return The file system object that is the root of this object
+     *         | if (isRoot())
+     *         |   then result == this
+     *         |   else result == getParentDirectory().getRoot()
      */
     public FileSystemObject getRoot() {
-    	FileSystemObject root = this.getParentDirectory();
-    	if(root == null) {
-    		root = this;
-    	} else {
-    		while(root.getParentDirectory() != null) {
-    			root = root.getParentDirectory();
+    	return getAncestry().root;
+    }
+    
+    /**
+     * Return the depth of this file system object, that is the number of directories above it.
+     * 
+     * @return Zero if this file system object is a root, otherwise one more than the depth
+     *         of its parent directory.
+     *         | if (isRoot())
+     *         |   then result == 0
+     *         |   else result == getParentDirectory().getDepth()+1
+     */
+    public int getDepth() {
+    	return getAncestry().depth;
+    }
+    
+    /**
+     * Return the remembered root and depth of this file system object, brought up to date.
+     * 
+     * @return The root and depth of this file system object as they were at some moment during
+     *         this call.
+     * @note   Ancestors are climbed only up to the first one whose remembered ancestry still holds,
+     *         and their ancestries are then derived top down. A move or a new root only forgets the
+     *         ancestries derived from that of the moved object, so each object below it is brought
+     *         up to date once, and objects elsewhere keep theirs.
+     */
+    @Model
+    Ancestry getAncestry() {
+    	Ancestry current = ancestry;
+    	if (current != null && current.holdsFor(this))
+    		return current;
+    	ArrayDeque<FileSystemObject> stale = new ArrayDeque<FileSystemObject>();
+    	FileSystemObject obj = this;
+    	current = null;
+    	while (obj != null) {
+    		Ancestry remembered = obj.ancestry;
+    		if (remembered != null && remembered.holdsFor(obj)) {
+    			current = remembered;
+    			break;
+    		}
+    		stale.push(obj);
+    		obj = obj.getParentDirectory();
+    	}
+    	while (!stale.isEmpty()) {
+    		obj = stale.pop();
+    		current = new Ancestry(obj, current);
+    		Ancestry replaced = obj.ancestry;
+    		obj.ancestry = current;
+    		if (replaced != null)
+    			replaced.forget();
+    		if (!current.holdsFor(obj))
+    			current.forget();
+    	}
+    	return current;
+    }
+    
+    /**
+     * Check whether the given directory lies above this file system object.
+     * 
+     * @param  dir
+     *         The directory to check.
+     * @return True if and only if the given directory is effective and is a direct or indirect
+     *         parent directory of this file system object.
+     * @note   The remembered ancestry of each object keeps the ancestries one, two, four, ... levels
+     *         above it, so directories in another file system or not higher up are rejected in
+     *         constant time, and otherwise the difference in depth is climbed in logarithmic time.
+     */
+    @Model
+    boolean hasAsAncestor(Directory dir) {
+    	if (dir == null)
+    		return false;
+    	Ancestry mine = getAncestry();
+    	Ancestry theirs = ((FileSystemObject) dir).getAncestry();
+    	if (theirs.depth >= mine.depth || theirs.root != mine.root)
+    		return false;
+    	return mine.getAncestor(mine.depth-theirs.depth).owner == dir;
+    }
+    
+    /**
+     * Variable referencing the remembered root and depth of this file system object, null if
+     * they have not been remembered yet.
+     */
+    private volatile Ancestry ancestry = null;
+    
+    /**
+     * A class of remembered roots, depths and absolute paths, each derived from the remembered
+     * ancestry of the parent directory of its owner.
+     *   Each is immutable but for being forgotten and remembering its absolute path, so threads
+     *   never see a root of one moment with a depth of another. Forgetting an ancestry forgets
+     *   all ancestries derived from it. An ancestry is forgotten when its owner is moved, made a
+     *   root, renamed or terminated, so as long as it is not, neither are the parent directories
+     *   and names of its owner and of all directories above it changed.
+     */
+    static final class Ancestry {
+    	
+    	private Ancestry(FileSystemObject owner, Ancestry parent) {
+    		this.owner = owner;
+    		if (parent == null) {
+    			this.root = owner;
+    			this.depth = 0;
+    			this.up = new Ancestry[0];
+    		} else {
+    			this.root = parent.root;
+    			this.depth = parent.depth+1;
+    			int nbJumps = 32-Integer.numberOfLeadingZeros(depth);
+    			this.up = new Ancestry[nbJumps];
+    			up[0] = parent;
+    			for (int k = 1; k < nbJumps; k++)
+    				up[k] = up[k-1].up[k-1];
+    			parent.derive(this);
     		}
     	}
-    	return root;
+    	
+    	private final FileSystemObject owner;
+    	private final FileSystemObject root;
+    	private final int depth;
+    	
+    	/**
+    	 * The ancestries 1, 2, 4, ... levels above the owner of this ancestry.
+    	 */
+    	private final Ancestry[] up;
+    	
+    	/**
+    	 * The ancestries derived from this one that have not been forgotten, null if there are none.
+    	 */
+    	private List<Ancestry> derived = null;
+    	
+    	private volatile boolean isForgotten = false;
+    	
+    	/**
+    	 * The absolute path of the owner of this ancestry, null if it has not been remembered yet.
+    	 */
+    	private volatile String path = null;
+    	
+    	/**
+    	 * Return the file system object this ancestry is remembered for.
+    	 */
+    	@Basic
+    	FileSystemObject getOwner() {
+    		return owner;
+    	}
+    	
+    	/**
+    	 * Return the ancestry of the parent directory of the owner of this ancestry, null if that
+    	 * owner was a root.
+    	 */
+    	Ancestry getParent() {
+    		return up.length == 0 ? null : up[0];
+    	}
+    	
+    	/**
+    	 * Return the root of the owner of this ancestry.
+    	 */
+    	@Basic
+    	FileSystemObject getRoot() {
+    		return root;
+    	}
+    	
+    	/**
+    	 * Check whether this ancestry still holds for its owner.
+    	 */
+    	boolean holds() {
+    		return holdsFor(owner);
+    	}
+    	
+    	/**
+    	 * Check whether this ancestry still holds for the given object.
+    	 */
+    	private boolean holdsFor(FileSystemObject obj) {
+    		return !isForgotten && obj.getParentDirectory() == (up.length == 0 ? null : up[0].owner);
+    	}
+    	
+    	/**
+    	 * Return the absolute path of the owner of this ancestry, remembering it and the paths
+    	 * of the ancestries above it that were not remembered yet.
+    	 */
+    	private String getPath() {
+    		String result = path;
+    		if (result != null)
+    			return result;
+    		ArrayDeque<Ancestry> unknown = new ArrayDeque<Ancestry>();
+    		for (Ancestry current = this; current != null && current.path == null; current = current.getParent())
+    			unknown.push(current);
+    		while (!unknown.isEmpty()) {
+    			Ancestry current = unknown.pop();
+    			Ancestry parent = current.getParent();
+    			current.path = (parent == null ? "" : parent.path) + PATH_SEPARATOR + current.owner.getName();
+    		}
+    		return path;
+    	}
+    	
+    	/**
+    	 * Return the ancestry the given number of levels above the owner of this ancestry.
+    	 */
+    	private Ancestry getAncestor(int nbLevels) {
+    		Ancestry result = this;
+    		for (int k = 0; nbLevels != 0; k++, nbLevels >>>= 1)
+    			if ((nbLevels & 1) != 0)
+    				result = result.up[k];
+    		return result;
+    	}
+    	
+    	/**
+    	 * Register the given ancestry as derived from this one, forgetting it at once if this one
+    	 * is forgotten already.
+    	 */
+    	private synchronized void derive(Ancestry child) {
+    		if (isForgotten)
+    			child.isForgotten = true;
+    		else {
+    			if (derived == null)
+    				derived = new ArrayList<Ancestry>();
+    			derived.add(child);
+    		}
+    	}
+    	
+    	/**
+    	 * Forget this ancestry and all ancestries derived from it.
+    	 */
+    	private void forget() {
+    		ArrayDeque<Ancestry> todo = new ArrayDeque<Ancestry>();
+    		todo.push(this);
+    		while (!todo.isEmpty()) {
+    			Ancestry current = todo.pop();
+    			synchronized (current) {
+    				if (current.isForgotten && current != this)
+    					continue;
+    				current.isForgotten = true;
+    				if (current.derived != null)
+    					todo.addAll(current.derived);
+    				current.derived = null;
+    			}
+    		}
+    		if (up.length > 0)
+    			up[0].underive(this);
+    	}
+    	
+    	/**
+    	 * Remove the given ancestry from the ancestries derived from this one.
+    	 */
+    	private synchronized void underive(Ancestry child) {
+    		if (derived != null)
+    			derived.remove(child);
+    	}
+    }
+    
+    /**
+     * Register that the absolute path of this file system object has changed, because its name
+     * or its ancestors have changed.
+     * 
+     * @post   The remembered ancestry of this file system object no longer holds, and neither do
+     *         those of the objects below it that were derived from it.
+     * @note   The name or parent directory of this file system object is changed before its ancestry
+     *         is forgotten, so a thread deriving a new ancestry for it at the same time either sees
+     *         the new name or parent directory, or derives an ancestry that is forgotten here.
+     */
+    @Model
+    private void pathChanged() {
+    	Ancestry current = ancestry;
+    	if (current != null)
+    		current.forget();
     }
     
     /**
@@ -518,6 +1143,225 @@ public abstract class FileSystemObject {
     }
     
     
+    /**********************************************************
+     * Paths
+     **********************************************************/
+    
+    /**
+     * Symbol separating the names in a path.
+     */
+    public static final char PATH_SEPARATOR = '/';
+    
+    /**
+     * Return the absolute path of this file system object.
+     * 
+     * @return The names of the root of this file system object up to this file system object,
+     *         each preceded by the path separator.
+     *         | if (isRoot())
+     *         |   then result.equals(PATH_SEPARATOR + getName())
+     *         |   else result.equals(getParentDirectory().getAbsolutePath() + PATH_SEPARATOR + getName())
+     * @note   The path is remembered with the root and depth of this file system object, until
+     *         this object or a directory above it is renamed, moved, made a root or terminated.
+     */
+    public String getAbsolutePath() {
+    	return getAncestry().getPath();
+    }
+    
+    
+    /**********************************************************
+     * Index
+     **********************************************************/
+    
+    /**
+     * Variable referencing the index over this file system object and all objects below it,
+     * null if it has not been built. Only roots have an index.
+     */
+    private volatile FileSystemIndex index = null;
+    
+    /**
+     * Return the index of the file system this file system object belongs to, null if the
+     * index of its root has not been built.
+     */
+    @Raw
+    FileSystemIndex getIndexOfFileSystem() {
+    	return getRoot().index;
+    }
+    
+    /**
+     * Return the index of the file system this file system object belongs to, building it
+     * if it has not been built.
+     * 
+     * @post   The root of this file system object has an index.
+     *         | getIndexOfFileSystem() != null
+     * @note   Building an index visits all objects of the file system once. It locks the root of the
+     *         file system, for writing if it is a directory, so no object of that file system is added,
+     *         moved or changed while the index is being built. Other file systems are not held up.
+     */
+    FileSystemIndex buildIndexOfFileSystem() {
+    	FileSystemIndex built = getIndexOfFileSystem();
+    	if (built != null)
+    		return built;
+    	while (true) {
+    		FileSystemObject top = getRoot();
+    		Directory.Locks locks = Directory.lockWithAncestors(top instanceof Directory ? (Directory) top : null);
+    		try {
+    			synchronized (top) {
+    				if (top.isRoot()) {
+    					if (top.index == null)
+    						top.index = new FileSystemIndex(top);
+    					return top.index;
+    				}
+    			}
+    		} finally {
+    			locks.release();
+    		}
+    	}
+    }
+    
+    /**
+     * Add this new file system object to the index of its file system, if that has been built.
+     * 
+     * @note   Subclasses invoke this method at the end of their constructors, once the properties
+     *         the index uses have been initialized.
+     */
+    @Raw @Model
+    protected void addToIndexOfFileSystem() {
+    	changeInPlace(false, () -> {
+    		FileSystemIndex index = getIndexOfFileSystem();
+    		if (index != null)
+    			index.add(this);
+    		return null;
+    	});
+    }
+    
+    
+    /**********************************************************
+     * Locking
+     **********************************************************/
+    
+    /**
+     * Make the given change of this file system object, that leaves it in its parent directory,
+     * holding all locks it needs.
+     * 
+     * @param  writesParent
+     *         Whether the change changes the contents of the parent directory of this object, rather than
+     *         only the totals of the directories above it.
+     * @param  change
+     *         The change to make.
+     * @return The result of the given change.
+     * @effect The parent directory of this file system object is locked for writing if the change writes it,
+     *         and all other directories above this object are locked for reading. Then this object locks
+     *         itself and makes the given change.
+     *         | changeHoldingLocks(false, null, writesParent, change)
+     */
+    @Model
+    <T> T changeInPlace(boolean writesParent, Supplier<T> change) {
+    	return changeHoldingLocks(false, null, writesParent, change);
+    }
+    
+    /**
+     * Make the given change of this file system object, that moves it to the given directory, makes it
+     * a root or terminates it, holding all locks it needs.
+     * 
+     * @param  destination
+     *         The directory this file system object moves to, null if it does not move into a directory.
+     * @param  change
+     *         The change to make.
+     * @return The result of the given change.
+     * @effect The parent directory of this file system object, the given directory and this object
+     *         itself if it is a directory, are locked for writing, and all directories above them for
+     *         reading. Then this object locks itself and makes the given change.
+     *         | changeHoldingLocks(true, destination, true, change)
+     * @note   Nothing below a directory changes while it is locked for writing, since each such change
+     *         locks the directory for reading.
+     */
+    @Model
+    <T> T changePlace(Directory destination, Supplier<T> change) {
+    	return changeHoldingLocks(true, destination, true, change);
+    }
+    
+    /**
+     * Make the given change of this file system object holding all locks it needs.
+     * 
+     * @note   The directories are locked first, for the parent directory this object has at that moment.
+     *         If the parent directory changed meanwhile, all locks are released and taken again.
+     *         An object only leaves its parent directory while that directory is locked for writing,
+     *         and a root only gets a parent directory while it is locked itself, so the parent directory
+     *         is settled once both are locked.
+     * @note   A thread never waits for the lock of a directory while it holds the lock of a file system
+     *         object, so the locks of directories and objects are taken in the same order by all threads.
+     */
+    @Model
+    private <T> T changeHoldingLocks(boolean moves, Directory destination, boolean writesParent, Supplier<T> change) {
+    	Directory self = moves && (this instanceof Directory) ? (Directory) this : null;
+    	while (true) {
+    		Directory parent = getParentDirectory();
+    		Directory.Locks locks = writesParent
+    				? Directory.lockWithAncestors(parent, destination, self)
+    				: Directory.lockAncestors(parent);
+    		try {
+    			synchronized (this) {
+    				if (getParentDirectory() == parent)
+    					return change.get();
+    			}
+    		} finally {
+    			locks.release();
+    		}
+    	}
+    }
+    
+    /**
+     * Make the given change holding the locks of all given file system objects.
+     * 
+     * @param  objects
+     *         The file system objects to lock.
+     * @param  change
+     *         The change to make.
+     * @return The result of the given change.
+     * @note   The objects are locked in the order of their identity hash code, after a lock shared by
+     *         all objects if two of them have the same identity hash code.
+     */
+    static <T> T changeHoldingAll(Collection<? extends FileSystemObject> objects, Supplier<T> change) {
+    	List<FileSystemObject> ordered = new ArrayList<FileSystemObject>(objects);
+    	Collections.sort(ordered,
+    			(first, second) -> Integer.compare(System.identityHashCode(first), System.identityHashCode(second)));
+    	for (int i = 1; i < ordered.size(); i++) {
+    		if (System.identityHashCode(ordered.get(i-1)) == System.identityHashCode(ordered.get(i))) {
+    			synchronized (getTieLock()) {
+    				return changeHoldingAll(ordered, 0, change);
+    			}
+    		}
+    	}
+    	return changeHoldingAll(ordered, 0, change);
+    }
+    
+    /**
+     * Make the given change holding the locks of the given ordered file system objects, from the given
+     * position on.
+     */
+    private static <T> T changeHoldingAll(List<FileSystemObject> ordered, int from, Supplier<T> change) {
+    	if (from == ordered.size())
+    		return change.get();
+    	synchronized (ordered.get(from)) {
+    		return changeHoldingAll(ordered, from+1, change);
+    	}
+    }
+    
+    /**
+     * Return the lock taken first when locking several file system objects with the same identity hash code.
+     */
+    @Basic @Immutable
+    static Object getTieLock() {
+    	return tieLock;
+    }
+    
+    /**
+     * Variable referencing the lock taken first when locking several file system objects with the
+     * same identity hash code.
+     */
+    private static final Object tieLock = new Object();
+    
+    
     /**********************************************************
     * Termination
     **********************************************************/
@@ -526,7 +1370,7 @@ public abstract class FileSystemObject {
     /**
      * Variable registering whether this file system object is terminated
      */
-    private boolean isTerminated = false;
+    private volatile boolean isTerminated = false;
     
     /**
      * Check whether this file system object is terminated
@@ -554,19 +1398,191 @@ public abstract class FileSystemObject {
      *         |   ! (isRoot() || getParentDirectory().isWritable()) )
      */
     public void terminate() throws IllegalStateException {
+    	changePlace(null, () -> {
+    		terminateLocked();
+    		return null;
+    	});
+    }
+    
+    /**
+     * Terminate this file system object as part of terminating a directory above it with all objects below it.
+     * 
+     * @pre    The directory torn down is locked for writing, so nothing below it changes otherwise,
+     *         and all items of this file system object, if any, are terminated already.
+     * @post   This file system object is a terminated root.
+     *         | new.isTerminated() && new.isRoot()
+     * @note   The parent directory of this file system object drops all its items at once afterwards,
+     *         so this file system object is not removed from it.
+     * @note   The termination is published before the parent directory is cleared, while the ancestors
+     *         of this file system object still lead to the listeners above it. Directories are torn
+     *         down after their items, so those ancestors are all still in place.
+     */
+    void terminateWithinTeardown() {
+    	FileSystemEvents.publish(this, getParentDirectory(), FileSystemEvent.Kind.TERMINATED);
+    	this.dir = null;
+    	pathChanged();
+    	this.isTerminated = true;
+    	this.index = null;
+    }
+    
+    /**
+     * Terminate this file system object, while holding all locks needed.
+     * 
+     * @see terminate()
+     */
+    @Model
+    void terminateLocked() throws IllegalStateException {
     	if (!isTerminated()) {
     		
     		if (!isWritable() || !(isRoot() || getParentDirectory().isWritable()) )
     			throw new IllegalStateException("This file system object cannot be terminated.");
     		
+    		Directory parent = getParentDirectory();
     		if (!isRoot()) {
-    			makeRoot();
+    			makeRootLocked();
     		}   
     		
     		this.isTerminated = true;
+    		this.index = null;
+    		pathChanged();
+    		FileSystemEvents.publish(this, parent, FileSystemEvent.Kind.TERMINATED);
+    	}
+    }
+    
+    
+    
+    
+    
+    /**********************************************************
+     * Snapshots
+     **********************************************************/
+    
+    /**
+     * Prepare this file system object for a change of its name, writability, modification time,
+     * size or contents.
+     * 
+     * @effect The current state of this file system object is saved for the open snapshots.
+     *         | preserveForSnapshots()
+     * @effect If this file system object is kept in an image, it is marked to be written back.
+     *         | if (getImage() != null)
+     *         |   then getImage().markDirty(this)
+     * @note   Each such change calls this method first.
+     */
+    void beforeChange() {
+    	preserveForSnapshots();
+    	FileSystemImage image = this.image;
+    	if (image != null)
+    		image.markDirty(this);
+    }
+    
+    /**
+     * Return the state of this file system object as it was when the snapshot with the given epoch was taken.
+     * 
+     * @param  epoch
+     *         The epoch of the snapshot.
+     * @return The oldest state saved for an epoch not before the given epoch, or the current state
+     *         of this file system object if there is none.
+     * @note   The current state is read before the saved states, so a change that saves a state
+     *         while the current state is read is never missed.
+     */
+    FileSystemSnapshot.State getStateAt(long epoch) {
+    	FileSystemSnapshot.State state = captureState(Long.MAX_VALUE);
+    	for (FileSystemSnapshot.State saved = history; saved != null && saved.epoch >= epoch; saved = saved.older)
+    		state = saved;
+    	return state;
+    }
+    
+    /**
+     * Save the current state of this file system object, if an open snapshot was taken since it was last saved.
+     * 
+     * @post   If an open snapshot was taken since the state of this file system object was last saved,
+     *         its current state is saved for the current epoch.
+     * @note   Without open snapshots, this costs two volatile reads.
+     */
+    @Model
+    private void preserveForSnapshots() {
+    	long epoch = FileSystemSnapshot.getCurrentEpoch();
+    	if (savedEpoch >= epoch)
+    		return;
+    	synchronized (historyLock) {
+    		if (savedEpoch >= epoch)
+    			return;
+    		if (FileSystemSnapshot.hasOpenSnapshotAfter(savedEpoch)) {
+	    		FileSystemSnapshot.State state = captureState(epoch);
+	    		state.older = history;
+	    		history = FileSystemSnapshot.prune(state);
+    		}
+    		else
+    			history = FileSystemSnapshot.prune(history);
+    		savedEpoch = epoch;
     	}
     }
     
+    /**
+     * Return the current state of this file system object, saved for the given epoch.
+     */
+    @Model
+    private FileSystemSnapshot.State captureState(long epoch) {
+    	return new FileSystemSnapshot.State(epoch, getName(), isWritable(), getModificationTimeNanos(),
+    			this instanceof File ? ((File) this).getSize() : 0,
+    			this instanceof Directory ? ((Directory) this).getContents() : null);
+    }
+    
+    /**
+     * Variable referencing the newest saved state of this file system object, null if none.
+     */
+    private volatile FileSystemSnapshot.State history = null;
+    
+    /**
+     * Variable registering the epoch for which the state of this file system object was last saved.
+     */
+    private volatile long savedEpoch = FileSystemSnapshot.getCurrentEpoch();
+    
+    /**
+     * Object locked while saving the state of this file system object.
+     */
+    private final Object historyLock = new Object();
+    
+    
+    /**********************************************************
+     * Images
+     **********************************************************/
+    
+    /**
+     * Return the image this file system object is kept in, null if none.
+     */
+    @Basic
+    FileSystemImage getImage() {
+    	return this.image;
+    }
+    
+    /**
+     * Return the offset of the record of this file system object in its image.
+     */
+    @Basic
+    long getImageOffset() {
+    	return this.imageOffset;
+    }
     
+    /**
+     * Keep this file system object at the given offset in the given image.
+     * 
+     * @post   This file system object is kept at the given offset in the given image.
+     *         | new.getImage() == image && new.getImageOffset() == offset
+     */
+    void attachToImage(FileSystemImage image, long offset) {
+    	this.imageOffset = offset;
+    	this.image = image;
+    }
     
+    /**
+     * Variable referencing the image this file system object is kept in.
+     */
+    private volatile FileSystemImage image = null;
+    
+    /**
+     * Variable registering the offset of the record of this file system object in its image.
+     */
+    private volatile long imageOffset = -1;
+
 }
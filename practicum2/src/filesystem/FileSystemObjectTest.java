@@ -1,7 +1,23 @@
 package filesystem;
 
 import static org.junit.Assert.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.junit.*;
 
@@ -714,6 +730,995 @@ public class FileSystemObjectTest {
 		assertFalse(dirdir.isDirectOrIndirectSubdirectoryOf(directoryNotWritable));
 	}
 	
+	@Test
+	public void testContents_ManyItemsStaySorted() {
+		Directory big = new Directory("big");
+		for (int i = 0; i < 500; i++)
+			new File(big, "item" + ((i*7919) % 500), FileType.Text);
+		assertEquals(500, big.getNbItems());
+		assertTrue(big.hasProperItems());
+		for (int i = 2; i <= big.getNbItems(); i++)
+			assertTrue(big.getItemAt(i).isLexicographicallyAfter(big.getItemAt(i-1)));
+		FileSystemObject item = big.getItem("ITEM250");
+		assertEquals(item, big.getItemAt(big.getIndexOf(item)));
+		
+		item.changeName("aaa");
+		assertEquals(item, big.getItemAt(1));
+		assertFalse(big.exists("item250"));
+		big.removeAsItem(item);
+		assertEquals(499, big.getNbItems());
+		assertFalse(big.hasAsItem(item));
+	}
+	
+	@Test
+	public void testGetItem_IgnoresCase() {
+		Directory root = new Directory("root");
+		File file = new File(root, "ReadMe", FileType.Text);
+		assertEquals(file, root.getItem("readme"));
+		assertEquals(file, root.getItem("README"));
+		assertTrue(root.exists("rEaDmE"));
+		assertFalse(root.exists(null));
+		assertFalse(root.exists("ReadMe2"));
+	}
+	
+	@Test (expected = IllegalArgumentException.class)
+	public void testGetItem_IllegalCase() {
+		Directory root = new Directory("root");
+		root.getItem("missing");
+	}
+	
+	@Test
+	public void testResolve() {
+		Directory root = new Directory("root");
+		Directory a = new Directory(root, "a");
+		Directory b = new Directory(a, "b");
+		File c = new File(b, "c", FileType.Text);
+		assertEquals("/root/a/b/c", c.getAbsolutePath());
+		assertEquals(c, root.resolve("a/b/c"));
+		assertEquals(c, root.resolve("A//b/C/"));
+		assertEquals(c, b.resolve("/root/a/b/c"));
+		assertEquals(root, root.resolve(""));
+		assertEquals(c, root.resolve(c.getAbsolutePath()));
+		
+		b.changeName("bb");
+		assertEquals("/root/a/bb/c", c.getAbsolutePath());
+		assertEquals(c, root.resolve("a/bb/c"));
+		c.move(a);
+		assertEquals(c, root.resolve("a/c"));
+		assertEquals("/root/a/c", c.getAbsolutePath());
+		a.makeRoot();
+		assertEquals("/a/c", c.getAbsolutePath());
+		assertEquals(c, a.resolve("c"));
+	}
+	
+	@Test
+	public void testResolve_ChangesElsewhere() {
+		Directory root = new Directory("root");
+		Directory a = new Directory(root, "a");
+		Directory b = new Directory(root, "b");
+		File c = new File(a, "c", FileType.Text);
+		File d = new File(b, "d", FileType.Text);
+		assertEquals(c, root.resolve("a/c"));
+		assertEquals(d, a.resolve("/root/b/d"));
+		b.changeName("bb");
+		new Directory(b, "e").move(a);
+		assertEquals(c, root.resolve("a/c"));
+		assertEquals("/root/bb/d", d.getAbsolutePath());
+		assertEquals(d, a.resolve("/root/bb/d"));
+		
+		root.changeName("top");
+		assertEquals(c, a.resolve("/top/a/c"));
+		assertEquals("/top/a/c", c.getAbsolutePath());
+		Directory other = new Directory("other");
+		a.move(other);
+		assertEquals(c, other.resolve("a/c"));
+		assertEquals(c, a.resolve("c"));
+		assertEquals(d, b.resolve("/top/bb/d"));
+	}
+	
+	@Test (expected = IllegalArgumentException.class)
+	public void testResolve_IllegalCase_MovedAway() {
+		Directory root = new Directory("root");
+		Directory a = new Directory(root, "a");
+		new File(a, "c", FileType.Text);
+		root.resolve("a/c");
+		a.move(new Directory("other"));
+		root.resolve("a/c");
+	}
+	
+	@Test (expected = IllegalArgumentException.class)
+	public void testResolve_IllegalCase_Stale() {
+		Directory root = new Directory("root");
+		Directory a = new Directory(root, "a");
+		new File(a, "c", FileType.Text);
+		root.resolve("a/c");
+		a.changeName("b");
+		root.resolve("a/c");
+	}
+	
+	@Test (expected = IllegalArgumentException.class)
+	public void testResolve_IllegalCase_ThroughFile() {
+		Directory root = new Directory("root");
+		new File(root, "c", FileType.Text);
+		root.resolve("c/d");
+	}
+	
+	@Test
+	public void testRootAndDepth() {
+		Directory root = new Directory("root");
+		Directory a = new Directory(root, "a");
+		Directory b = new Directory(a, "b");
+		Directory other = new Directory("other");
+		assertEquals(root, b.getRoot());
+		assertEquals(2, b.getDepth());
+		assertTrue(b.isDirectOrIndirectSubdirectoryOf(root));
+		assertFalse(root.isDirectOrIndirectSubdirectoryOf(b));
+		assertFalse(b.isDirectOrIndirectSubdirectoryOf(other));
+		
+		a.move(other);
+		assertEquals(other, b.getRoot());
+		assertEquals(2, b.getDepth());
+		assertTrue(b.isDirectOrIndirectSubdirectoryOf(other));
+		assertFalse(b.isDirectOrIndirectSubdirectoryOf(root));
+		a.makeRoot();
+		assertEquals(a, b.getRoot());
+		assertEquals(1, b.getDepth());
+		assertEquals(0, a.getDepth());
+	}
+	
+	@Test
+	public void testAncestry_DeepChain() {
+		Directory root = new Directory("root");
+		List<Directory> chain = new ArrayList<Directory>();
+		Directory dir = root;
+		for (int i = 0; i < 100; i++)
+			chain.add(dir = new Directory(dir, "d" + i));
+		Directory sibling = new Directory(root, "sibling");
+		Directory bottom = chain.get(99);
+		for (int i = 0; i < 99; i++)
+			assertTrue(bottom.isDirectOrIndirectSubdirectoryOf(chain.get(i)));
+		assertTrue(bottom.isDirectOrIndirectSubdirectoryOf(root));
+		assertFalse(bottom.isDirectOrIndirectSubdirectoryOf(sibling));
+		assertFalse(chain.get(37).isDirectOrIndirectSubdirectoryOf(bottom));
+		
+		chain.get(50).move(sibling);
+		assertEquals(51, bottom.getDepth());
+		assertTrue(bottom.isDirectOrIndirectSubdirectoryOf(sibling));
+		assertTrue(bottom.isDirectOrIndirectSubdirectoryOf(chain.get(50)));
+		assertFalse(bottom.isDirectOrIndirectSubdirectoryOf(chain.get(49)));
+		assertEquals(50, chain.get(49).getDepth());
+		chain.get(20).makeRoot();
+		assertEquals(chain.get(20), chain.get(49).getRoot());
+		assertEquals(29, chain.get(49).getDepth());
+		assertEquals(root, bottom.getRoot());
+		assertEquals(20, chain.get(19).getDepth());
+	}
+	
+	@Test (expected = IllegalArgumentException.class)
+	public void testMove_IllegalCase_IntoOwnSubdirectory() {
+		Directory root = new Directory("root");
+		Directory a = new Directory(root, "a");
+		Directory b = new Directory(a, "b");
+		a.move(b);
+	}
+	
+	@Test
+	public void testTotals() {
+		Directory root = new Directory("root");
+		Directory a = new Directory(root, "a");
+		Directory b = new Directory(a, "b");
+		File x = new File(b, "x", 100, true, FileType.Text);
+		File y = new File(a, "y", 20, true, FileType.Java);
+		assertEquals(120, root.getTotalSize());
+		assertEquals(4, root.getTotalNbItems());
+		assertEquals(100, b.getTotalSize());
+		
+		x.enlarge(5);
+		y.shorten(10);
+		assertEquals(115, root.getTotalSize());
+		assertEquals(105, b.getTotalSize());
+		
+		b.move(root);
+		assertEquals(10, a.getTotalSize());
+		assertEquals(1, a.getTotalNbItems());
+		assertEquals(115, root.getTotalSize());
+		assertEquals(4, root.getTotalNbItems());
+		x.changeName("z");
+		assertEquals(115, root.getTotalSize());
+		x.makeRoot();
+		assertEquals(10, root.getTotalSize());
+		assertEquals(3, root.getTotalNbItems());
+		assertEquals(0, b.getTotalNbItems());
+	}
+	
+	@Test
+	public void testWalker() {
+		Directory root = new Directory("root");
+		for (int i = 0; i < 40; i++) {
+			Directory sub = new Directory(root, "sub" + i);
+			for (int j = 0; j < 50; j++)
+				new File(sub, "file" + j, j, true, j % 2 == 0 ? FileType.Java : FileType.Text);
+		}
+		assertEquals(2041, FileSystemWalker.stream(root).count());
+		assertEquals(root, FileSystemWalker.stream(root).findFirst().get());
+		assertEquals(2041, FileSystemWalker.parallelStream(root).distinct().count());
+		assertEquals(root.getTotalSize(), FileSystemWalker.parallelStream(root)
+				.filter(obj -> obj instanceof File).mapToLong(obj -> ((File) obj).getSize()).sum());
+		
+		AtomicInteger nbJava = new AtomicInteger();
+		FileSystemWalker.walkInParallel(root, FileSystemWalker.isFileOfType(FileType.Java),
+				obj -> nbJava.incrementAndGet());
+		assertEquals(1000, nbJava.get());
+		List<FileSystemObject> visited = new ArrayList<FileSystemObject>();
+		FileSystemWalker.walk(root.getItem("sub1"), obj -> true, visited::add);
+		assertEquals(51, visited.size());
+		assertEquals(root.getItem("sub1"), visited.get(0));
+	}
+	
+	@Test
+	public void testWalker_ParallelSplitsRangesAndGroups() {
+		int threshold = FileSystemWalker.getParallelThreshold();
+		Directory root = new Directory("root");
+		for (int i = 0; i < 3*threshold; i++)
+			new File(root, "file" + i, FileType.Text);
+		Directory large = new Directory(root, "large");
+		for (int i = 0; i < threshold + 10; i++)
+			new File(large, "file" + i, FileType.Java);
+		for (int i = 0; i < 200; i++)
+			new File(new Directory(root, "small" + i), "file", FileType.Java);
+		
+		Map<FileSystemObject,Integer> visits = new ConcurrentHashMap<FileSystemObject,Integer>();
+		FileSystemWalker.walkInParallel(root, obj -> true, obj -> visits.merge(obj, 1, Integer::sum));
+		assertEquals(root.getTotalNbItems()+1, visits.size());
+		for (int count: visits.values())
+			assertEquals(1, count);
+		AtomicInteger nbJava = new AtomicInteger();
+		FileSystemWalker.walkInParallel(root, FileSystemWalker.isFileOfType(FileType.Java),
+				obj -> nbJava.incrementAndGet());
+		assertEquals(threshold + 210, nbJava.get());
+	}
+	
+	@Test
+	public void testIndexedQueries() {
+		Directory root = new Directory("root");
+		Directory src = new Directory(root, "src");
+		File a = new File(src, "a", FileType.Java);
+		File b = new File(root, "b", FileType.Text);
+		assertEquals(1, root.getFilesOfType(FileType.Java).size());
+		assertTrue(root.getFilesOfType(FileType.Java).contains(a));
+		
+		Date before = new Date(System.currentTimeMillis()-1);
+		File c = new File(src, "c", FileType.Java);
+		assertEquals(2, root.getFilesOfType(FileType.Java).size());
+		assertEquals(1, root.getFilesOfType(FileType.Text).size());
+		assertTrue(root.getObjectsModifiedAfter(before).contains(src));
+		assertFalse(root.getObjectsModifiedAfter(before).contains(c));
+		b.enlarge(1);
+		assertTrue(root.getObjectsModifiedAfter(before).contains(b));
+		assertFalse(src.getObjectsModifiedAfter(before).contains(b));
+		
+		Directory other = new Directory("other");
+		assertEquals(0, other.getFilesOfType(FileType.Java).size());
+		src.move(other);
+		assertEquals(0, root.getFilesOfType(FileType.Java).size());
+		assertEquals(2, other.getFilesOfType(FileType.Java).size());
+		assertTrue(other.getObjectsModifiedAfter(before).contains(src));
+		assertFalse(root.getObjectsModifiedAfter(before).contains(src));
+		a.makeRoot();
+		assertEquals(1, other.getFilesOfType(FileType.Java).size());
+		c.terminate();
+		assertEquals(0, src.getFilesOfType(FileType.Java).size());
+	}
+	
+	@Test
+	public void testIndexedQueries_Subtree() {
+		Directory root = new Directory("root");
+		Directory deep = new Directory(new Directory(new Directory(root, "x"), "y"), "z");
+		Directory small = new Directory(root, "small");
+		File inSmall = new File(small, "s", FileType.Java);
+		Set<File> inDeep = new HashSet<File>();
+		for (int i = 0; i < 10; i++)
+			inDeep.add(new File(deep, "f" + i, FileType.Java));
+		new File(root, "top", FileType.Java);
+		// Fewer objects below small than Java files in the file system: walked.
+		assertEquals(Collections.singleton(inSmall), small.getFilesOfType(FileType.Java));
+		// More objects below x than Java files in the file system: filtered.
+		Directory x = deep.getParentDirectory().getParentDirectory();
+		for (int i = 0; i < 20; i++)
+			new File(x, "t" + i, FileType.Text);
+		assertEquals(inDeep, x.getFilesOfType(FileType.Java));
+		assertEquals(inDeep, deep.getFilesOfType(FileType.Java));
+		deep.move(small);
+		assertEquals(11, small.getFilesOfType(FileType.Java).size());
+		assertEquals(0, x.getFilesOfType(FileType.Java).size());
+	}
+	
+	@Test (timeout = 20000)
+	public void testConcurrentChanges() throws InterruptedException {
+		final Directory root = new Directory("root");
+		final Directory left = new Directory(root, "left");
+		final Directory right = new Directory(root, "right");
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final int thread = t;
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < 200; i++) {
+					File file = new File(thread % 2 == 0 ? left : right, "f" + thread + "_" + i, 1, true, FileType.Text);
+					file.changeName("g" + thread + "_" + i);
+					file.move(thread % 2 == 0 ? right : left);
+					file.enlarge(1);
+					new File(thread % 2 == 0 ? left : right, "t" + thread + "_" + i, 1, true, FileType.Text).terminate();
+				}
+			}));
+		}
+		for (Thread thread: threads)
+			thread.start();
+		for (Thread thread: threads)
+			thread.join();
+		assertEquals(400, left.getNbItems());
+		assertEquals(400, right.getNbItems());
+		assertTrue(left.hasProperItems());
+		assertTrue(right.hasProperItems());
+		assertEquals(1600, root.getTotalSize());
+		assertEquals(802, root.getTotalNbItems());
+		assertTrue(left.exists("g1_199"));
+	}
+	
+	@Test
+	public void testClock_FakeClock() {
+		final long[] now = {7000000000L};
+		FileSystemObject.setClock(() -> now[0]);
+		try {
+			Directory root = new Directory("root");
+			File file = new File(root, "file", FileType.Text);
+			assertEquals(7000000000L, file.getCreationTimeNanos());
+			assertEquals(7000, file.getCreationTime().getTime());
+			assertEquals(FileSystemObject.NO_TIME, file.getModificationTimeNanos());
+			assertNull(file.getModificationInstant());
+			
+			now[0] += 250;
+			file.enlarge(1);
+			assertEquals(7000000250L, file.getModificationTimeNanos());
+			assertEquals(250, file.getModificationInstant().getNano());
+			assertTrue(file.canHaveAsModificationTime(file.getModificationTimeNanos()));
+			assertTrue(file.hasOverlappingUsePeriod(root));
+			assertEquals(2, root.getObjectsModifiedAfter(new Date(6999)).size());
+		} finally {
+			FileSystemObject.setClock(FileSystemObject.SYSTEM_CLOCK);
+		}
+	}
+	
+	@Test
+	public void testUsePeriodIndex() {
+		final long[] now = {0};
+		FileSystemObject.setClock(() -> now[0]);
+		try {
+			Directory root = new Directory("root");
+			List<File> files = new ArrayList<File>();
+			for (int i = 0; i < 30; i++) {
+				now[0] = i * 10;
+				files.add(new File(root, "file" + i, FileType.Text));
+			}
+			for (int i = 0; i < 30; i++) {
+				now[0] = i * 10 + (i % 3) * 15;
+				files.get(i).enlarge(1);
+			}
+			now[0] = 1000;
+			UsePeriodIndex index = UsePeriodIndex.of(root);
+			assertEquals(root.getModificationTime() == null ? 30 : 31, index.getNbObjects());
+			
+			for (long time = 0; time < 350; time += 7)
+				for (File file: files)
+					assertEquals(file.getCreationTimeNanos() <= time && file.getModificationTimeNanos() >= time,
+							index.getObjectsInUseAt(time).contains(file));
+			
+			final int[] nbPairs = {0};
+			index.forEachOverlappingPair((first, second) -> {
+				assertTrue(first.hasOverlappingUsePeriod(second));
+				nbPairs[0]++;
+			});
+			int expected = 0;
+			for (int i = 1; i <= index.getNbObjects(); i++)
+				for (int j = i+1; j <= index.getNbObjects(); j++)
+					if (index.getObjectAt(i).hasOverlappingUsePeriod(index.getObjectAt(j)))
+						expected++;
+			assertEquals(expected, nbPairs[0]);
+			for (File file: files)
+				for (FileSystemObject other: index.getObjectsOverlappingWith(file))
+					assertTrue(file.hasOverlappingUsePeriod(other));
+		} finally {
+			FileSystemObject.setClock(FileSystemObject.SYSTEM_CLOCK);
+		}
+	}
+	
+	@Test
+	public void testContent() {
+		ContentStore store = ContentStore.allocateDirect(1 << 12);
+		Directory root = new Directory("root");
+		File source = new File(root, "source", FileType.Text);
+		File target = new File(root, "target", FileType.Text);
+		source.setContentStore(store);
+		target.setContentStore(store);
+		
+		assertEquals(5, source.write(ByteBuffer.wrap("hello".getBytes()), 0));
+		assertEquals(5, source.getSize());
+		assertEquals(5, root.getTotalSize());
+		source.write(ByteBuffer.wrap("!".getBytes()), 7);
+		assertEquals(8, source.getSize());
+		ByteBuffer bytes = ByteBuffer.allocate(16);
+		assertEquals(8, source.read(bytes, 0));
+		assertEquals("hello\0\0!", new String(bytes.array(), 0, 8));
+		assertEquals(-1, source.read(bytes, 8));
+		
+		source.shorten(7);
+		source.enlarge(1000);
+		bytes = ByteBuffer.allocate(1001);
+		assertEquals(1001, source.read(bytes, 0));
+		assertEquals('h', bytes.get(0));
+		for (int i = 1; i < 1001; i++)
+			assertEquals(0, bytes.get(i));
+		
+		source.write(ByteBuffer.wrap("world".getBytes()), 1);
+		assertEquals(3, source.transferTo(1, 3, target));
+		assertEquals(3, target.getSize());
+		bytes = ByteBuffer.allocate(3);
+		target.read(bytes, 0);
+		assertEquals("wor", new String(bytes.array()));
+		
+		source.terminate();
+		assertNull(source.getContentStore());
+		assertEquals(ContentStore.getMinimumCapacity(), store.getNbBytesInUse());
+		target.setContentStore(null);
+		assertEquals(0, store.getNbBytesInUse());
+	}
+	
+	@Test
+	public void testContent_IllegalCase_StoreFull() throws Exception {
+		Path slab = Files.createTempFile("content", ".slab");
+		try {
+			ContentStore store = ContentStore.map(slab, 1 << 10);
+			Directory root = new Directory("root");
+			File file = new File(root, "file", FileType.Text);
+			file.setContentStore(store);
+			file.write(ByteBuffer.wrap("0123456789".getBytes()), 0);
+			try {
+				file.enlarge(500 << 10);
+				fail();
+			} catch (IllegalStateException exc) {}
+			assertEquals(10, file.getSize());
+			assertEquals(10, root.getTotalSize());
+			assertEquals(10, file.read(ByteBuffer.allocate(16), 0));
+		} finally {
+			Files.delete(slab);
+		}
+	}
+	
+	@Test (expected = ObjectNotWritableException.class)
+	public void testContent_IllegalCase_NotWritable() {
+		fileNotWritable.setContentStore(ContentStore.allocateDirect(1 << 12));
+		fileNotWritable.write(ByteBuffer.allocate(1), 0);
+	}
+	
+	@Test
+	public void testAddAllAsItems() {
+		Directory archive = new Directory("archive");
+		File first = new File(archive, "first", 10, true, FileType.Text);
+		List<FileSystemObject> objects = new ArrayList<FileSystemObject>();
+		for (int i = 0; i < 1000; i++)
+			objects.add(new File("item" + (i * 7919 % 1000), i, true, FileType.Java));
+		objects.add(first);
+		Directory target = new Directory("target");
+		target.addAllAsItems(objects);
+		
+		assertEquals(1001, target.getNbItems());
+		assertTrue(target.hasProperItems());
+		assertEquals(0, archive.getNbItems());
+		assertEquals(target, first.getParentDirectory());
+		assertEquals(target, target.getItem("ITEM500").getRoot());
+		assertEquals(1001, target.getTotalNbItems());
+		assertEquals(999 * 1000 / 2 + 10, target.getTotalSize());
+		
+		try {
+			target.addAllAsItems(Arrays.asList(new File("fresh", FileType.Text), new File("Item3", FileType.Text)));
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals(1001, target.getNbItems());
+			assertFalse(target.exists("fresh"));
+		}
+	}
+	
+	@Test
+	public void testRenameAll() {
+		Directory root = new Directory("root");
+		File a = new File(root, "a", FileType.Text);
+		File b = new File(root, "b", FileType.Text);
+		File c = new File(root, "c", FileType.Text);
+		Map<File,String> names = new HashMap<File,String>();
+		names.put(a, "b");
+		names.put(b, "a");
+		names.put(c, "d");
+		root.renameAll(names);
+		assertEquals("b", a.getName());
+		assertEquals("a", b.getName());
+		assertSame(b, root.getItemAt(1));
+		assertSame(c, root.getItem("d"));
+		assertTrue(root.hasProperItems());
+		
+		names.clear();
+		names.put(a, "d");
+		try {
+			root.renameAll(names);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("b", a.getName());
+		}
+	}
+	
+	@Test
+	public void testExists_FollowsRenames() {
+		Directory root = new Directory("root");
+		File file = new File(root, "Report", FileType.Text);
+		assertTrue(root.exists("REPORT"));
+		file.changeName("summary");
+		assertFalse(root.exists("report"));
+		assertTrue(root.exists("Summary"));
+		assertFalse(root.canHaveAsItem(new File("SUMMARY", FileType.Text)));
+		file.move(dir);
+		assertFalse(root.exists("summary"));
+		assertTrue(dir.exists("summary"));
+	}
+	
+	@Test
+	public void testSnapshot() {
+		Directory root = new Directory("root");
+		Directory docs = new Directory(root, "docs");
+		File notes = new File(docs, "notes", 10, true, FileType.Text);
+		File todo = new File(root, "todo", 5, true, FileType.Text);
+		FileSystemSnapshot snapshot = FileSystemSnapshot.of(root);
+		
+		notes.changeName("journal");
+		notes.enlarge(20);
+		todo.move(docs);
+		new File(root, "late", FileType.Pdf);
+		docs.setWritable(false);
+		
+		FileSystemSnapshot.Entry entry = snapshot.getRoot();
+		assertEquals(2, entry.getNbItems());
+		assertEquals("docs", entry.getItemAt(1).getName());
+		assertTrue(entry.getItemAt(1).isWritable());
+		assertEquals(5, entry.getItem("TODO").getSize());
+		FileSystemSnapshot.Entry oldNotes = entry.getItem("docs").getItemAt(1);
+		assertSame(notes, oldNotes.getObject());
+		assertEquals("notes", oldNotes.getName());
+		assertEquals(10, oldNotes.getSize());
+		assertNull(entry.getItem("late"));
+		
+		FileSystemSnapshot later = FileSystemSnapshot.of(root);
+		assertEquals("journal", later.getRoot().getItem("docs").getItem("journal").getName());
+		assertEquals(2, later.getRoot().getNbItems());
+		later.close();
+		
+		Directory copy = (Directory) snapshot.copy();
+		assertTrue(copy.isRoot());
+		assertEquals(3, copy.getTotalNbItems());
+		assertEquals(15, copy.getTotalSize());
+		assertEquals(FileType.Text, ((File) copy.getItem("todo")).getType());
+		
+		snapshot.close();
+		try {
+			snapshot.getRoot();
+			fail();
+		} catch (IllegalStateException e) {}
+	}
+	
+	@Test
+	public void testListeners() {
+		Directory root = new Directory("root");
+		Directory docs = new Directory(root, "docs");
+		File notes = new File(docs, "notes", FileType.Text);
+		final Map<FileSystemObject,Set<FileSystemEvent.Kind>> direct =
+				new HashMap<FileSystemObject,Set<FileSystemEvent.Kind>>();
+		final Map<FileSystemObject,Set<FileSystemEvent.Kind>> below =
+				new HashMap<FileSystemObject,Set<FileSystemEvent.Kind>>();
+		Consumer<List<FileSystemEvent>> directListener = events -> {
+			synchronized (direct) {
+				for (FileSystemEvent event: events) {
+					if (!direct.containsKey(event.getObject()))
+						direct.put(event.getObject(), EnumSet.noneOf(FileSystemEvent.Kind.class));
+					direct.get(event.getObject()).addAll(event.getKinds());
+				}
+			}
+		};
+		root.addListener(directListener, false, null);
+		Consumer<List<FileSystemEvent>> belowListener = events -> {
+			synchronized (below) {
+				for (FileSystemEvent event: events) {
+					if (!below.containsKey(event.getObject()))
+						below.put(event.getObject(), EnumSet.noneOf(FileSystemEvent.Kind.class));
+					below.get(event.getObject()).addAll(event.getKinds());
+				}
+			}
+		};
+		root.addListener(belowListener, true, null);
+		try {
+			notes.changeName("journal");
+			notes.enlarge(5);
+			File todo = new File(root, "todo", FileType.Text);
+			todo.move(docs);
+			FileSystemEvents.flush();
+			
+			synchronized (direct) {
+				assertFalse(direct.containsKey(notes));
+				assertTrue(direct.get(todo).containsAll(EnumSet.of(
+						FileSystemEvent.Kind.ADDED, FileSystemEvent.Kind.REMOVED)));
+			}
+			synchronized (below) {
+				assertTrue(below.get(notes).containsAll(EnumSet.of(
+						FileSystemEvent.Kind.RENAMED, FileSystemEvent.Kind.MODIFIED)));
+				assertTrue(below.get(todo).contains(FileSystemEvent.Kind.ADDED));
+			}
+			
+			root.removeListener(directListener);
+			direct.clear();
+			new File(root, "late", FileType.Text);
+			FileSystemEvents.flush();
+			synchronized (direct) {
+				assertTrue(direct.isEmpty());
+			}
+		} finally {
+			root.removeListener(directListener);
+			root.removeListener(belowListener);
+		}
+	}
+	
+	@Test
+	public void testListeners_AncestryAtPublishing() {
+		Directory root = new Directory("root");
+		Directory d = new Directory(root, "d");
+		Directory sub = new Directory(d, "sub");
+		Directory deep = new Directory(sub, "deep");
+		final Map<FileSystemObject,Set<FileSystemEvent.Kind>> below =
+				new HashMap<FileSystemObject,Set<FileSystemEvent.Kind>>();
+		Consumer<List<FileSystemEvent>> belowListener = events -> {
+			synchronized (below) {
+				for (FileSystemEvent event: events) {
+					if (!below.containsKey(event.getObject()))
+						below.put(event.getObject(), EnumSet.noneOf(FileSystemEvent.Kind.class));
+					below.get(event.getObject()).addAll(event.getKinds());
+				}
+			}
+		};
+		root.addListener(belowListener, true, null);
+		try {
+			d.terminateRecursively();
+			FileSystemEvents.flush();
+			synchronized (below) {
+				assertTrue(below.get(d).contains(FileSystemEvent.Kind.TERMINATED));
+				assertTrue(below.get(sub).contains(FileSystemEvent.Kind.TERMINATED));
+				assertTrue(below.get(deep).contains(FileSystemEvent.Kind.TERMINATED));
+			}
+		} finally {
+			root.removeListener(belowListener);
+		}
+	}
+	
+	@Test
+	public void testListeners_FailingListener() {
+		Directory root = new Directory("root");
+		final List<FileSystemEvent> heard = new ArrayList<FileSystemEvent>();
+		Consumer<List<FileSystemEvent>> failingListener = events -> {
+			throw new IllegalStateException("failing listener");
+		};
+		Consumer<List<FileSystemEvent>> heardListener = events -> {
+			synchronized (heard) {
+				heard.addAll(events);
+			}
+		};
+		root.addListener(failingListener, false, null);
+		root.addListener(heardListener, false, null);
+		try {
+			File file = new File(root, "file", FileType.Text);
+			try {
+				FileSystemEvents.flush();
+			} catch (IllegalStateException exc) {
+				assertEquals("failing listener", exc.getMessage());
+			}
+			synchronized (heard) {
+				assertEquals(1, heard.size());
+				assertSame(file, heard.get(0).getObject());
+			}
+		} finally {
+			root.removeListener(failingListener);
+			root.removeListener(heardListener);
+		}
+	}
+	
+	@Test
+	public void testImage() throws Exception {
+		Path path = Files.createTempFile("image", ".fs");
+		try {
+			Directory root = new Directory("root");
+			Directory docs = new Directory(root, "docs");
+			new File(docs, "notes", 10, true, FileType.Text);
+			new File(root, "todo", 5, false, FileType.Pdf);
+			FileSystemImage.create(root, path).close();
+			
+			FileSystemImage image = FileSystemImage.open(path);
+			Directory loaded = image.getRoot();
+			assertEquals("root", loaded.getName());
+			assertEquals(15, loaded.getTotalSize());
+			assertEquals(3, loaded.getTotalNbItems());
+			assertTrue(loaded.isPending());
+			assertEquals(2, loaded.getNbItems());
+			assertFalse(loaded.isPending());
+			Directory loadedDocs = (Directory) loaded.getItem("DOCS");
+			assertTrue(loadedDocs.isPending());
+			File todo = (File) loaded.getItem("todo");
+			assertFalse(todo.isWritable());
+			assertEquals(FileType.Pdf, todo.getType());
+			assertSame(loaded, todo.getRoot());
+			
+			File notes = (File) loadedDocs.getItem("notes");
+			notes.changeName("journal");
+			notes.enlarge(20);
+			new File(loaded, "late", 7, true, FileType.Java);
+			image.flush();
+			assertEquals(0, image.getNbDirtyObjects());
+			image.close();
+			
+			image = FileSystemImage.open(path);
+			loaded = image.getRoot();
+			assertEquals(42, loaded.getTotalSize());
+			assertEquals(4, loaded.getTotalNbItems());
+			assertEquals(3, loaded.getNbItems());
+			assertEquals(7, ((File) loaded.getItem("late")).getSize());
+			loadedDocs = (Directory) loaded.getItem("docs");
+			assertEquals(30, loadedDocs.getTotalSize());
+			assertEquals(30, ((File) loadedDocs.getItem("journal")).getSize());
+			assertFalse(loadedDocs.exists("notes"));
+			assertTrue(loaded.hasProperItems());
+			image.close();
+		} finally {
+			Files.delete(path);
+		}
+	}
+	
+	@Test
+	public void testImage_RewriteInPlace() throws Exception {
+		Path path = Files.createTempFile("image", ".fs");
+		try {
+			Directory root = new Directory("root");
+			Directory docs = new Directory(root, "docs");
+			new File(docs, "alpha", 10, true, FileType.Text);
+			new File(docs, "beta", 5, true, FileType.Text);
+			FileSystemImage.create(root, path).close();
+			long size = Files.size(path);
+			
+			FileSystemImage image = FileSystemImage.open(path);
+			Directory loadedDocs = (Directory) image.getRoot().getItem("docs");
+			((File) loadedDocs.getItem("beta")).enlarge(3);
+			loadedDocs.getItem("alpha").changeName("zed");
+			image.flush();
+			image.close();
+			assertEquals(size, Files.size(path));
+			
+			image = FileSystemImage.open(path);
+			loadedDocs = (Directory) image.getRoot().getItem("docs");
+			assertEquals("beta", loadedDocs.getItemAt(1).getName());
+			assertEquals("zed", loadedDocs.getItemAt(2).getName());
+			assertEquals(8, ((File) loadedDocs.getItem("beta")).getSize());
+			assertEquals(18, image.getRoot().getTotalSize());
+			assertTrue(loadedDocs.hasProperItems());
+			image.close();
+		} finally {
+			Files.delete(path);
+		}
+	}
+	
+	@Test
+	public void testTerminateRecursively() {
+		Directory root = new Directory("root");
+		File kept = new File(root, "kept", 5, true, FileType.Text);
+		Directory doomed = new Directory(root, "doomed");
+		List<FileSystemObject> below = new ArrayList<FileSystemObject>();
+		for (int i = 0; i < 40; i++) {
+			Directory sub = new Directory(doomed, "sub" + i);
+			below.add(sub);
+			for (int j = 0; j < 50; j++)
+				below.add(new File(sub, "file" + j, 1, true, FileType.Java));
+		}
+		assertEquals(1 + 1 + 40 * 51, root.getTotalNbItems());
+		
+		doomed.terminateRecursively(true);
+		assertTrue(doomed.isTerminated());
+		assertTrue(doomed.isRoot());
+		for (FileSystemObject obj: below) {
+			assertTrue(obj.isTerminated());
+			assertTrue(obj.isRoot());
+		}
+		assertEquals(0, doomed.getNbItems());
+		assertEquals(1, root.getNbItems());
+		assertEquals(1, root.getTotalNbItems());
+		assertEquals(5, root.getTotalSize());
+		assertFalse(kept.isTerminated());
+		
+		Directory guarded = new Directory(root, "guarded");
+		File locked = new File(new Directory(guarded, "inner"), "locked", 3, false, FileType.Pdf);
+		try {
+			guarded.terminateRecursively();
+			fail();
+		} catch (IllegalStateException e) {
+			assertFalse(guarded.isTerminated());
+			assertFalse(locked.isTerminated());
+			assertEquals(4, root.getTotalNbItems());
+		}
+	}
+	
+	@Test
+	public void testTerminateRecursively_Parallel() {
+		Directory root = new Directory("root");
+		Directory doomed = new Directory(root, "doomed");
+		List<FileSystemObject> below = new ArrayList<FileSystemObject>();
+		int nbFiles = FileSystemWalker.getParallelThreshold() + 100;
+		for (int i = 0; i < 2; i++) {
+			Directory sub = new Directory(doomed, "sub" + i);
+			Directory deep = new Directory(sub, "deep");
+			below.add(sub);
+			below.add(deep);
+			for (int j = 0; j < nbFiles; j++)
+				below.add(new File(deep, "file" + j, 1, true, FileType.Java));
+		}
+		final Set<FileSystemObject> terminated = new HashSet<FileSystemObject>();
+		Consumer<List<FileSystemEvent>> belowListener = events -> {
+			synchronized (terminated) {
+				for (FileSystemEvent event: events)
+					if (event.getKinds().contains(FileSystemEvent.Kind.TERMINATED))
+						terminated.add(event.getObject());
+			}
+		};
+		root.addListener(belowListener, true, null);
+		try {
+			doomed.terminateRecursively(true);
+			FileSystemEvents.flush();
+			for (FileSystemObject obj: below)
+				assertTrue(obj.isTerminated() && obj.isRoot());
+			assertEquals(0, root.getTotalNbItems());
+			assertEquals(0, root.getTotalSize());
+			synchronized (terminated) {
+				assertTrue(terminated.contains(doomed));
+				assertTrue(terminated.containsAll(below));
+			}
+		} finally {
+			root.removeListener(belowListener);
+		}
+	}
+	
+	@Test
+	public void testFileTypeRegistry() {
+		assertSame(FileType.Text, FileType.forExtension("txt"));
+		assertSame(FileType.Pdf, FileType.forName("Pdf"));
+		assertSame(FileType.Java, FileType.getAllTypes().get(FileType.Java.getIndex()));
+		assertTrue(FileType.isValidExtension("md"));
+		assertFalse(FileType.isValidExtension("Md"));
+		assertFalse(FileType.isValidExtension(""));
+		
+		// The registry is global, so pick a name and extension no earlier run in this JVM registered.
+		String name, extension;
+		int run = 0;
+		do {
+			name = "Markdown" + run;
+			StringBuilder letters = new StringBuilder("md");
+			for (char digit: Integer.toString(run, 26).toCharArray())
+				letters.append((char) ('a' + Character.digit(digit, 26)));
+			extension = letters.toString();
+			run++;
+		} while (FileType.forName(name) != null || FileType.forExtension(extension) != null);
+		FileType markdown = FileType.register(name, extension);
+		assertSame(markdown, FileType.forExtension(extension));
+		assertSame(markdown, FileType.forName(name));
+		assertEquals(FileType.getNbTypes() - 1, markdown.getIndex());
+		File readme = new File(directoryString, "readme", 4, true, markdown);
+		assertEquals(1, directoryString.getFilesOfType(markdown).size());
+		assertTrue(directoryString.getFilesOfType(markdown).contains(readme));
+		
+		try {
+			FileType.register("Other", extension);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertNull(FileType.forName("Other"));
+		}
+	}
+	
+	@Test
+	public void testIteration() {
+		Directory root = new Directory("root");
+		for (char c = 'a'; c <= 'z'; c++)
+			new File(root, c + "file", FileType.Text);
+		Iterator<FileSystemObject> items = root.iterator();
+		new File(root, "Extra", FileType.Text);
+		for (int i = 1; i <= 26; i++)
+			assertEquals((char) ('a' + i - 1) + "file", items.next().getName());
+		assertFalse(items.hasNext());
+		
+		List<String> names = new ArrayList<String>();
+		for (FileSystemObject obj: root.subRange("M", "p"))
+			names.add(obj.getName());
+		assertEquals(Arrays.asList("mfile", "nfile", "ofile"), names);
+		assertFalse(root.subRange("zz", null).iterator().hasNext());
+		assertEquals(27, root.stream().count());
+		assertEquals("afile", root.stream().findFirst().get().getName());
+	}
+	
+	@Test
+	public void testTransaction() {
+		Directory root = new Directory("root");
+		Directory left = new Directory(root, "left");
+		Directory right = new Directory(root, "right");
+		File a = new File(left, "a", 10, true, FileType.Text);
+		File b = new File(right, "b", 20, true, FileType.Text);
+		File c = new File(left, "c", 30, true, FileType.Text);
+		
+		FileSystemTransaction swap = new FileSystemTransaction();
+		swap.move(a, right);
+		swap.rename(a, "b");
+		swap.move(b, left);
+		swap.rename(b, "a");
+		swap.rename(c, "d");
+		swap.setWritable(c, false);
+		swap.commit();
+		assertTrue(swap.isCommitted());
+		assertSame(right, a.getParentDirectory());
+		assertEquals("b", a.getName());
+		assertSame(left, b.getParentDirectory());
+		assertSame(b, left.getItemAt(1));
+		assertSame(c, left.getItem("D"));
+		assertFalse(c.isWritable());
+		assertEquals(50, left.getTotalSize());
+		assertEquals(10, right.getTotalSize());
+		assertEquals(5, root.getTotalNbItems());
+		assertTrue(left.hasProperItems() && right.hasProperItems());
+		
+		FileSystemTransaction cycle = new FileSystemTransaction();
+		cycle.move(right, left);
+		cycle.move(left, right);
+		try {
+			cycle.commit();
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertSame(root, left.getParentDirectory());
+			assertSame(root, right.getParentDirectory());
+		}
+		
+		FileSystemTransaction clash = new FileSystemTransaction();
+		clash.move(left, right);
+		clash.move(a, left);
+		clash.rename(a, "A");
+		try {
+			clash.commit();
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertSame(root, left.getParentDirectory());
+			assertSame(right, a.getParentDirectory());
+		}
+		
+		assertEquals(3, root.getFilesOfType(FileType.Text).size());
+		FileSystemTransaction nested = new FileSystemTransaction();
+		nested.move(a, left);
+		nested.move(left, right);
+		nested.makeRoot(b);
+		nested.commit();
+		assertSame(right, left.getParentDirectory());
+		assertSame(left, a.getParentDirectory());
+		assertTrue(b.isRoot());
+		assertEquals(2, root.getFilesOfType(FileType.Text).size());
+		assertFalse(root.getFilesOfType(FileType.Text).contains(b));
+		assertEquals(40, right.getTotalSize());
+		assertEquals(3, right.getTotalNbItems());
+		assertEquals(40, root.getTotalSize());
+		assertEquals(4, root.getTotalNbItems());
+		assertEquals("/root/right/left/b", a.getAbsolutePath());
+	}
+	
 	private void sleep() {
         try {
             Thread.sleep(50);
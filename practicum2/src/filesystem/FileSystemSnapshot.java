@@ -0,0 +1,355 @@
+package filesystem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.kuleuven.cs.som.annotate.*;
+
+/**
+ * A class of snapshots of a file system object and all objects below it.
+ *   Taking a snapshot copies nothing: it only registers a new epoch. Each file system object saves
+ *   its name, writability, modification time, size and contents the first time it changes after
+ *   a snapshot is taken, and a snapshot reads each object as saved for its epoch, or as it is now
+ *   if it has not changed since. The contents of directories are immutable trees, so a saved
+ *   directory shares all its unchanged items with the live one.
+ *   Objects keep their saved states as long as a snapshot that needs them is open.
+ *
+ * @invar   The root of each snapshot is effective.
+ *          | getRoot() != null
+ *
+ * @author  Tim Lauwers, Tim Robensyn, Robbe Van Biervliet
+ * @version 1.0
+ */
+public final class FileSystemSnapshot implements AutoCloseable {
+
+	/**
+	 * Initialize a new snapshot of the given object with the given epoch.
+	 */
+	private FileSystemSnapshot(FileSystemObject root, long epoch) {
+		this.root = root;
+		this.epoch = epoch;
+	}
+
+	/**
+	 * Take a snapshot of the given file system object and all objects below it.
+	 *
+	 * @param  root
+	 *         The object to take a snapshot of.
+	 * @return An open snapshot of the given object as it is now.
+	 *         | result.getRoot().getObject() == root && !result.isClosed()
+	 * @throws IllegalArgumentException
+	 *         The given object is not effective or is terminated.
+	 *         | root == null || root.isTerminated()
+	 * @note   Taking a snapshot takes constant time. The given object is locked, for writing if it is
+	 *         a directory, and the directories above it for reading, so no object below it changes
+	 *         place, name or size while the snapshot is taken. Other objects are not held up.
+	 */
+	public static FileSystemSnapshot of(FileSystemObject root) throws IllegalArgumentException {
+		if (root == null || root.isTerminated())
+			throw new IllegalArgumentException("Cannot take a snapshot of the given object.");
+		if (root instanceof Directory) {
+			Directory.Locks locks = Directory.lockWithAncestors((Directory) root);
+			try {
+				return open(root);
+			} finally {
+				locks.release();
+			}
+		}
+		return root.changeInPlace(false, () -> open(root));
+	}
+
+	/**
+	 * Open a new snapshot of the given object with a new epoch, while holding all locks needed.
+	 */
+	@Model
+	private static FileSystemSnapshot open(FileSystemObject root) {
+		long epoch = epochs.incrementAndGet();
+		openEpochs.add(epoch);
+		return new FileSystemSnapshot(root, epoch);
+	}
+
+	/**
+	 * Return the entry for the root of this snapshot.
+	 *
+	 * @throws IllegalStateException
+	 *         This snapshot is closed.
+	 *         | isClosed()
+	 */
+	public Entry getRoot() throws IllegalStateException {
+		return new Entry(this.root);
+	}
+
+	private final FileSystemObject root;
+
+	/**
+	 * Variable registering the epoch of this snapshot.
+	 */
+	private final long epoch;
+
+	/**
+	 * Check whether this snapshot is closed.
+	 */
+	@Basic
+	public boolean isClosed() {
+		return this.isClosed;
+	}
+
+	/**
+	 * Close this snapshot.
+	 *
+	 * @post   This snapshot is closed.
+	 *         | new.isClosed()
+	 * @note   States saved only for this snapshot are dropped the next time their objects change.
+	 */
+	@Override
+	public void close() {
+		if (!this.isClosed) {
+			this.isClosed = true;
+			openEpochs.remove(this.epoch);
+		}
+	}
+
+	private volatile boolean isClosed = false;
+
+	/**
+	 * Return a new root that is a copy of the root of this snapshot, with copies of all objects below it.
+	 *
+	 * @return A new root with the same name, writability, size and type as the root of this snapshot,
+	 *         holding copies of its items in the same way.
+	 *         | result.isRoot() && result.getName().equals(getRoot().getName())
+	 * @throws IllegalStateException
+	 *         This snapshot is closed.
+	 *         | isClosed()
+	 * @note   The copies are new objects, created now.
+	 */
+	public FileSystemObject copy() throws IllegalStateException {
+		return copy(getRoot(), null);
+	}
+
+	private static FileSystemObject copy(Entry entry, Directory parent) {
+		if (!entry.isDirectory())
+			return new File(parent, entry.getName(), entry.getSize(), entry.isWritable(), entry.getType());
+		Directory directory = new Directory(parent, entry.getName(), true);
+		for (int index = 1; index <= entry.getNbItems(); index++)
+			copy(entry.getItemAt(index), directory);
+		if (!entry.isWritable())
+			directory.setWritable(false);
+		return directory;
+	}
+
+
+	/**********************************************************
+	 * Entries
+	 **********************************************************/
+
+	/**
+	 * A class of entries of a snapshot, each showing a file system object as it was when the
+	 * snapshot was taken.
+	 */
+	public final class Entry {
+
+		private Entry(FileSystemObject obj) throws IllegalStateException {
+			if (isClosed())
+				throw new IllegalStateException("This snapshot is closed.");
+			this.obj = obj;
+			this.state = obj.getStateAt(epoch);
+		}
+
+		/**
+		 * Return the live file system object of this entry.
+		 */
+		@Basic @Immutable
+		public FileSystemObject getObject() {
+			return this.obj;
+		}
+
+		private final FileSystemObject obj;
+
+		private final State state;
+
+		/**
+		 * Return the name of the object of this entry when the snapshot was taken.
+		 */
+		@Immutable
+		public String getName() {
+			return state.name;
+		}
+
+		/**
+		 * Check whether the object of this entry was writable when the snapshot was taken.
+		 */
+		@Immutable
+		public boolean isWritable() {
+			return state.isWritable;
+		}
+
+		/**
+		 * Return the modification time of the object of this entry when the snapshot was taken,
+		 * in nanoseconds since the epoch.
+		 *
+		 * @return The modification time, or NO_TIME if the object had not been modified.
+		 */
+		@Immutable
+		public long getModificationTimeNanos() {
+			return state.modificationTime;
+		}
+
+		/**
+		 * Check whether the object of this entry is a directory.
+		 */
+		@Immutable
+		public boolean isDirectory() {
+			return obj instanceof Directory;
+		}
+
+		/**
+		 * Return the size of the object of this entry when the snapshot was taken, zero for directories.
+		 */
+		@Immutable
+		public int getSize() {
+			return state.size;
+		}
+
+		/**
+		 * Return the type of the object of this entry, null for directories.
+		 */
+		@Immutable
+		public FileType getType() {
+			return isDirectory() ? null : ((File) obj).getType();
+		}
+
+		/**
+		 * Return the number of items the object of this entry held when the snapshot was taken,
+		 * zero for files.
+		 */
+		@Immutable
+		public int getNbItems() {
+			return state.contents == null ? 0 : state.contents.size();
+		}
+
+		/**
+		 * Return the entry of the item at the given index in the object of this entry.
+		 *
+		 * @param  index
+		 *         The index of the item, starting at 1.
+		 * @throws IndexOutOfBoundsException
+		 *         The given index is not positive or exceeds the number of items.
+		 *         | (index < 1) || (index > getNbItems())
+		 * @throws IllegalStateException
+		 *         The snapshot is closed.
+		 */
+		public Entry getItemAt(int index) throws IndexOutOfBoundsException, IllegalStateException {
+			if (index < 1 || index > getNbItems())
+				throw new IndexOutOfBoundsException();
+			return new Entry(state.contents.getAt(index));
+		}
+
+		/**
+		 * Return the entry of the item of the object of this entry with the given name, ignoring case.
+		 *
+		 * @param  name
+		 *         The name of the item.
+		 * @return The entry of the item with the given name, null if there is none.
+		 * @throws IllegalStateException
+		 *         The snapshot is closed.
+		 */
+		public Entry getItem(String name) throws IllegalStateException {
+			if (name == null || state.contents == null)
+				return null;
+			FileSystemObject item = state.contents.get(name.toLowerCase(Locale.ROOT));
+			return item == null ? null : new Entry(item);
+		}
+
+		/**
+		 * Return the entries of the items of the object of this entry, in order.
+		 *
+		 * @throws IllegalStateException
+		 *         The snapshot is closed.
+		 */
+		public List<Entry> getItems() throws IllegalStateException {
+			List<Entry> items = new ArrayList<Entry>(getNbItems());
+			for (int index = 1; index <= getNbItems(); index++)
+				items.add(getItemAt(index));
+			return items;
+		}
+	}
+
+
+	/**********************************************************
+	 * Epochs
+	 **********************************************************/
+
+	/**
+	 * Return the epoch of the most recent snapshot.
+	 */
+	static long getCurrentEpoch() {
+		return epochs.get();
+	}
+
+	/**
+	 * Check whether an open snapshot was taken after the given epoch, up to and including the current one.
+	 */
+	static boolean hasOpenSnapshotAfter(long epoch) {
+		return openEpochs.higher(epoch) != null;
+	}
+
+	/**
+	 * Drop the states in the given chain that no open snapshot needs.
+	 *
+	 * @param  state
+	 *         The newest state of the chain, possibly null.
+	 * @return The newest state of the chain that is still needed, null if none is.
+	 * @note   A saved state serves the snapshots taken after the state saved before it, up to its own
+	 *         epoch. States saved before the oldest open snapshot serve none.
+	 */
+	static State prune(State state) {
+		Long oldest = openEpochs.ceiling(Long.MIN_VALUE);
+		if (state == null || oldest == null || state.epoch < oldest)
+			return null;
+		State newer = state;
+		while (newer.older != null && newer.older.epoch >= oldest)
+			newer = newer.older;
+		newer.older = null;
+		return state;
+	}
+
+	private static final AtomicLong epochs = new AtomicLong(0);
+
+	private static final ConcurrentSkipListSet<Long> openEpochs = new ConcurrentSkipListSet<Long>();
+
+	/**
+	 * A class of saved states of file system objects.
+	 *   The states of an object are chained from newest to oldest.
+	 */
+	static final class State {
+
+		State(long epoch, String name, boolean isWritable, long modificationTime, int size,
+				DirectoryContents contents) {
+			this.epoch = epoch;
+			this.name = name;
+			this.isWritable = isWritable;
+			this.modificationTime = modificationTime;
+			this.size = size;
+			this.contents = contents;
+		}
+
+		/**
+		 * The epoch up to which this state is the state of its object.
+		 */
+		final long epoch;
+		final String name;
+		final boolean isWritable;
+		final long modificationTime;
+		final int size;
+		final DirectoryContents contents;
+
+		/**
+		 * The state saved before this one, null if none is needed.
+		 */
+		volatile State older;
+	}
+
+}
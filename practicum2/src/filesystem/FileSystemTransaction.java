@@ -0,0 +1,435 @@
+package filesystem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import be.kuleuven.cs.som.annotate.*;
+
+/**
+ * A class of transactions moving, renaming and changing the writability of many file system
+ * objects at once.
+ *   Changes are first staged, without changing anything. Committing validates all staged changes
+ *   together against the file system as it will be after the transaction, so objects may swap
+ *   names or places, and then applies all of them, or none of them if any change is not allowed.
+ *   While committing, each affected directory is locked for writing and reordered once, whatever the
+ *   number of objects moved into or out of it, and the directories above them are locked for reading.
+ *   Transactions and other changes in unrelated parts of the file systems do not wait for each other.
+ *
+ * @author  Tim Lauwers, Tim Robensyn, Robbe Van Biervliet
+ * @version 1.0
+ */
+public final class FileSystemTransaction {
+
+	/**
+	 * Initialize a new transaction without staged changes.
+	 *
+	 * @post   The new transaction has no staged objects and is not committed.
+	 *         | new.getNbStagedObjects() == 0 && !new.isCommitted()
+	 */
+	public FileSystemTransaction() {
+	}
+
+
+	/**********************************************************
+	 * Staging
+	 **********************************************************/
+
+	/**
+	 * Stage a move of the given file system object to the given directory.
+	 *
+	 * @param  obj
+	 *         The object to move.
+	 * @param  destination
+	 *         The directory to move the object to.
+	 * @post   The given object is staged to end up in the given directory, replacing an earlier
+	 *         staged move of the same object.
+	 * @throws IllegalArgumentException
+	 *         The given object or directory is not effective.
+	 *         | obj == null || destination == null
+	 * @throws IllegalStateException
+	 *         This transaction is committed.
+	 *         | isCommitted()
+	 */
+	public void move(FileSystemObject obj, Directory destination)
+			throws IllegalArgumentException, IllegalStateException {
+		if (destination == null)
+			throw new IllegalArgumentException("The destination directory cannot be null.");
+		stage(obj).stageMove(destination);
+	}
+
+	/**
+	 * Stage making the given file system object a root.
+	 *
+	 * @param  obj
+	 *         The object to make a root.
+	 * @post   The given object is staged to end up as a root, replacing an earlier staged move
+	 *         of the same object.
+	 * @throws IllegalArgumentException
+	 *         The given object is not effective.
+	 *         | obj == null
+	 * @throws IllegalStateException
+	 *         This transaction is committed.
+	 *         | isCommitted()
+	 */
+	public void makeRoot(FileSystemObject obj) throws IllegalArgumentException, IllegalStateException {
+		stage(obj).stageMove(null);
+	}
+
+	/**
+	 * Stage renaming the given file system object to the given name.
+	 *
+	 * @param  obj
+	 *         The object to rename.
+	 * @param  name
+	 *         The new name for the object.
+	 * @post   The given object is staged to end up with the given name, replacing an earlier
+	 *         staged name of the same object.
+	 * @throws IllegalArgumentException
+	 *         The given object is not effective or the given name is not valid.
+	 *         | obj == null || !FileSystemObject.isValidName(name)
+	 * @throws IllegalStateException
+	 *         This transaction is committed.
+	 *         | isCommitted()
+	 */
+	public void rename(FileSystemObject obj, String name) throws IllegalArgumentException, IllegalStateException {
+		if (!FileSystemObject.isValidName(name))
+			throw new IllegalArgumentException("Invalid name for a file system object.");
+		stage(obj).name = name;
+	}
+
+	/**
+	 * Stage changing the writability of the given file system object to the given writability.
+	 *
+	 * @param  obj
+	 *         The object to change the writability of.
+	 * @param  writable
+	 *         The new writability for the object.
+	 * @post   The given object is staged to end up with the given writability, replacing an earlier
+	 *         staged writability of the same object.
+	 * @throws IllegalArgumentException
+	 *         The given object is not effective.
+	 *         | obj == null
+	 * @throws IllegalStateException
+	 *         This transaction is committed.
+	 *         | isCommitted()
+	 */
+	public void setWritable(FileSystemObject obj, boolean writable)
+			throws IllegalArgumentException, IllegalStateException {
+		stage(obj).writable = writable;
+	}
+
+	/**
+	 * Return the staged changes of the given object, registering new ones if there are none yet.
+	 */
+	@Model
+	private Staged stage(FileSystemObject obj) throws IllegalArgumentException, IllegalStateException {
+		if (obj == null)
+			throw new IllegalArgumentException("Cannot stage a change of a non-effective object.");
+		if (isCommitted())
+			throw new IllegalStateException("This transaction is committed.");
+		Staged staged = this.staged.get(obj);
+		if (staged == null) {
+			staged = new Staged(obj);
+			this.staged.put(obj, staged);
+		}
+		return staged;
+	}
+
+	/**
+	 * Return the number of objects with staged changes in this transaction.
+	 */
+	public int getNbStagedObjects() {
+		return this.staged.size();
+	}
+
+	/**
+	 * Map from each object with staged changes to those changes, in the order in which the objects
+	 * were first staged.
+	 */
+	private final Map<FileSystemObject,Staged> staged = new LinkedHashMap<FileSystemObject,Staged>();
+
+	/**
+	 * A class of staged changes of a single file system object.
+	 */
+	private static final class Staged {
+
+		private Staged(FileSystemObject obj) {
+			this.obj = obj;
+		}
+
+		private final FileSystemObject obj;
+
+		/**
+		 * Whether the object is to be moved, to the destination or to become a root if that is null.
+		 */
+		private boolean moves = false;
+
+		private Directory destination;
+
+		/**
+		 * The new name of the object, null if it keeps its name.
+		 */
+		private String name;
+
+		/**
+		 * The new writability of the object, null if it keeps its writability.
+		 */
+		private Boolean writable;
+
+		private void stageMove(Directory destination) {
+			this.moves = true;
+			this.destination = destination;
+		}
+	}
+
+
+	/**********************************************************
+	 * Committing
+	 **********************************************************/
+
+	/**
+	 * Check whether this transaction is committed.
+	 */
+	@Basic
+	public boolean isCommitted() {
+		return this.isCommitted;
+	}
+
+	private boolean isCommitted = false;
+
+	/**
+	 * Apply all staged changes of this transaction at once.
+	 *
+	 * @post   This transaction is committed.
+	 *         | new.isCommitted()
+	 * @effect Each object staged to move ends up in its destination directory, or as a root, and its
+	 *         modification time is updated. Each object staged to be renamed ends up with its new name,
+	 *         unless that only differs in case from its current name, and its modification time is updated.
+	 *         Each directory that gains or loses items has its modification time updated once.
+	 *         Finally each object staged to change writability gets its new writability.
+	 * @throws IllegalStateException
+	 *         This transaction is committed already, or a staged object or destination is terminated.
+	 *         In the latter case nothing is changed.
+	 * @throws ObjectNotWritableException
+	 *         An object to rename, the directory it ends up in, a directory an object moves out of or
+	 *         a destination directory is not writable. In that case nothing is changed.
+	 * @throws IllegalArgumentException
+	 *         A directory would end up in itself or below itself, or two objects would end up in the
+	 *         same directory with the same name, ignoring case. In that case nothing is changed.
+	 * @note   Moves and renames are checked against the writability objects have before this
+	 *         transaction. The changes in writability take effect last.
+	 * @note   The directories objects move out of or into, the directories that move and the parent
+	 *         directories of the objects renamed are locked for writing, all directories above them for
+	 *         reading, and the objects that move or are renamed as a root are locked themselves. So
+	 *         none of these objects changes place or name otherwise while the transaction is committed.
+	 */
+	public void commit() throws IllegalStateException, ObjectNotWritableException, IllegalArgumentException {
+		if (isCommitted())
+			throw new IllegalStateException("This transaction is committed.");
+		List<Staged> all = new ArrayList<Staged>(this.staged.values());
+		while (true) {
+			List<Directory> parents = new ArrayList<Directory>(all.size());
+			List<Directory> changed = new ArrayList<Directory>();
+			List<FileSystemObject> roots = new ArrayList<FileSystemObject>();
+			for (Staged staged: all) {
+				Directory parent = staged.obj.getParentDirectory();
+				parents.add(parent);
+				boolean moves = staged.moves && staged.destination != parent;
+				if (moves || staged.name != null) {
+					changed.add(parent);
+					if (parent == null)
+						roots.add(staged.obj);
+				}
+				if (moves) {
+					changed.add(staged.destination);
+					if (staged.obj instanceof Directory)
+						changed.add((Directory) staged.obj);
+				}
+			}
+			Directory.Locks locks = Directory.lock(changed, null);
+			try {
+				boolean committed = FileSystemObject.changeHoldingAll(roots, () -> {
+					for (int i = 0; i < all.size(); i++)
+						if (all.get(i).obj.getParentDirectory() != parents.get(i))
+							return false;
+					commitLocked();
+					return true;
+				});
+				if (committed)
+					return;
+			} finally {
+				locks.release();
+			}
+		}
+	}
+
+	/**
+	 * Apply all staged changes of this transaction at once, while holding all locks needed.
+	 *
+	 * @see commit()
+	 */
+	@Model
+	private void commitLocked() throws IllegalStateException, ObjectNotWritableException, IllegalArgumentException {
+		List<Staged> moved = new ArrayList<Staged>();
+		Map<Directory,SortedMap<String,FileSystemObject>> added = new HashMap<Directory,SortedMap<String,FileSystemObject>>();
+		Map<Directory,Set<String>> removed = new HashMap<Directory,Set<String>>();
+		for (Staged staged: this.staged.values()) {
+			FileSystemObject obj = staged.obj;
+			if (obj.isTerminated())
+				throw new IllegalStateException("A staged object is terminated.");
+			Directory parent = obj.getParentDirectory();
+			boolean moves = staged.moves && staged.destination != parent;
+			boolean renames = staged.name != null && !staged.name.equalsIgnoreCase(obj.getName());
+			if (moves) {
+				if (staged.destination != null && staged.destination.isTerminated())
+					throw new IllegalStateException("A destination directory is terminated.");
+				if (parent != null && !parent.isWritable())
+					throw new ObjectNotWritableException(parent);
+				if (staged.destination != null && !staged.destination.isWritable())
+					throw new ObjectNotWritableException(staged.destination);
+				moved.add(staged);
+			}
+			if (renames && !obj.isWritable())
+				throw new ObjectNotWritableException(obj);
+			if (moves || renames) {
+				if (parent != null)
+					getRemoved(removed, parent).add(obj.getNameKey());
+				Directory target = moves ? staged.destination : parent;
+				if (target != null) {
+					if (!target.isWritable())
+						throw new ObjectNotWritableException(target);
+					String name = renames ? staged.name : obj.getName();
+					if (getAdded(added, target).put(Directory.getKeyOf(name), obj) != null)
+						throw new IllegalArgumentException("Two objects cannot end up with the same name.");
+				}
+			}
+		}
+		for (Staged staged: moved)
+			if (staged.obj instanceof Directory && endsUpBelow(staged.destination, (Directory) staged.obj))
+				throw new IllegalArgumentException("A directory cannot end up below itself.");
+
+		Set<Directory> affected = new HashSet<Directory>(removed.keySet());
+		affected.addAll(added.keySet());
+		for (Map.Entry<Directory,SortedMap<String,FileSystemObject>> entry: added.entrySet())
+			entry.getKey().checkNewItems(entry.getValue(), getRemoved(removed, entry.getKey()));
+		apply(moved, added, removed);
+		for (Directory dir: affected)
+			if (!dir.isTerminated())
+				dir.setModificationTime();
+		for (Staged staged: this.staged.values())
+			if (staged.writable != null)
+				staged.obj.setWritable(staged.writable);
+		this.isCommitted = true;
+	}
+
+	/**
+	 * Apply the given validated moves and changes of contents.
+	 */
+	@Model
+	private void apply(List<Staged> moved, Map<Directory,SortedMap<String,FileSystemObject>> added,
+			Map<Directory,Set<String>> removed) {
+		List<FileSystemIndex> oldIndexes = new ArrayList<FileSystemIndex>(moved.size());
+		List<Directory> oldParents = new ArrayList<Directory>(moved.size());
+		for (Staged staged: moved) {
+			oldIndexes.add(staged.obj.isRoot() ? null : staged.obj.getIndexOfFileSystem());
+			oldParents.add(staged.obj.getParentDirectory());
+		}
+		// Objects are first detached one by one and then attached one by one, so the totals of each
+		// directory are adjusted along its ancestors at that moment, whatever the order of the moves.
+		for (Staged staged: moved) {
+			if (!staged.obj.isRoot()) {
+				staged.obj.getParentDirectory().adjustTotals(
+						-Directory.getTotalSizeOf(staged.obj), -Directory.getTotalNbItemsOf(staged.obj));
+				staged.obj.moveWithinTransaction(null);
+			}
+		}
+		for (Staged staged: moved) {
+			if (staged.destination != null) {
+				staged.obj.moveWithinTransaction(staged.destination);
+				staged.destination.adjustTotals(
+						Directory.getTotalSizeOf(staged.obj), Directory.getTotalNbItemsOf(staged.obj));
+			}
+		}
+		for (Directory dir: removed.keySet())
+			dir.changeItems(getAdded(added, dir), removed.get(dir));
+		for (Directory dir: added.keySet())
+			if (!removed.containsKey(dir))
+				dir.changeItems(added.get(dir), Collections.<String>emptySet());
+
+		for (int i = 0; i < moved.size(); i++) {
+			FileSystemIndex oldIndex = oldIndexes.get(i);
+			if (oldIndex != null && oldIndex != moved.get(i).obj.getIndexOfFileSystem())
+				oldIndex.removeSubtree(moved.get(i).obj);
+		}
+		for (int i = 0; i < moved.size(); i++) {
+			FileSystemIndex newIndex = moved.get(i).obj.getIndexOfFileSystem();
+			if (newIndex != null && newIndex != oldIndexes.get(i))
+				newIndex.addSubtree(moved.get(i).obj);
+		}
+
+		for (int i = 0; i < moved.size(); i++) {
+			FileSystemObject obj = moved.get(i).obj;
+			if (oldParents.get(i) != null)
+				FileSystemEvents.publish(obj, oldParents.get(i), FileSystemEvent.Kind.REMOVED);
+			if (!obj.isRoot())
+				FileSystemEvents.publish(obj, obj.getParentDirectory(), FileSystemEvent.Kind.ADDED);
+			obj.setModificationTime();
+		}
+		for (Staged staged: this.staged.values())
+			if (staged.name != null && !staged.name.equalsIgnoreCase(staged.obj.getName()))
+				staged.obj.renameWithinBatch(staged.name);
+	}
+
+	/**
+	 * Check whether the given directory ends up being the given other directory or below it, when all
+	 * staged moves are applied.
+	 */
+	@Model
+	private boolean endsUpBelow(Directory dir, Directory other) {
+		Set<Directory> visited = Collections.newSetFromMap(new IdentityHashMap<Directory,Boolean>());
+		while (dir != null) {
+			if (dir == other || !visited.add(dir))
+				return true;
+			Staged staged = this.staged.get(dir);
+			dir = (staged != null && staged.moves) ? staged.destination : dir.getParentDirectory();
+		}
+		return false;
+	}
+
+	/**
+	 * Return the items to add to the given directory registered in the given map, registering
+	 * an empty map for the given directory if there is none yet.
+	 */
+	private static SortedMap<String,FileSystemObject> getAdded(
+			Map<Directory,SortedMap<String,FileSystemObject>> added, Directory dir) {
+		SortedMap<String,FileSystemObject> result = added.get(dir);
+		if (result == null) {
+			result = new TreeMap<String,FileSystemObject>();
+			added.put(dir, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Return the keys to remove from the given directory registered in the given map, registering
+	 * an empty set for the given directory if there is none yet.
+	 */
+	private static Set<String> getRemoved(Map<Directory,Set<String>> removed, Directory dir) {
+		Set<String> result = removed.get(dir);
+		if (result == null) {
+			result = new HashSet<String>();
+			removed.put(dir, result);
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,391 @@
+package filesystem;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import be.kuleuven.cs.som.annotate.*;
+
+/**
+ * A class of walkers over the file system objects in and below a file system object.
+ *   Objects are visited in pre-order: each directory comes before its items, and the items
+ *   of a directory come in the order of the directory. A walk can be sequential, or run on
+ *   a fork-join pool that splits it in tasks of about getParallelThreshold() objects each.
+ *
+ * @author  Tim Lauwers, Tim Robensyn, Robbe Van Biervliet
+ * @version 1.0
+ */
+public final class FileSystemWalker {
+
+	/**
+	 * This class only offers static methods.
+	 */
+	private FileSystemWalker() {
+	}
+
+
+	/**********************************************************
+	 * Walks
+	 **********************************************************/
+
+	/**
+	 * Visit the given file system object and all file system objects below it that satisfy the given filter.
+	 *
+	 * @param  start
+	 *         The file system object to start the walk at.
+	 * @param  filter
+	 *         The filter the visited objects must satisfy.
+	 * @param  visitor
+	 *         The visitor to apply to each object that satisfies the filter.
+	 * @effect The visitor is applied to each object in and below the given object that satisfies the
+	 *         filter, in pre-order.
+	 * @throws IllegalArgumentException
+	 *         One of the given arguments is not effective.
+	 *         | start == null || filter == null || visitor == null
+	 */
+	public static void walk(FileSystemObject start, Predicate<? super FileSystemObject> filter,
+			Consumer<? super FileSystemObject> visitor) throws IllegalArgumentException {
+		checkArguments(start, filter, visitor);
+		walkSequentially(start, filter, visitor);
+	}
+
+	/**
+	 * Visit the given file system object and all file system objects below it that satisfy the given
+	 * filter, using the common fork-join pool.
+	 *
+	 * @effect The objects are visited using the common fork-join pool.
+	 *         | walkInParallel(start, filter, visitor, ForkJoinPool.commonPool())
+	 */
+	public static void walkInParallel(FileSystemObject start, Predicate<? super FileSystemObject> filter,
+			Consumer<? super FileSystemObject> visitor) throws IllegalArgumentException {
+		walkInParallel(start, filter, visitor, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Visit the given file system object and all file system objects below it that satisfy the given
+	 * filter, using the given fork-join pool.
+	 *
+	 * @param  start
+	 *         The file system object to start the walk at.
+	 * @param  filter
+	 *         The filter the visited objects must satisfy.
+	 * @param  visitor
+	 *         The visitor to apply to each object that satisfies the filter.
+	 * @param  pool
+	 *         The pool to run the walk on.
+	 * @effect The visitor is applied once to each object in and below the given object that satisfies
+	 *         the filter, in no particular order and possibly from several threads at the same time.
+	 * @throws IllegalArgumentException
+	 *         One of the given arguments is not effective.
+	 *         | start == null || filter == null || visitor == null || pool == null
+	 * @note   The filter and visitor must be safe to use from several threads. Each subdirectory with
+	 *         more than getParallelThreshold() objects in and below it is walked in a task of its own,
+	 *         and long ranges of items are split in halves. Smaller subdirectories and files are grouped
+	 *         into tasks that walk about getParallelThreshold() objects each, sequentially.
+	 */
+	public static void walkInParallel(FileSystemObject start, Predicate<? super FileSystemObject> filter,
+			Consumer<? super FileSystemObject> visitor, ForkJoinPool pool) throws IllegalArgumentException {
+		checkArguments(start, filter, visitor);
+		if (pool == null)
+			throw new IllegalArgumentException("Cannot walk on a non-effective pool.");
+		pool.invoke(new WalkTask(start, filter, visitor));
+	}
+
+	/**
+	 * Return the number of objects from which on they are walked in a separate task.
+	 */
+	@Immutable
+	public static int getParallelThreshold() {
+		return 1024;
+	}
+
+	/**
+	 * Return a filter that accepts the files of the given type.
+	 *
+	 * @param  type
+	 *         The type of the files to accept.
+	 * @return A filter that accepts an object if and only if it is a file of the given type.
+	 *         | result.test(obj) == (obj instanceof File && ((File) obj).getType() == type)
+	 */
+	public static Predicate<FileSystemObject> isFileOfType(final FileType type) {
+		return new Predicate<FileSystemObject>() {
+			@Override
+			public boolean test(FileSystemObject obj) {
+				return obj instanceof File && ((File) obj).getType() == type;
+			}
+		};
+	}
+
+	@Model
+	private static void checkArguments(FileSystemObject start, Predicate<? super FileSystemObject> filter,
+			Consumer<? super FileSystemObject> visitor) throws IllegalArgumentException {
+		if (start == null)
+			throw new IllegalArgumentException("Cannot walk from a non-effective object.");
+		if (filter == null || visitor == null)
+			throw new IllegalArgumentException("Cannot walk with a non-effective filter or visitor.");
+	}
+
+	@Model
+	private static void walkSequentially(FileSystemObject start, Predicate<? super FileSystemObject> filter,
+			Consumer<? super FileSystemObject> visitor) {
+		Spliterator<FileSystemObject> objects = new SubtreeSpliterator(start);
+		while (objects.tryAdvance(obj -> {
+			if (filter.test(obj))
+				visitor.accept(obj);
+		}));
+	}
+
+	/**
+	 * A class of fork-join tasks visiting a file system object and all objects below it, or the objects
+	 * in a range of items of a directory and all objects below them.
+	 *   A range of more than getParallelThreshold() items is split in halves, as a subtree spliterator
+	 *   splits it. Within a smaller range, each subdirectory with at least getParallelThreshold() objects
+	 *   below it gets a task of its own, and the other items are grouped into tasks that visit about
+	 *   getParallelThreshold() objects each, sequentially.
+	 */
+	private static class WalkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private WalkTask(FileSystemObject start, Predicate<? super FileSystemObject> filter,
+				Consumer<? super FileSystemObject> visitor) {
+			this(start, null, 0, 0, false, filter, visitor);
+		}
+
+		private WalkTask(DirectoryContents contents, int from, int to, boolean isGroup,
+				Predicate<? super FileSystemObject> filter, Consumer<? super FileSystemObject> visitor) {
+			this(null, contents, from, to, isGroup, filter, visitor);
+		}
+
+		private WalkTask(FileSystemObject start, DirectoryContents contents, int from, int to, boolean isGroup,
+				Predicate<? super FileSystemObject> filter, Consumer<? super FileSystemObject> visitor) {
+			this.start = start;
+			this.contents = contents;
+			this.from = from;
+			this.to = to;
+			this.isGroup = isGroup;
+			this.filter = filter;
+			this.visitor = visitor;
+		}
+
+		private final FileSystemObject start;
+		private final DirectoryContents contents;
+		private final int from;
+		private final int to;
+		private final boolean isGroup;
+		private final Predicate<? super FileSystemObject> filter;
+		private final Consumer<? super FileSystemObject> visitor;
+
+		@Override
+		protected void compute() {
+			if (start != null) {
+				if (filter.test(start))
+					visitor.accept(start);
+				if (start instanceof Directory) {
+					DirectoryContents items = ((Directory) start).getContents();
+					walkRange(items, 1, items.size());
+				}
+			}
+			else if (isGroup) {
+				for (int i = from; i <= to; i++)
+					walkSequentially(contents.getAt(i), filter, visitor);
+			}
+			else
+				walkRange(contents, from, to);
+		}
+
+		/**
+		 * Visit the objects in the given range of items and all objects below them, in tasks of about
+		 * getParallelThreshold() objects each.
+		 */
+		private void walkRange(DirectoryContents items, int first, int last) {
+			if (last - first >= getParallelThreshold()) {
+				int middle = (first+last)/2;
+				invokeAll(new WalkTask(items, first, middle, false, filter, visitor),
+						new WalkTask(items, middle+1, last, false, filter, visitor));
+				return;
+			}
+			List<WalkTask> subtasks = new ArrayList<WalkTask>();
+			int groupFrom = first;
+			long groupSize = 0;
+			for (int i = first; i <= last; i++) {
+				FileSystemObject item = items.getAt(i);
+				long size = (item instanceof Directory) ? ((Directory) item).getTotalNbItems()+1 : 1;
+				if (size > getParallelThreshold()) {
+					if (groupFrom < i)
+						subtasks.add(new WalkTask(items, groupFrom, i-1, true, filter, visitor));
+					subtasks.add(new WalkTask(item, filter, visitor));
+					groupFrom = i+1;
+					groupSize = 0;
+				}
+				else {
+					groupSize += size;
+					if (groupSize >= getParallelThreshold()) {
+						subtasks.add(new WalkTask(items, groupFrom, i, true, filter, visitor));
+						groupFrom = i+1;
+						groupSize = 0;
+					}
+				}
+			}
+			if (groupFrom <= last)
+				subtasks.add(new WalkTask(items, groupFrom, last, true, filter, visitor));
+			invokeAll(subtasks);
+		}
+	}
+
+
+	/**********************************************************
+	 * Streams
+	 **********************************************************/
+
+	/**
+	 * Return a sequential stream of the given file system object and all file system objects below it.
+	 *
+	 * @param  start
+	 *         The file system object to start the stream at.
+	 * @return A lazy stream of the given object and all objects below it, in pre-order.
+	 * @throws IllegalArgumentException
+	 *         The given object is not effective.
+	 *         | start == null
+	 * @note   Each directory is read when the stream reaches it, so the stream reflects the
+	 *         contents each directory has at that moment.
+	 */
+	public static Stream<FileSystemObject> stream(FileSystemObject start) throws IllegalArgumentException {
+		return stream(start, false);
+	}
+
+	/**
+	 * Return a parallel stream of the given file system object and all file system objects below it.
+	 *
+	 * @effect A stream that is split over subdirectories and ranges of items.
+	 *         | stream(start).parallel()
+	 */
+	public static Stream<FileSystemObject> parallelStream(FileSystemObject start) throws IllegalArgumentException {
+		return stream(start, true);
+	}
+
+	@Model
+	private static Stream<FileSystemObject> stream(FileSystemObject start, boolean parallel)
+			throws IllegalArgumentException {
+		if (start == null)
+			throw new IllegalArgumentException("Cannot stream from a non-effective object.");
+		return StreamSupport.stream(new SubtreeSpliterator(start), parallel);
+	}
+
+	/**
+	 * A class of spliterators over the file system objects in and below a file system object.
+	 *   The pending work is a sequence of entries in encounter order. An entry is either a single
+	 *   object that still has to be visited together with everything below it, or a range of items
+	 *   of a directory whose objects and everything below them still have to be visited.
+	 *   Splitting hands the first half of the pending entries to a new spliterator, or the first
+	 *   half of the range if only one range is pending.
+	 */
+	private static class SubtreeSpliterator implements Spliterator<FileSystemObject> {
+
+		private SubtreeSpliterator(FileSystemObject start) {
+			this.pending.add(new Entry(start));
+			if (start instanceof Directory)
+				this.estimatedSize = ((Directory) start).getTotalNbItems()+1;
+			else
+				this.estimatedSize = 1;
+		}
+
+		private SubtreeSpliterator(Deque<Entry> pending, long estimatedSize) {
+			this.pending.addAll(pending);
+			this.estimatedSize = estimatedSize;
+		}
+
+		private final Deque<Entry> pending = new ArrayDeque<Entry>();
+
+		private long estimatedSize;
+
+		@Override
+		public boolean tryAdvance(Consumer<? super FileSystemObject> action) {
+			while (!pending.isEmpty()) {
+				Entry entry = pending.peekFirst();
+				FileSystemObject obj;
+				if (entry.contents == null) {
+					pending.removeFirst();
+					obj = entry.obj;
+				} else {
+					obj = entry.contents.getAt(entry.from++);
+					if (entry.from > entry.to)
+						pending.removeFirst();
+				}
+				if (obj instanceof Directory) {
+					DirectoryContents contents = ((Directory) obj).getContents();
+					if (contents.size() > 0)
+						pending.addFirst(new Entry(contents, 1, contents.size()));
+				}
+				if (estimatedSize > 0)
+					estimatedSize--;
+				action.accept(obj);
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public Spliterator<FileSystemObject> trySplit() {
+			Deque<Entry> prefix = new ArrayDeque<Entry>();
+			if (pending.size() > 1) {
+				for (int i = pending.size()/2; i > 0; i--)
+					prefix.addLast(pending.removeFirst());
+			}
+			else if (pending.size() == 1 && pending.peekFirst().contents != null
+					&& pending.peekFirst().to > pending.peekFirst().from) {
+				Entry range = pending.peekFirst();
+				int middle = (range.from+range.to)/2;
+				prefix.addLast(new Entry(range.contents, range.from, middle));
+				range.from = middle+1;
+			}
+			else
+				return null;
+			long half = estimatedSize/2;
+			estimatedSize -= half;
+			return new SubtreeSpliterator(prefix, half);
+		}
+
+		@Override
+		public long estimateSize() {
+			return estimatedSize;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | DISTINCT | NONNULL;
+		}
+	}
+
+	/**
+	 * A class of pending entries of a subtree spliterator.
+	 */
+	private static class Entry {
+
+		private Entry(FileSystemObject obj) {
+			this.obj = obj;
+			this.contents = null;
+		}
+
+		private Entry(DirectoryContents contents, int from, int to) {
+			this.obj = null;
+			this.contents = contents;
+			this.from = from;
+			this.to = to;
+		}
+
+		private final FileSystemObject obj;
+		private final DirectoryContents contents;
+		private int from;
+		private int to;
+	}
+
+}
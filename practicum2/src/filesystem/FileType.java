@@ -1,38 +1,102 @@
 package filesystem;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import be.kuleuven.cs.som.annotate.*;
 
 /**
- * An enumeration of file types.
- *   In its current form, the class only supports text-, pdf- and java files.   
- * 
+ * A class of file types.
+ *   Text-, java- and pdf files are supported from the start. Other file types can be
+ *   registered while the program runs. There is exactly one file type per name and
+ *   per extension, so file types can be compared by identity.
+ *   Each file type has a unique index, counting from 0 in the order in which the file types
+ *   were registered, which can be used to keep data per file type in an array.
+ *
+ * @invar   The name of each file type must be a valid name for any file type.
+ *          | isValidName(getName())
  * @invar   The extension of each file type must be a valid extension
  *          for any file type.
  *          | isValidExtension(getExtension())
- * 
+ * @invar   Each file type is the registered file type with its name, its extension and its index.
+ *          | forName(getName()) == this && forExtension(getExtension()) == this
+ *          |   && getAllTypes().get(getIndex()) == this
+ *
  * @author  Tim Lauwers, Tim Robensyn, Robbe Van Biervliet
  * @version 1.0
  *
  */
 
 @Value
-public enum FileType {
+public final class FileType {
+
+	/**
+	 * Variables referencing the registered file types by their name, by their extension and
+	 * by their index.
+	 *
+	 * @note   Registering a file type replaces these maps and this list by updated copies, so
+	 *         lookups never lock and never see a partly updated registry. File types are
+	 *         registered rarely and looked up often. These variables are initialized before the
+	 *         file types below are registered.
+	 */
+	private static volatile Map<String,FileType> typesByName = new HashMap<String,FileType>();
+	private static volatile Map<String,FileType> typesByExtension = new HashMap<String,FileType>();
+	private static volatile List<FileType> allTypes = Collections.emptyList();
+
+	/**
+	 * The file type of text files.
+	 */
+	public static final FileType Text = register("Text", "txt");
 
-	Text("txt"), Java("java"), Pdf("pdf");
-	
 	/**
-	 * Initialize this file type with the given extension.
-	 * 
+	 * The file type of java files.
+	 */
+	public static final FileType Java = register("Java", "java");
+
+	/**
+	 * The file type of pdf files.
+	 */
+	public static final FileType Pdf = register("Pdf", "pdf");
+
+	/**
+	 * Initialize this file type with the given name, extension and index.
+	 *
+	 * @param name
+	 *        The name for this new file type.
 	 * @param extension
 	 *        The extension for this new file type.
+	 * @param index
+	 *        The index for this new file type.
+	 * @post  The name for this new file type is equal to the given name.
+	 *        | new.getName() == name
 	 * @post  The extension for this new file type is equal to the given extension.
 	 *        | new.getExtension() == extension
+	 * @post  The index for this new file type is equal to the given index.
+	 *        | new.getIndex() == index
 	 */
 	@Raw
-	private FileType(String extension) {
+	private FileType(String name, String extension, int index) {
+		this.name = name;
 		this.extension = extension;
+		this.index = index;
+	}
+
+	/**
+	 * Return the name of this file type.
+	 */
+	@Basic @Raw @Immutable
+	public String getName() {
+		return this.name;
 	}
-	
+
+	/**
+	 * Variable storing the name for this file type.
+	 */
+	private final String name;
+
 	/**
 	 * Return the extension of this file type.
 	 */
@@ -40,25 +104,161 @@ public enum FileType {
 	public String getExtension() {
 		return this.extension;
 	}
-	
+
 	/**
 	 * Variable storing the extension for this file type.
 	 */
 	private final String extension;
-	
+
+	/**
+	 * Return the index of this file type.
+	 */
+	@Basic @Raw @Immutable
+	public int getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * Variable storing the index for this file type.
+	 */
+	private final int index;
+
+	/**
+	 * Return a textual representation of this file type.
+	 *
+	 * @return The name of this file type.
+	 *         | result.equals(getName())
+	 */
+	@Override
+	public String toString() {
+		return getName();
+	}
+
+	/**
+	 * Check whether the given name is a valid name for any file type.
+	 *
+	 * @param  name
+	 * 		   The name to check.
+	 * @return True if and only if the given name is effective,
+	 *         not empty and only consists of letters and digits.
+	 *         | result ==
+	 *         |    ( name != null
+	 *         |   && name.matches("[a-zA-Z0-9]+") )
+	 */
+	public static boolean isValidName(String name) {
+		if (name == null || name.isEmpty())
+			return false;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z') && !(c >= '0' && c <= '9'))
+				return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Check whether the given extension is a valid extension for any file type.
-	 * 
+	 *
 	 * @param  extension
 	 * 		   The extension to check.
 	 * @return True if and only if the given extension is effective,
 	 *         not empty and only consists of lower case letters.
 	 *         | result ==
 	 *         |    ( extension != null
-	 *         |   && extension.matches("a-z") )
+	 *         |   && extension.matches("[a-z]+") )
+	 * @note   The characters are checked one by one, instead of matching a regular expression
+	 *         that would be compiled on each check.
 	 */
 	public static boolean isValidExtension(String extension) {
-		return extension!=null && extension.matches("[a-z]+");
+		if (extension == null || extension.isEmpty())
+			return false;
+		for (int i = 0; i < extension.length(); i++) {
+			char c = extension.charAt(i);
+			if (c < 'a' || c > 'z')
+				return false;
+		}
+		return true;
+	}
+
+
+	/**********************************************************
+     * Registry
+     **********************************************************/
+
+	/**
+	 * Register a new file type with the given name and extension.
+	 *
+	 * @param  name
+	 *         The name for the new file type.
+	 * @param  extension
+	 *         The extension for the new file type.
+	 * @return A new file type with the given name and extension, whose index is the number of file
+	 *         types registered before.
+	 *         | result.getName().equals(name) && result.getExtension().equals(extension)
+	 *         |   && result.getIndex() == old.getNbTypes()
+	 * @post   The new file type is registered under its name and its extension.
+	 *         | forName(name) == result && forExtension(extension) == result
+	 * @throws IllegalArgumentException
+	 *         The given name or extension is not valid, or a file type with the given name
+	 *         or extension is registered already.
+	 *         | !isValidName(name) || !isValidExtension(extension)
+	 *         |   || forName(name) != null || forExtension(extension) != null
+	 */
+	public static synchronized FileType register(String name, String extension) throws IllegalArgumentException {
+		if (!isValidName(name))
+			throw new IllegalArgumentException("Invalid name for a file type.");
+		if (!isValidExtension(extension))
+			throw new IllegalArgumentException("Invalid extension for a file type.");
+		if (typesByName.containsKey(name) || typesByExtension.containsKey(extension))
+			throw new IllegalArgumentException("A file type with this name or extension exists already.");
+		FileType type = new FileType(name, extension, allTypes.size());
+		Map<String,FileType> byName = new HashMap<String,FileType>(typesByName);
+		byName.put(name, type);
+		Map<String,FileType> byExtension = new HashMap<String,FileType>(typesByExtension);
+		byExtension.put(extension, type);
+		List<FileType> all = new ArrayList<FileType>(allTypes);
+		all.add(type);
+		typesByName = byName;
+		typesByExtension = byExtension;
+		allTypes = Collections.unmodifiableList(all);
+		return type;
+	}
+
+	/**
+	 * Return the registered file type with the given name, null if there is none.
+	 *
+	 * @param  name
+	 *         The name of the file type to return.
+	 */
+	public static FileType forName(String name) {
+		return typesByName.get(name);
 	}
-	
+
+	/**
+	 * Return the registered file type with the given extension, null if there is none.
+	 *
+	 * @param  extension
+	 *         The extension of the file type to return.
+	 */
+	public static FileType forExtension(String extension) {
+		return typesByExtension.get(extension);
+	}
+
+	/**
+	 * Return the number of registered file types.
+	 */
+	public static int getNbTypes() {
+		return allTypes.size();
+	}
+
+	/**
+	 * Return all registered file types, ordered by their index.
+	 *
+	 * @return An unmodifiable list of all registered file types, in which each file type is
+	 *         at its own index.
+	 */
+	public static List<FileType> getAllTypes() {
+		return allTypes;
+	}
+
 }
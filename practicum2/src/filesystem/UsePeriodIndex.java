@@ -0,0 +1,255 @@
+package filesystem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.BiConsumer;
+
+import be.kuleuven.cs.som.annotate.*;
+
+/**
+ * A class of indexes over the use periods of file system objects.
+ *   The use period of a file system object runs from its creation time up to and including its
+ *   modification time. Objects that have not been modified have no use period and are left out.
+ *   Two objects have overlapping use periods exactly if their periods share a moment, as
+ *   checked by hasOverlappingUsePeriod.
+ *   The periods are kept in a balanced binary search tree ordered by creation time, in which
+ *   each node also registers the latest modification time below it. Each index is a snapshot:
+ *   later changes to the objects are not reflected in it.
+ *
+ * @invar   The creation times of the indexed objects are in ascending order.
+ *          | for each I in 1..getNbObjects()-1:
+ *          |   getObjectAt(I).getCreationTimeNanos() <= getObjectAt(I+1).getCreationTimeNanos()
+ *
+ * @author  Tim Lauwers, Tim Robensyn, Robbe Van Biervliet
+ * @version 1.0
+ */
+public final class UsePeriodIndex {
+
+	/**
+	 * Initialize a new index over the use periods of the given file system objects.
+	 *
+	 * @param  objects
+	 *         The objects to index.
+	 * @post   The new index holds each effective given object that has a modification time.
+	 * @throws IllegalArgumentException
+	 *         The given collection is not effective.
+	 *         | objects == null
+	 * @note   Building an index takes time proportional to n log n, for n objects.
+	 */
+	public UsePeriodIndex(Collection<? extends FileSystemObject> objects) throws IllegalArgumentException {
+		if (objects == null)
+			throw new IllegalArgumentException("Cannot index a non-effective collection.");
+		List<Period> periods = new ArrayList<Period>(objects.size());
+		for (FileSystemObject obj: objects) {
+			if (obj == null)
+				continue;
+			long end = obj.getModificationTimeNanos();
+			if (end != FileSystemObject.NO_TIME)
+				periods.add(new Period(obj, obj.getCreationTimeNanos(), end));
+		}
+		this.periods = periods.toArray(new Period[periods.size()]);
+		Arrays.sort(this.periods, BY_START);
+		this.latestEnd = new long[this.periods.length];
+		computeLatestEnd(0, this.periods.length-1);
+	}
+
+	/**
+	 * Return a new index over the use periods of the given file system object and all objects below it.
+	 *
+	 * @param  start
+	 *         The object to start from.
+	 * @return An index over the given object and all objects below it.
+	 * @throws IllegalArgumentException
+	 *         The given object is not effective.
+	 *         | start == null
+	 */
+	public static UsePeriodIndex of(FileSystemObject start) throws IllegalArgumentException {
+		List<FileSystemObject> objects = new ArrayList<FileSystemObject>();
+		FileSystemWalker.walk(start, obj -> true, objects::add);
+		return new UsePeriodIndex(objects);
+	}
+
+
+	/**********************************************************
+	 * Indexed objects
+	 **********************************************************/
+
+	/**
+	 * Return the number of objects in this index.
+	 */
+	@Basic @Immutable
+	public int getNbObjects() {
+		return periods.length;
+	}
+
+	/**
+	 * Return the object at the given position in this index, in order of creation time.
+	 *
+	 * @param  index
+	 *         The position of the object, starting at 1.
+	 * @throws IndexOutOfBoundsException
+	 *         The given index is not positive or exceeds the number of objects.
+	 *         | (index < 1) || (index > getNbObjects())
+	 */
+	@Basic @Immutable
+	public FileSystemObject getObjectAt(int index) throws IndexOutOfBoundsException {
+		if (index < 1 || index > getNbObjects())
+			throw new IndexOutOfBoundsException();
+		return periods[index-1].obj;
+	}
+
+
+	/**********************************************************
+	 * Queries
+	 **********************************************************/
+
+	/**
+	 * Return the objects in this index that were in use at the given time.
+	 *
+	 * @param  time
+	 *         The time to check, in nanoseconds since the epoch.
+	 * @return The objects in this index whose use period contains the given time, in order of
+	 *         creation time.
+	 *         | result == getObjectsInUseDuring(time, time)
+	 */
+	public List<FileSystemObject> getObjectsInUseAt(long time) {
+		return getObjectsInUseDuring(time, time);
+	}
+
+	/**
+	 * Return the objects in this index that were in use at some moment during the given period.
+	 *
+	 * @param  from
+	 *         The start of the period, in nanoseconds since the epoch.
+	 * @param  to
+	 *         The end of the period, included, in nanoseconds since the epoch.
+	 * @return The objects in this index whose use period shares a moment with the given period,
+	 *         in order of creation time.
+	 *         | for each obj in result:
+	 *         |   obj.getCreationTimeNanos() <= to && obj.getModificationTimeNanos() >= from
+	 * @throws IllegalArgumentException
+	 *         The given period ends before it starts.
+	 *         | to < from
+	 * @note   Subtrees whose latest modification time lies before the period, or whose earliest
+	 *         creation time lies after it, are skipped.
+	 */
+	public List<FileSystemObject> getObjectsInUseDuring(long from, long to) throws IllegalArgumentException {
+		if (to < from)
+			throw new IllegalArgumentException("A period cannot end before it starts.");
+		List<FileSystemObject> result = new ArrayList<FileSystemObject>();
+		collectOverlapping(0, periods.length-1, from, to, result);
+		return result;
+	}
+
+	/**
+	 * Return the objects in this index whose use period overlaps with the use period of the given object.
+	 *
+	 * @param  obj
+	 *         The object to compare with.
+	 * @return The objects in this index other than the given object that have an overlapping use
+	 *         period with the given object, or an empty list if the given object has no use period.
+	 *         | for each other in result:
+	 *         |   other != obj && other.hasOverlappingUsePeriod(obj)
+	 */
+	public List<FileSystemObject> getObjectsOverlappingWith(FileSystemObject obj) {
+		if (obj == null || obj.getModificationTimeNanos() == FileSystemObject.NO_TIME)
+			return new ArrayList<FileSystemObject>();
+		List<FileSystemObject> result =
+				getObjectsInUseDuring(obj.getCreationTimeNanos(), obj.getModificationTimeNanos());
+		result.remove(obj);
+		return result;
+	}
+
+	/**
+	 * Apply the given action to each pair of objects in this index with overlapping use periods.
+	 *
+	 * @param  action
+	 *         The action to apply to each pair.
+	 * @effect The action is applied once to each unordered pair of different objects in this index
+	 *         that have an overlapping use period, with the object created first as first argument.
+	 * @throws IllegalArgumentException
+	 *         The given action is not effective.
+	 *         | action == null
+	 * @note   The periods are swept in order of creation time, keeping the periods still in use
+	 *         in a queue ordered by modification time. Reporting the k pairs thus takes time
+	 *         proportional to n log n + k, for n objects.
+	 */
+	public void forEachOverlappingPair(BiConsumer<? super FileSystemObject,? super FileSystemObject> action)
+			throws IllegalArgumentException {
+		if (action == null)
+			throw new IllegalArgumentException("Cannot apply a non-effective action.");
+		PriorityQueue<Period> active = new PriorityQueue<Period>(Math.max(1, periods.length), BY_END);
+		for (Period period: periods) {
+			while (!active.isEmpty() && active.peek().end < period.start)
+				active.poll();
+			for (Period other: active)
+				action.accept(other.obj, period.obj);
+			active.add(period);
+		}
+	}
+
+
+	/**********************************************************
+	 * Tree
+	 **********************************************************/
+
+	/**
+	 * The use periods of the objects in this index, ordered by creation time.
+	 *   The periods form an implicit balanced binary search tree: the root of the range lo..hi
+	 *   is the period in the middle, and its subtrees are the ranges to its left and to its right.
+	 */
+	private final Period[] periods;
+
+	/**
+	 * The latest end of the periods in the subtree rooted at each position.
+	 */
+	private final long[] latestEnd;
+
+	private long computeLatestEnd(int lo, int hi) {
+		if (lo > hi)
+			return Long.MIN_VALUE;
+		int mid = (lo+hi) >>> 1;
+		long latest = Math.max(periods[mid].end,
+				Math.max(computeLatestEnd(lo, mid-1), computeLatestEnd(mid+1, hi)));
+		latestEnd[mid] = latest;
+		return latest;
+	}
+
+	private void collectOverlapping(int lo, int hi, long from, long to, List<FileSystemObject> result) {
+		if (lo > hi)
+			return;
+		int mid = (lo+hi) >>> 1;
+		if (latestEnd[mid] < from)
+			return;
+		collectOverlapping(lo, mid-1, from, to, result);
+		if (periods[mid].start > to)
+			return;
+		if (periods[mid].end >= from)
+			result.add(periods[mid].obj);
+		collectOverlapping(mid+1, hi, from, to, result);
+	}
+
+	private static final Comparator<Period> BY_START = (first, second) -> Long.compare(first.start, second.start);
+	private static final Comparator<Period> BY_END = (first, second) -> Long.compare(first.end, second.end);
+
+	/**
+	 * A class of use periods of file system objects.
+	 */
+	private static final class Period {
+
+		private Period(FileSystemObject obj, long start, long end) {
+			this.obj = obj;
+			this.start = start;
+			this.end = end;
+		}
+
+		private final FileSystemObject obj;
+		private final long start;
+		private final long end;
+	}
+
+}